@@ -0,0 +1,115 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+/**
+ * Timestamps of the local images of each world and type, kept in memory so the lists of the server are compared without reading the disk.
+ * The folders are read in background when the world is joined, a world and type missing then is read at first access. The index is then kept up to
+ * date by the watcher and by the images written by the mod.
+ */
+public class ClientTileIndex {
+
+    private final Path location;
+
+    private final Map<String, LongLongHashMap> indexes = new ConcurrentHashMap<>();
+
+    public ClientTileIndex(Path location) {
+        this.location = location;
+    }
+
+    /**
+     * @return the timestamp of the local image, 0 if it does not exist.
+     */
+    public long getTimestamp(String world, String type, int x, int y) {
+        LongLongHashMap index = get(world, type);
+
+        synchronized (index) {
+            return index.get(JourneyMapShareUtils.toKey(x, y));
+        }
+    }
+
+    /**
+     * Set the timestamp of a local image, 0 if it was deleted.
+     */
+    public void update(String world, String type, int x, int y, long timestamp) {
+        LongLongHashMap index = get(world, type);
+
+        synchronized (index) {
+            index.put(JourneyMapShareUtils.toKey(x, y), timestamp);
+        }
+    }
+
+    /**
+     * Iterate over the packed coordinates and timestamps of the local images of a world and type.
+     */
+    public void forEach(String world, String type, LongLongHashMap.Consumer consumer) {
+        LongLongHashMap index = get(world, type);
+
+        synchronized (index) {
+            index.forEach(consumer);
+        }
+    }
+
+    /**
+     * Read the folders of the synced types of all the worlds, so the first lists of the server don't wait for the disk.
+     */
+    public void loadAll(Predicate<String> synced) {
+        for (String world : JourneyMapShare.WORLDS_TO_WATCH.keySet()) {
+            Path folder = this.location.resolve(world);
+            if (!Files.isDirectory(folder)) {
+                continue;
+            }
+
+            try (Stream<Path> stream = Files.list(folder)) {
+                for (Path type : stream.filter(Files::isDirectory).toList()) {
+                    if (synced.test(type.getFileName().toString())) {
+                        get(world, type.getFileName().toString());
+                    }
+                }
+            } catch (IOException e) {
+                JourneyMapShare.LOGGER.error("An error occurred while listing folders of {}", folder, e);
+            }
+        }
+    }
+
+    /**
+     * Forget the images of the types matching a filter, they are read again from their folder at next access.
+     */
+    public void removeTypes(Predicate<String> filter) {
+        this.indexes.keySet().removeIf(key -> filter.test(key.substring(key.indexOf('/') + 1)));
+    }
+
+    private LongLongHashMap get(String world, String type) {
+        return this.indexes.computeIfAbsent(JourneyMapShareUtils.toSyncKey(world, type), key -> load(this.location.resolve(world).resolve(type)));
+    }
+
+    private static LongLongHashMap load(Path folder) {
+        LongLongHashMap index = new LongLongHashMap();
+
+        if (!Files.isDirectory(folder)) {
+            return index;
+        }
+
+        try (Stream<Path> stream = Files.list(folder)) {
+            for (Path path : (Iterable<Path>) stream::iterator) {
+                if (JourneyMapShare.FILENAME_MATCH.test(path.getFileName().toString()) && Files.isRegularFile(path)) {
+                    Pair<Integer, Integer> pos = JourneyMapShareUtils.pathToXY(path);
+                    index.put(JourneyMapShareUtils.toKey(pos.getKey(), pos.getValue()), path.toFile().lastModified());
+                }
+            }
+        } catch (IOException e) {
+            JourneyMapShare.LOGGER.error("An error occurred while listing files of {}", folder, e);
+        }
+
+        JourneyMapShare.LOGGER.debug("Indexed {} images of {}", index.size(), folder);
+        return index;
+    }
+}
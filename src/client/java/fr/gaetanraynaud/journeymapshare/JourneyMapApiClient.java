@@ -1,17 +1,27 @@
 package fr.gaetanraynaud.journeymapshare;
 
 import com.google.gson.Gson;
-import com.sun.nio.file.ExtendedWatchEventModifier;
+import com.mojang.brigadier.arguments.StringArgumentType;
+import fr.gaetanraynaud.journeymapshare.image.TileMerger;
+import fr.gaetanraynaud.journeymapshare.network.BackoffPayload;
+import fr.gaetanraynaud.journeymapshare.network.ImageChunkAckPayload;
+import fr.gaetanraynaud.journeymapshare.network.ImageChunkPayload;
+import fr.gaetanraynaud.journeymapshare.network.ImageDeltaPayload;
 import fr.gaetanraynaud.journeymapshare.network.ImagePayload;
-import fr.gaetanraynaud.journeymapshare.network.ImageTimestamp;
+import fr.gaetanraynaud.journeymapshare.network.ImagesBatchPayload;
 import fr.gaetanraynaud.journeymapshare.network.ImagesListPayload;
 import fr.gaetanraynaud.journeymapshare.network.ImagesMetaListPayload;
+import fr.gaetanraynaud.journeymapshare.network.RegionsRequestPayload;
 import fr.gaetanraynaud.journeymapshare.network.SubscribePayload;
+import fr.gaetanraynaud.journeymapshare.network.TileTreePayload;
+import fr.gaetanraynaud.journeymapshare.network.TypesPayload;
 import journeymap.api.v2.client.IClientAPI;
 import journeymap.api.v2.client.IClientPlugin;
 import journeymap.api.v2.client.JourneyMapPlugin;
 import journeymap.api.v2.client.event.MappingEvent;
 import journeymap.api.v2.common.event.ClientEventRegistry;
+import net.fabricmc.fabric.api.client.command.v2.ClientCommandManager;
+import net.fabricmc.fabric.api.client.command.v2.ClientCommandRegistrationCallback;
 import net.fabricmc.fabric.api.client.event.lifecycle.v1.ClientTickEvents;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayConnectionEvents;
 import net.fabricmc.fabric.api.client.networking.v1.ClientPlayNetworking;
@@ -20,19 +30,19 @@ import net.fabricmc.loader.api.Version;
 import net.fabricmc.loader.api.VersionParsingException;
 import net.fabricmc.loader.impl.util.version.VersionParser;
 import net.minecraft.client.MinecraftClient;
+import net.minecraft.client.network.ClientPlayerEntity;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.text.Text;
 import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.tuple.Pair;
 
 import java.io.IOException;
-import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.nio.file.StandardWatchEventKinds;
-import java.nio.file.WatchEvent;
-import java.nio.file.WatchKey;
-import java.nio.file.WatchService;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -43,35 +53,135 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.stream.Stream;
 
 @JourneyMapPlugin(apiVersion = "2.0.0")
 public class JourneyMapApiClient implements IClientPlugin {
 
-    private final Set<Path> processedPaths = ConcurrentHashMap.newKeySet();
+    /**
+     * Number of images read in advance by the I/O thread, enough to fill a batch with small images.
+     */
+    private static final int PREFETCH = 32;
+
+    /**
+     * Ticks between the updates of the position of the player in the queue of the images to send.
+     */
+    private static final int POSITION_INTERVAL = 20;
+
+    /**
+     * Bytes of images uploaded per tick, the rate is halved when the server rejects uploads and grows back by a step at each tick.
+     */
+    private static final int MIN_UPLOAD_RATE = 8 * 1024;
+
+    private static final int MAX_UPLOAD_RATE = ImageBatcher.BATCH_SIZE;
+
+    private static final int UPLOAD_RATE_STEP = 1024;
+
+    /**
+     * Images written by the mod, with the timestamp they got, so the watcher does not send them back.
+     */
+    private final Map<Path, Long> writtenPaths = new ConcurrentHashMap<>();
+
+    /**
+     * Local images to send, closest to the player first. Used by several threads, synchronized on itself.
+     */
+    private final TileQueue mapsToSend = new TileQueue();
+
+    private final TileLocks tileLocks = new TileLocks(16);
+
+    /**
+     * Disk reads and writes are done on this thread, so the render thread is not slowed down by the disk.
+     */
+    private final ExecutorService ioExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, JourneyMapShare.MOD_ID + "-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final ConcurrentLinkedQueue<ImagePayload> readyImages = new ConcurrentLinkedQueue<>();
+
+    private final AtomicBoolean prefetching = new AtomicBoolean();
+
+    /**
+     * Packets prepared by the I/O thread, sent at next tick.
+     */
+    private final ConcurrentLinkedQueue<CustomPayload> packetsToSend = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Hash of the pixels of the images of the server, to not upload images the server already has.
+     */
+    private final Map<MapId, Long> serverHashes = new ConcurrentHashMap<>();
+
+    /**
+     * Images received in chunks, kept after a disconnection so the server can resume its transfers.
+     */
+    private final ChunkAssembler chunkAssembler = new ChunkAssembler();
+
+    /**
+     * Chunks of the big images to upload, sent alternately with the small images. Only used by the render thread.
+     */
+    private final ArrayDeque<ImageChunkPayload> chunksToSend = new ArrayDeque<>();
 
-    private final ConcurrentLinkedQueue<MapId> mapsToSend = new ConcurrentLinkedQueue<>();
+    private boolean chunkTurn;
+
+    /**
+     * Images requests rejected by the server, asked again once the back-off delay is over. Only used by the render thread.
+     */
+    private final ArrayDeque<CustomPayload> deferredPackets = new ArrayDeque<>();
+
+    /**
+     * Time before which no image is uploaded nor asked, set by the server when it rejects some. Only used by the render thread.
+     */
+    private long backoffUntil;
+
+    private int uploadRate = MAX_UPLOAD_RATE;
+
+    private long uploadCredit;
+
+    private int nextTransferId;
+
+    private int ticks;
 
     private IClientAPI jmClientApi;
 
-    private Path location;
+    private volatile Path location;
+
+    private JourneyMapShareConfig config;
 
-    private WatchService watchService;
+    private TileWatcher watcher;
 
-    private ExecutorService executor;
+    private SyncState syncState;
 
-    private boolean init;
+    private volatile ClientTileIndex localIndex;
+
+    private volatile boolean init;
+
+    /**
+     * Types of images synced with the server, all types if empty.
+     */
+    private volatile Set<String> types = Set.of();
 
     @Override
     public void initialize(IClientAPI jmClientApi) {
         this.jmClientApi = jmClientApi;
-
-        ClientPlayNetworking.registerGlobalReceiver(ImagePayload.ID, (payload, context) -> context.client().execute(() -> processImagePayload(payload)));
+        this.config = JourneyMapShareConfig.load();
+        this.types = this.config.getTypes();
+
+        ClientPlayNetworking.registerGlobalReceiver(ImagePayload.ID, (payload, context) -> this.ioExecutor.execute(() -> processImagePayload(payload)));
+        ClientPlayNetworking.registerGlobalReceiver(ImagesBatchPayload.ID, (payload, context) -> this.ioExecutor.execute(
+                () -> payload.getImages().forEach(this::processImagePayload)));
+        ClientPlayNetworking.registerGlobalReceiver(ImageDeltaPayload.ID,
+                                                    (payload, context) -> this.ioExecutor.execute(() -> processImageDeltaPayload(payload)));
+        ClientPlayNetworking.registerGlobalReceiver(ImageChunkPayload.ID,
+                                                    (payload, context) -> this.ioExecutor.execute(() -> processImageChunkPayload(payload)));
         ClientPlayNetworking.registerGlobalReceiver(ImagesMetaListPayload.ID,
-                                                    (payload, context) -> context.client().execute(() -> processImagesListPayload(payload)));
+                                                    (payload, context) -> this.ioExecutor.execute(() -> processImagesListPayload(payload)));
+        ClientPlayNetworking.registerGlobalReceiver(TileTreePayload.ID,
+                                                    (payload, context) -> this.ioExecutor.execute(() -> processTileTreePayload(payload)));
+        ClientPlayNetworking.registerGlobalReceiver(BackoffPayload.ID,
+                                                    (payload, context) -> context.client().execute(() -> processBackoffPayload(payload)));
 
         //Init
         ClientEventRegistry.MAPPING_EVENT.subscribe(JourneyMapShare.MOD_ID, this::mappingStageEvent);
@@ -79,8 +189,55 @@ public class JourneyMapApiClient implements IClientPlugin {
         //Stop watching files when disconnecting
         ClientPlayConnectionEvents.DISCONNECT.register((handler, client) -> client.execute(this::cleanUp));
 
-        //Register a task to send 1 packet at each tick
+        //Register a task to send a batch of images at each tick
         ClientTickEvents.END_WORLD_TICK.register(world -> sendNextPacket());
+
+        //Change the synced types without restarting
+        ClientCommandRegistrationCallback.EVENT.register((dispatcher, registryAccess) -> dispatcher.register(
+                ClientCommandManager.literal(JourneyMapShare.MOD_ID)
+                                    .then(ClientCommandManager.literal("types")
+                                                              .executes(context -> {
+                                                                  context.getSource().sendFeedback(Text.literal("Synced types: " + describeTypes()));
+                                                                  return 1;
+                                                              })
+                                                              .then(ClientCommandManager.argument("types", StringArgumentType.greedyString())
+                                                                                        .executes(context -> {
+                                                                                            setTypes(JourneyMapShareConfig.parseTypes(
+                                                                                                    StringArgumentType.getString(context, "types")));
+                                                                                            context.getSource().sendFeedback(
+                                                                                                    Text.literal("Synced types: " + describeTypes()));
+                                                                                            return 1;
+                                                                                        })))));
+    }
+
+    /**
+     * Change the types of images synced with the server, the local images of the other types are not sent anymore.
+     */
+    private void setTypes(Set<String> types) {
+        this.types = types;
+
+        synchronized (this.mapsToSend) {
+            this.mapsToSend.removeIf(mapId -> !isSynced(mapId.type()));
+        }
+
+        //The changes of the images of the other types are not followed, they are read again from the disk if synced later
+        ClientTileIndex localIndex = this.localIndex;
+        if (localIndex != null) {
+            localIndex.removeTypes(type -> !isSynced(type));
+        }
+
+        if (this.init) {
+            ClientPlayNetworking.send(new TypesPayload(List.copyOf(types)));
+        }
+    }
+
+    private boolean isSynced(String type) {
+        Set<String> types = this.types;
+        return types.isEmpty() || types.contains(type);
+    }
+
+    private String describeTypes() {
+        return this.types.isEmpty() ? "all" : String.join(",", this.types);
     }
 
     @Override
@@ -105,6 +262,11 @@ public class JourneyMapApiClient implements IClientPlugin {
                 } catch (IOException e) {
                     JourneyMapShare.LOGGER.error("An error occurred while initialising", e);
                 }
+
+                //Build the index of the local images before the first lists of the server, which are processed after it on the same thread
+                ClientTileIndex localIndex = new ClientTileIndex(this.location);
+                this.localIndex = localIndex;
+                this.ioExecutor.execute(() -> localIndex.loadAll(this::isSynced));
             }
         }
     }
@@ -130,14 +292,32 @@ public class JourneyMapApiClient implements IClientPlugin {
             config.values().removeIf(s -> !(s instanceof String));
         }
 
-        //Tell the server that we have this mod installed
-        ClientPlayNetworking.send(new SubscribePayload(new HashMap<String, String>(config)));
+        //Tell the server that we have this mod installed, with the lists we already received
+        this.syncState = SyncState.load(this.location);
+        ClientPlayNetworking.send(new SubscribePayload(new HashMap<String, String>(config), this.syncState.getEpoch(), this.syncState.getVersions(),
+                                                       this.config.getCompressionLevel() > 0, List.copyOf(this.types)));
     }
 
+    /**
+     * Add a chunk received from the server to its image and acknowledge it, runs on the I/O thread.
+     */
+    private void processImageChunkPayload(ImageChunkPayload payload) {
+        ChunkAssembler.Result result = this.chunkAssembler.accept(payload);
+        this.packetsToSend.add(new ImageChunkAckPayload(payload.getTransferId(), result.received(), result.resend()));
+
+        if (result.image() != null) {
+            processImagePayload(result.image());
+        }
+    }
+
+    /**
+     * Write an image received from the server, runs on the I/O thread.
+     */
     private void processImagePayload(ImagePayload payload) {
         JourneyMapShare.LOGGER.debug("Received image payload {} from server", payload);
 
-        if (!this.init || this.location == null) {
+        ClientTileIndex localIndex = this.localIndex;
+        if (!this.init || this.location == null || localIndex == null) {
             return;
         }
 
@@ -145,19 +325,74 @@ public class JourneyMapApiClient implements IClientPlugin {
             Path path = payload.getPath(this.location);
             FileUtils.forceMkdirParent(path.toFile());
 
-            synchronized (path.toString()) {
+            ReentrantLock lock = this.tileLocks.get(payload.getMapId());
+            lock.lock();
+            try {
                 //Write the file if it does not exist or the server version is more recent
                 if (!Files.exists(path) || payload.getTimestamp() > path.toFile().lastModified()) {
-                    this.processedPaths.add(path);
-                    Files.write(path, payload.getImage(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                    this.writtenPaths.put(path, payload.getTimestamp());
+                    Files.write(path, payload.getImage(), StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    //Keep the timestamp of the server, so the image is not seen as a local change at next sync
+                    Files.setLastModifiedTime(path, FileTime.fromMillis(payload.getTimestamp()));
+                    localIndex.update(payload.getWorld(), payload.getType(), payload.getX(), payload.getY(), payload.getTimestamp());
                 }
+            } finally {
+                lock.unlock();
+            }
+
+            if (payload.getHash() != 0) {
+                this.serverHashes.put(payload.getMapId(), payload.getHash());
             }
         } catch (Exception e) {
             JourneyMapShare.LOGGER.error("Error while processing image {}", payload, e);
         }
     }
 
+    /**
+     * Apply the blocks changed on the server to the local image, runs on the I/O thread. If the local image is not one of the versions the delta was
+     * made from, the whole image is asked.
+     */
+    private void processImageDeltaPayload(ImageDeltaPayload payload) {
+        JourneyMapShare.LOGGER.debug("Received image delta {} from server", payload);
+
+        if (!this.init || this.location == null) {
+            return;
+        }
+
+        MapId mapId = payload.getMapId();
+        byte[] image = null;
+        try {
+            Path path = mapId.getPath(this.location);
+            ReentrantLock lock = this.tileLocks.get(mapId);
+            lock.lock();
+            try {
+                TileMerger merger = TileMerger.get();
+                if (Files.exists(path) && merger.applyDelta(Files.readAllBytes(path), payload::hasBase, payload.getData()) &&
+                    merger.getHash() == payload.getHash()) {
+                    image = merger.encode();
+                }
+            } finally {
+                lock.unlock();
+            }
+        } catch (Exception e) {
+            JourneyMapShare.LOGGER.error("Error while applying image delta {}", payload, e);
+        }
+
+        if (image != null) {
+            processImagePayload(new ImagePayload(mapId.world(), mapId.type(), mapId.x(), mapId.y(), image, payload.getTimestamp(), payload.getHash()));
+        } else {
+            JourneyMapShare.LOGGER.debug("Can't apply image delta {}, asking the whole image", payload);
+            ImagesListPayload request = new ImagesListPayload(mapId.world(), mapId.type(), Map.of(mapId.x(), List.of(mapId.y())));
+            request.setCompressionLevel(this.config.getCompressionLevel());
+            this.packetsToSend.add(request);
+        }
+    }
+
     private synchronized void processImagesListPayload(ImagesMetaListPayload payload) {
+        if (this.location == null) {
+            return;
+        }
+
         if (!this.init) {
             try {
                 initWorld();
@@ -166,141 +401,413 @@ public class JourneyMapApiClient implements IClientPlugin {
             }
         }
 
+        //Disconnected meanwhile
+        ClientTileIndex localIndex = this.localIndex;
+        if (localIndex == null) {
+            return;
+        }
+
         JourneyMapShare.LOGGER.debug("Received image list payload {}", payload);
 
-        Path folder = payload.getPath(this.location);
+        String key = JourneyMapShareUtils.toSyncKey(payload.getWorld(), payload.getType());
+        long syncTime = System.currentTimeMillis();
+        //For a partial list, the local images not listed only have to be sent if they changed since the last sync
+        long lastSync = payload.isFull() ? 0 : this.syncState.getSyncTime(key);
+        Set<Long> regions = new HashSet<>(payload.getRegions());
         Map<Integer, List<Integer>> toAsk = new HashMap<>();
+        Set<Long> listed = new HashSet<>();
+        int nbSending = 0;
+
+        for (int i = 0; i < payload.size(); i++) {
+            MapId mapId = new MapId(payload.getWorld(), payload.getType(), payload.getX(i), payload.getY(i));
+            long timestamp = payload.getTimestamp(i);
+            long hash = payload.getHash(i);
+            long localTimestamp = localIndex.getTimestamp(mapId.world(), mapId.type(), mapId.x(), mapId.y());
+            listed.add(JourneyMapShareUtils.toKey(mapId.x(), mapId.y()));
+
+            if (hash != 0) {
+                this.serverHashes.put(mapId, hash);
+
+                //Rewritten by JourneyMap without any visible change, only align the timestamp on the server
+                if (timestamp != localTimestamp && localTimestamp != 0 && hash == hash(mapId.getPath(this.location))) {
+                    setLastModified(mapId, timestamp);
+                    continue;
+                }
+            }
 
-        if (!Files.exists(folder)) {
-            folder.toFile().mkdirs();
+            if (timestamp > localTimestamp) {
+                toAsk.computeIfAbsent(mapId.x(), x -> new ArrayList<>()).add(mapId.y());
+            } else if (timestamp < localTimestamp) {
+                queueToSend(List.of(mapId));
+                nbSending++;
+            }
+        }
 
-            for (ImageTimestamp image : payload.getImages()) {
-                toAsk.computeIfAbsent(image.getX(), x -> new ArrayList<>()).add(image.getY());
+        List<MapId> unlisted = new ArrayList<>();
+        localIndex.forEach(payload.getWorld(), payload.getType(), (position, timestamp) -> {
+            int x = JourneyMapShareUtils.keyToX(position);
+            int y = JourneyMapShareUtils.keyToY(position);
+
+            if (!listed.contains(position) && timestamp > lastSync && (regions.isEmpty() || regions.contains(TileHashTree.toRegionKey(x, y)))) {
+                unlisted.add(new MapId(payload.getWorld(), payload.getType(), x, y));
             }
-        } else {
-            AtomicInteger nbSending = new AtomicInteger();
-            Map<Path, Long> toCheck = payload.getImages()
-                                             .stream()
-                                             .map(i -> i.getPath(folder))
-                                             .collect(Collectors.toMap(Function.identity(), p -> p.toFile().lastModified()));
-
-            try (Stream<Path> stream = Files.list(folder)) {
-                stream.filter(Files::isRegularFile).forEach(path -> {
-                    Pair<Integer, Integer> pos = JourneyMapShareUtils.pathToXY(path);
-
-                    if (toCheck.containsKey(path) && toCheck.get(path) > path.toFile().lastModified()) {
-                        toAsk.computeIfAbsent(pos.getKey(), x -> new ArrayList<>()).add(pos.getValue());
-                    } else if (!toCheck.containsKey(path) || toCheck.get(path) < path.toFile().lastModified()) {
-                        this.mapsToSend.add(new MapId(payload.getWorld(), payload.getType(), pos.getKey(), pos.getValue()));
-                        nbSending.getAndIncrement();
-                    }
-                });
+        });
+
+        queueToSend(unlisted);
+        nbSending += unlisted.size();
+
+        if (nbSending > 0) {
+            JourneyMapShare.LOGGER.debug("Sending {} images", nbSending);
+        }
+
+        this.syncState.update(payload.getEpoch(), key, payload.getVersion(), syncTime);
+        this.syncState.save();
+
+        if (!toAsk.isEmpty()) {
+            JourneyMapShare.LOGGER.debug("Asking for {} images", toAsk.values().stream().mapToInt(List::size).sum());
+            ImagesListPayload request = new ImagesListPayload(payload.getWorld(), payload.getType(), toAsk);
+            request.setCompressionLevel(this.config.getCompressionLevel());
+            this.packetsToSend.add(request);
+        }
+    }
+
+    /**
+     * Compare the hashes of the server with the local images: send the images of the regions the server does not have, and ask the images list of
+     * the regions which differ. Runs on the I/O thread.
+     */
+    private synchronized void processTileTreePayload(TileTreePayload payload) {
+        if (this.location == null) {
+            return;
+        }
+
+        if (!this.init) {
+            try {
+                initWorld();
             } catch (Exception e) {
-                JourneyMapShare.LOGGER.error("Error while processing image list {}", payload, e);
+                JourneyMapShare.LOGGER.error("Error while init world {}", payload, e);
+            }
+        }
+
+        //Disconnected meanwhile
+        ClientTileIndex localIndex = this.localIndex;
+        if (localIndex == null) {
+            return;
+        }
+
+        JourneyMapShare.LOGGER.debug("Received tile tree payload {}", payload);
+
+        String key = JourneyMapShareUtils.toSyncKey(payload.getWorld(), payload.getType());
+        long syncTime = System.currentTimeMillis();
+        TileHashTree tree = new TileHashTree();
+        Map<Long, List<MapId>> localRegions = new HashMap<>();
+
+        localIndex.forEach(payload.getWorld(), payload.getType(), (position, timestamp) -> {
+            int x = JourneyMapShareUtils.keyToX(position);
+            int y = JourneyMapShareUtils.keyToY(position);
+            tree.update(x, y, 0, timestamp);
+            localRegions.computeIfAbsent(TileHashTree.toRegionKey(x, y), r -> new ArrayList<>()).add(new MapId(payload.getWorld(), payload.getType(), x, y));
+        });
+
+        List<Long> toRequest = new ArrayList<>();
+        if (tree.getRoot() != payload.getRoot()) {
+            for (Map.Entry<Long, Long> region : payload.getRegions().entrySet()) {
+                if (tree.getHash(region.getKey()) != region.getValue()) {
+                    toRequest.add(region.getKey());
+                }
             }
 
-            if (nbSending.get() > 0) {
-                JourneyMapShare.LOGGER.debug("Sending {} images", nbSending.get());
+            //The server has no image in these regions, no need to ask the list
+            for (Map.Entry<Long, List<MapId>> region : localRegions.entrySet()) {
+                if (!payload.getRegions().containsKey(region.getKey())) {
+                    queueToSend(region.getValue());
+                }
             }
         }
 
-        if (!toAsk.isEmpty()) {
-            JourneyMapShare.LOGGER.debug("Asking for {} images", toAsk.values().stream().mapToInt(List::size).sum());
-            ClientPlayNetworking.send(new ImagesListPayload(payload.getWorld(), payload.getType(), toAsk));
+        JourneyMapShare.LOGGER.debug("{} regions out of {} differ for {}", toRequest.size(), payload.getRegions().size(), key);
+
+        if (toRequest.isEmpty()) {
+            this.syncState.update(payload.getEpoch(), key, payload.getVersion(), syncTime);
+            this.syncState.save();
+        } else {
+            this.packetsToSend.add(new RegionsRequestPayload(payload.getWorld(), payload.getType(), toRequest));
+        }
+    }
+
+    /**
+     * @return the hash of the pixels of a local image, 0 if it can't be read.
+     */
+    private long hash(Path path) {
+        try {
+            return TileMerger.get().hash(Files.readAllBytes(path));
+        } catch (IOException e) {
+            JourneyMapShare.LOGGER.error("Error while reading image {}", path, e);
+            return 0;
+        }
+    }
+
+    private void setLastModified(MapId mapId, long timestamp) {
+        Path path = mapId.getPath(this.location).normalize().toAbsolutePath();
+
+        try {
+            this.writtenPaths.put(path, timestamp);
+            Files.setLastModifiedTime(path, FileTime.fromMillis(timestamp));
+            ClientTileIndex localIndex = this.localIndex;
+            if (localIndex != null) {
+                localIndex.update(mapId.world(), mapId.type(), mapId.x(), mapId.y(), timestamp);
+            }
+        } catch (IOException e) {
+            JourneyMapShare.LOGGER.error("Error while updating image {}", path, e);
         }
     }
 
     private void initWorld() throws IOException {
         this.init = true;
-        this.watchService = FileSystems.getDefault().newWatchService();
-        for (String world : JourneyMapShare.WORLDS_TO_WATCH.keySet()) {
-            Path path = this.location.resolve(world).normalize().toAbsolutePath();
-            path.toFile().mkdirs();
-            path.register(this.watchService, new WatchEvent.Kind[] {StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE},
-                          ExtendedWatchEventModifier.FILE_TREE);
-            JourneyMapShare.LOGGER.debug("Starting watching: {}", path);
-        }
-
-        this.executor = Executors.newSingleThreadExecutor();
-        this.executor.submit(() -> {
-            Set<Path> paths = new HashSet<>();
-
-            while (true) {
-                WatchKey key = this.watchService.take();
-                Path folder = (Path) key.watchable();
-
-                for (WatchEvent<?> event : key.pollEvents()) {
-                    if (event.context() instanceof Path path) {
-                        if (JourneyMapShare.FILENAME_MATCH.test(path.getFileName().toString())) {
-                            path = folder.resolve(path).normalize().toAbsolutePath();
-                            paths.add(path);
-                        }
-                    }
-                }
+        if (this.localIndex == null) {
+            this.localIndex = new ClientTileIndex(this.location);
+        }
+        this.watcher = new TileWatcher(this.location, this.config.getWatchDebounce(), this::onImageChanged);
+        this.watcher.start();
+    }
+
+    /**
+     * Called by the watcher once an image stopped changing.
+     */
+    private void onImageChanged(MapId mapId) {
+        Path location = this.location;
+        if (location == null || !isSynced(mapId.type())) {
+            return;
+        }
 
-                key.reset();
+        Path path = mapId.getPath(location).normalize().toAbsolutePath();
+        ClientTileIndex localIndex = this.localIndex;
+        if (localIndex != null) {
+            localIndex.update(mapId.world(), mapId.type(), mapId.x(), mapId.y(), path.toFile().lastModified());
+        }
 
-                if (paths.isEmpty()) {
-                    continue;
+        //To prevent an infinite loop, because when we receive an image from the server, we write to disk so it triggers a change event.
+        Long written = this.writtenPaths.remove(path);
+        if (written != null && written == path.toFile().lastModified()) {
+            return;
+        }
+
+        queueToSend(List.of(mapId));
+    }
+
+    /**
+     * The server rejected some uploads or requests: slow down the uploads, and send them again after the delay. Runs on the render thread.
+     */
+    private void processBackoffPayload(BackoffPayload payload) {
+        if (!this.init) {
+            return;
+        }
+
+        JourneyMapShare.LOGGER.debug("Received back-off payload {}", payload);
+        this.backoffUntil = Math.max(this.backoffUntil, System.currentTimeMillis() + payload.delay());
+        this.uploadRate = Math.max(MIN_UPLOAD_RATE, this.uploadRate / 2);
+        this.uploadCredit = Math.min(this.uploadCredit, 0);
+
+        if (!payload.uploads().isEmpty()) {
+            List<MapId> toSend = new ArrayList<>();
+            for (Long position : payload.uploads()) {
+                MapId mapId = new MapId(payload.world(), payload.type(), JourneyMapShareUtils.keyToX(position), JourneyMapShareUtils.keyToY(position));
+                //The server did not merge it, so it does not have these pixels
+                this.serverHashes.remove(mapId);
+                toSend.add(mapId);
+            }
+
+            //The server dropped their transfers, the next chunks would be ignored
+            this.chunksToSend.removeIf(chunk -> toSend.contains(chunk.getMapId()));
+            queueToSend(toSend);
+        }
+
+        if (!payload.requests().isEmpty()) {
+            Map<Integer, List<Integer>> toAsk = new HashMap<>();
+            for (Long position : payload.requests()) {
+                toAsk.computeIfAbsent(JourneyMapShareUtils.keyToX(position), x -> new ArrayList<>()).add(JourneyMapShareUtils.keyToY(position));
+            }
+
+            ImagesListPayload request = new ImagesListPayload(payload.world(), payload.type(), toAsk);
+            request.setCompressionLevel(this.config.getCompressionLevel());
+            this.deferredPackets.add(request);
+        }
+
+        if (!payload.regions().isEmpty()) {
+            this.deferredPackets.add(new RegionsRequestPayload(payload.world(), payload.type(), payload.regions()));
+        }
+    }
+
+    private void queueToSend(Collection<MapId> mapIds) {
+        synchronized (this.mapsToSend) {
+            mapIds.forEach(this.mapsToSend::add);
+        }
+    }
+
+    private MapId pollToSend() {
+        synchronized (this.mapsToSend) {
+            return this.mapsToSend.poll();
+        }
+    }
+
+    /**
+     * Send the packets prepared by the I/O thread and the next ready images, and ask the I/O thread to read the next images to send.
+     */
+    private void sendNextPacket() {
+        if (!this.init || this.location == null) {
+            return;
+        }
+
+        for (CustomPayload packet = this.packetsToSend.poll(); packet != null; packet = this.packetsToSend.poll()) {
+            ClientPlayNetworking.send(packet);
+        }
+
+        //The server rejected uploads or requests, wait before sending more
+        if (System.currentTimeMillis() >= this.backoffUntil) {
+            sendUploads();
+        }
+
+        //Send the images closest to the player first
+        ClientPlayerEntity player = MinecraftClient.getInstance().player;
+        if (++this.ticks % POSITION_INTERVAL == 0 && player != null) {
+            String world = player.getEntityWorld().getRegistryKey().getValue().getPath();
+            int x = JourneyMapShareUtils.blockToTile(player.getX());
+            int y = JourneyMapShareUtils.blockToTile(player.getZ());
+            this.ioExecutor.execute(() -> {
+                synchronized (this.mapsToSend) {
+                    this.mapsToSend.setPosition(world, x, y);
                 }
+            });
+        }
 
-                String worldName = folder.getFileName().toString();
+        boolean toSend;
+        synchronized (this.mapsToSend) {
+            toSend = !this.mapsToSend.isEmpty();
+        }
 
-                for (Path path : paths) {
-                    //To prevent an infinite loop, because when we receive an image from the server, we write to disk so it triggers a change event.
-                    if (this.processedPaths.contains(path)) {
-                        continue;
-                    }
+        if (this.readyImages.size() < PREFETCH && toSend && this.prefetching.compareAndSet(false, true)) {
+            this.ioExecutor.execute(this::prefetch);
+        }
+    }
 
-                    try {
-                        JourneyMapShare.LOGGER.debug("Watch event received for image: {}", path);
-                        Pair<Integer, Integer> pos = JourneyMapShareUtils.pathToXY(path);
-                        this.mapsToSend.add(new MapId(worldName, path.getParent().getFileName().toString(), pos.getKey(), pos.getValue()));
-                    } catch (Exception e) {
-                        JourneyMapShare.LOGGER.error("Error while sending image {}", path, e);
+    /**
+     * Send the requests delayed by the server and the next ready images, within the upload rate.
+     */
+    private void sendUploads() {
+        for (CustomPayload packet = this.deferredPackets.poll(); packet != null; packet = this.deferredPackets.poll()) {
+            ClientPlayNetworking.send(packet);
+        }
+
+        this.uploadRate = Math.min(MAX_UPLOAD_RATE, this.uploadRate + UPLOAD_RATE_STEP);
+        this.uploadCredit = Math.min(this.uploadRate, this.uploadCredit + this.uploadRate);
+
+        //Alternate between the chunks of the big images and the batches of small images, within the upload rate
+        if (this.uploadCredit > 0 && !this.chunksToSend.isEmpty() && (this.chunkTurn || this.readyImages.isEmpty())) {
+            this.chunkTurn = false;
+            ImageChunkPayload chunk = this.chunksToSend.poll();
+            this.uploadCredit -= chunk.getData().length;
+            ClientPlayNetworking.send(chunk);
+        } else if (this.uploadCredit > 0 && !this.readyImages.isEmpty()) {
+            this.chunkTurn = true;
+            ImageBatcher batcher = new ImageBatcher(ClientPlayNetworking::send);
+
+            //Only this thread polls the ready images, the peeked image is the polled one
+            for (ImagePayload payload = this.readyImages.peek(); payload != null && batcher.accepts(payload) && this.uploadCredit > 0;
+                 payload = this.readyImages.peek()) {
+                this.readyImages.poll();
+
+                if (payload.getImage().length > ImageChunkPayload.CHUNK_SIZE) {
+                    int transferId = this.nextTransferId++;
+                    for (int offset = 0; offset < payload.getImage().length; offset += ImageChunkPayload.CHUNK_SIZE) {
+                        this.chunksToSend.add(new ImageChunkPayload(transferId, payload, offset));
                     }
+                } else {
+                    batcher.add(payload);
+                    this.uploadCredit -= payload.getImage().length;
                 }
+            }
+
+            batcher.flush();
+        }
+    }
+
+    /**
+     * Read the next images to send, runs on the I/O thread.
+     */
+    private void prefetch() {
+        try {
+            Path location = this.location;
+            MapId mapId;
 
-                this.processedPaths.removeAll(paths);
-                paths.clear();
+            while (location != null && this.readyImages.size() < PREFETCH && (mapId = pollToSend()) != null) {
+                ImagePayload payload = readImage(location, mapId);
+
+                if (payload != null) {
+                    this.readyImages.add(payload);
+                }
             }
-        });
+        } finally {
+            this.prefetching.set(false);
+        }
     }
 
     /**
-     * Pick the first map to send in the list to send, and send it to the server.
+     * @return the payload of a local image, null if it can't be read or the server already has the same pixels.
      */
-    private void sendNextPacket() {
+    private ImagePayload readImage(Path location, MapId mapId) {
         try {
-            if (this.init && this.location != null && !this.mapsToSend.isEmpty()) {
-                MapId mapId = this.mapsToSend.poll();
-                Path path = mapId.getPath(this.location);
-                ImagePayload payload = new ImagePayload(mapId.world(), mapId.type(), mapId.x(), mapId.y(), Files.readAllBytes(path),
-                                                        path.toFile().lastModified());
-                ClientPlayNetworking.send(payload);
+            Path path = mapId.getPath(location);
+            ImagePayload payload;
+            ReentrantLock lock = this.tileLocks.get(mapId);
+            lock.lock();
+            try {
+                byte[] image = Files.readAllBytes(path);
+                if (image.length > ImageChunkPayload.MAX_IMAGE_SIZE) {
+                    JourneyMapShare.LOGGER.warn("Skipped image {} of {} bytes, too big to be sent", mapId, image.length);
+                    return null;
+                }
+
+                payload = new ImagePayload(mapId.world(), mapId.type(), mapId.x(), mapId.y(), image, path.toFile().lastModified(),
+                                           TileMerger.get().hash(image));
+            } finally {
+                lock.unlock();
+            }
+
+            //The server already has the same pixels
+            if (this.serverHashes.getOrDefault(mapId, 0L) == payload.getHash()) {
+                JourneyMapShare.LOGGER.debug("Skipped unchanged image {}", payload);
+                return null;
             }
+
+            //Once merged, the server has these pixels or sends back the result
+            this.serverHashes.put(mapId, payload.getHash());
+            return payload;
         } catch (IOException e) {
-            JourneyMapShare.LOGGER.error("Error while sending image", e);
+            JourneyMapShare.LOGGER.error("Error while sending image {}", mapId, e);
+            return null;
         }
     }
 
     private void cleanUp() {
         this.init = false;
-        if (this.watchService != null) {
-            try {
-                this.watchService.close();
-                JourneyMapShare.LOGGER.debug("WatchService closed");
-            } catch (IOException e) {
-                JourneyMapShare.LOGGER.error("An error occurred while closing watch service", e);
-            }
+        if (this.watcher != null) {
+            this.watcher.close();
+            this.watcher = null;
         }
 
-        if (this.executor != null) {
-            this.executor.shutdownNow();
-            JourneyMapShare.LOGGER.debug("Executor shutdown");
+        synchronized (this.mapsToSend) {
+            this.mapsToSend.clear();
         }
 
-        this.mapsToSend.clear();
+        this.readyImages.clear();
+        this.packetsToSend.clear();
+        this.chunksToSend.clear();
+        this.deferredPackets.clear();
+        this.backoffUntil = 0;
+        this.uploadRate = MAX_UPLOAD_RATE;
+        this.uploadCredit = 0;
+        this.writtenPaths.clear();
+        this.localIndex = null;
+        this.serverHashes.clear();
         this.location = null;
     }
 }
@@ -0,0 +1,105 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Versions of the images lists received from the server for each world and type, with the time of the sync, so the next syncs only receive the
+ * images updated since. Saved next to the images of the server.
+ */
+public class SyncState {
+
+    private static final String EPOCH = "epoch";
+
+    private final Path file;
+
+    private final Properties properties = new Properties();
+
+    private SyncState(Path file) {
+        this.file = file;
+    }
+
+    public static SyncState load(Path location) {
+        SyncState state = new SyncState(location.resolve(JourneyMapShare.MOD_ID + "-sync.properties"));
+
+        if (Files.exists(state.file)) {
+            try (Reader reader = Files.newBufferedReader(state.file)) {
+                state.properties.load(reader);
+            } catch (IOException | IllegalArgumentException e) {
+                JourneyMapShare.LOGGER.error("An error occurred while reading sync state {}", state.file, e);
+                state.properties.clear();
+            }
+        }
+
+        //Images deleted locally must be listed again, forget their version
+        for (String key : state.properties.stringPropertyNames()) {
+            if (!EPOCH.equals(key) && !Files.isDirectory(location.resolve(key))) {
+                state.properties.remove(key);
+            }
+        }
+
+        return state;
+    }
+
+    public long getEpoch() {
+        return parse(this.properties.getProperty(EPOCH), 0);
+    }
+
+    /**
+     * @return the version of the last list received for each world and type.
+     */
+    public Map<String, Long> getVersions() {
+        Map<String, Long> versions = new HashMap<>();
+        for (String key : this.properties.stringPropertyNames()) {
+            if (!EPOCH.equals(key)) {
+                versions.put(key, parse(this.properties.getProperty(key).split(",")[0], 0));
+            }
+        }
+
+        return versions;
+    }
+
+    /**
+     * @return the local time of the last sync of the world and type, 0 if it was never synced.
+     */
+    public long getSyncTime(String key) {
+        String value = this.properties.getProperty(key);
+
+        if (value == null || value.indexOf(',') < 0) {
+            return 0;
+        }
+
+        return parse(value.substring(value.indexOf(',') + 1), 0);
+    }
+
+    public synchronized void update(long epoch, String key, long version, long syncTime) {
+        if (epoch != getEpoch()) {
+            this.properties.clear();
+            this.properties.setProperty(EPOCH, String.valueOf(epoch));
+        }
+
+        this.properties.setProperty(key, version + "," + syncTime);
+    }
+
+    public synchronized void save() {
+        try (Writer writer = Files.newBufferedWriter(this.file)) {
+            this.properties.store(writer, "JourneyMap Share sync state, delete to sync everything again");
+        } catch (IOException e) {
+            JourneyMapShare.LOGGER.error("An error occurred while writing sync state {}", this.file, e);
+        }
+    }
+
+    private static long parse(String value, long defaultValue) {
+        try {
+            return value == null ? defaultValue : Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+}
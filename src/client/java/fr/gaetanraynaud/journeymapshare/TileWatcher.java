@@ -0,0 +1,177 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Watch the images of each world and type folder. Each folder is registered on its own, so it works on all systems, and the type folders created
+ * later are registered when they appear.
+ * <p>
+ * JourneyMap rewrites an image many times while the player moves, the events of an image are only reported once no new event came for the debounce
+ * window.
+ */
+public class TileWatcher implements AutoCloseable {
+
+    private final Path location;
+
+    private final long debounce;
+
+    private final Consumer<MapId> listener;
+
+    private final WatchService watchService;
+
+    private final Thread thread;
+
+    /**
+     * Last event time of each changed image, oldest first.
+     */
+    private final LinkedHashMap<Path, Long> pending = new LinkedHashMap<>();
+
+    public TileWatcher(Path location, long debounce, Consumer<MapId> listener) throws IOException {
+        this.location = location;
+        this.debounce = Math.max(0, debounce);
+        this.listener = listener;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        this.thread = new Thread(this::run, JourneyMapShare.MOD_ID + "-watcher");
+        this.thread.setDaemon(true);
+
+        for (String world : JourneyMapShare.WORLDS_TO_WATCH.keySet()) {
+            Path path = this.location.resolve(world).normalize().toAbsolutePath();
+            path.toFile().mkdirs();
+            path.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE);
+
+            try (Stream<Path> stream = Files.list(path)) {
+                for (Path folder : stream.filter(Files::isDirectory).toList()) {
+                    registerType(folder, false);
+                }
+            }
+
+            JourneyMapShare.LOGGER.debug("Starting watching: {}", path);
+        }
+    }
+
+    public void start() {
+        this.thread.start();
+    }
+
+    private void registerType(Path folder, boolean created) throws IOException {
+        folder.register(this.watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+
+        //Images written before the folder was registered have no event
+        if (created) {
+            try (Stream<Path> stream = Files.list(folder)) {
+                for (Path path : (Iterable<Path>) stream::iterator) {
+                    onEvent(path);
+                }
+            }
+        }
+    }
+
+    private void run() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = this.pending.isEmpty() ? this.watchService.take() : this.watchService.poll(nextDeadline(), TimeUnit.MILLISECONDS);
+
+                if (key != null) {
+                    processKey(key);
+                }
+
+                flush();
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            //Closed
+        }
+    }
+
+    private void processKey(WatchKey key) {
+        Path folder = (Path) key.watchable();
+        boolean worldFolder = folder.getParent().equals(this.location.normalize().toAbsolutePath());
+
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                JourneyMapShare.LOGGER.debug("Watch events lost for {}", folder);
+            } else if (event.context() instanceof Path path) {
+                path = folder.resolve(path).normalize().toAbsolutePath();
+
+                if (!worldFolder) {
+                    onEvent(path);
+                } else if (Files.isDirectory(path)) {
+                    try {
+                        registerType(path, true);
+                        JourneyMapShare.LOGGER.debug("Starting watching: {}", path);
+                    } catch (IOException e) {
+                        JourneyMapShare.LOGGER.error("An error occurred while watching {}", path, e);
+                    }
+                }
+            }
+        }
+
+        key.reset();
+    }
+
+    private void onEvent(Path path) {
+        if (JourneyMapShare.FILENAME_MATCH.test(path.getFileName().toString())) {
+            //Move the image at the end, its window starts over
+            this.pending.remove(path);
+            this.pending.put(path, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Report the images without event since the debounce window.
+     */
+    private void flush() {
+        long limit = System.currentTimeMillis() - this.debounce;
+
+        for (Iterator<Map.Entry<Path, Long>> iterator = this.pending.entrySet().iterator(); iterator.hasNext(); ) {
+            Map.Entry<Path, Long> entry = iterator.next();
+
+            if (entry.getValue() > limit) {
+                break;
+            }
+
+            iterator.remove();
+            Path path = entry.getKey();
+
+            try {
+                JourneyMapShare.LOGGER.debug("Watch event received for image: {}", path);
+                Pair<Integer, Integer> pos = JourneyMapShareUtils.pathToXY(path);
+                this.listener.accept(new MapId(path.getParent().getParent().getFileName().toString(), path.getParent().getFileName().toString(),
+                                               pos.getKey(), pos.getValue()));
+            } catch (Exception e) {
+                JourneyMapShare.LOGGER.error("Error while sending image {}", path, e);
+            }
+        }
+    }
+
+    private long nextDeadline() {
+        return Math.max(1, this.pending.firstEntry().getValue() + this.debounce - System.currentTimeMillis());
+    }
+
+    @Override
+    public void close() {
+        this.thread.interrupt();
+
+        try {
+            this.watchService.close();
+            JourneyMapShare.LOGGER.debug("WatchService closed");
+        } catch (IOException e) {
+            JourneyMapShare.LOGGER.error("An error occurred while closing watch service", e);
+        }
+    }
+}
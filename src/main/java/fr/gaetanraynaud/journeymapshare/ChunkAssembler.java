@@ -0,0 +1,163 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import fr.gaetanraynaud.journeymapshare.network.ImageChunkPayload;
+import fr.gaetanraynaud.journeymapshare.network.ImagePayload;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Rebuild the images received in chunks. The chunks of a transfer are copied into a pooled buffer, the image is only copied once to its own array
+ * when complete. Incomplete transfers are kept for {@link #TIMEOUT} milliseconds, so they can be resumed after a reconnection.
+ * <p>
+ * The sizes come from the sender, so images bigger than {@link ImageChunkPayload#MAX_IMAGE_SIZE} are rejected and at most {@link #MAX_TRANSFERS}
+ * transfers are kept, the least recently updated one is dropped for a new one.
+ */
+public class ChunkAssembler {
+
+    public static final long TIMEOUT = 5 * 60 * 1000;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final int POOL_SIZE = 4;
+
+    private static final int MAX_TRANSFERS = 4;
+
+    private final Map<Integer, Transfer> transfers = new HashMap<>();
+
+    private final ArrayDeque<byte[]> pool = new ArrayDeque<>();
+
+    /**
+     * Add a chunk to its transfer.
+     *
+     * @return the state of the transfer after the chunk, with the image when it is complete.
+     */
+    public synchronized Result accept(ImageChunkPayload chunk) {
+        long now = System.currentTimeMillis();
+        expire(now);
+
+        Transfer transfer = this.transfers.get(chunk.getTransferId());
+        if (transfer != null && !transfer.matches(chunk)) {
+            //Same identifier for another image, the sender restarted
+            release(this.transfers.remove(chunk.getTransferId()));
+            transfer = null;
+        }
+
+        if (transfer == null) {
+            if (chunk.getOffset() != 0 || chunk.getSize() <= 0 || chunk.getSize() > ImageChunkPayload.MAX_IMAGE_SIZE) {
+                //The beginning of the image was lost or the image is invalid, ask it again
+                return new Result(0, true, null);
+            }
+
+            if (this.transfers.size() >= MAX_TRANSFERS) {
+                this.transfers.values()
+                              .stream()
+                              .min(Comparator.comparingLong(t -> t.lastUpdate))
+                              .ifPresent(oldest -> release(this.transfers.remove(oldest.id)));
+            }
+
+            transfer = new Transfer(chunk, chunk.getSize() <= BUFFER_SIZE && !this.pool.isEmpty() ? this.pool.pop() : null);
+            this.transfers.put(chunk.getTransferId(), transfer);
+        }
+
+        if (chunk.getOffset() != transfer.received) {
+            //Missing or already received chunks, continue from what was received
+            return new Result(transfer.received, true, null);
+        }
+
+        int length = Math.min(chunk.getData().length, transfer.size - transfer.received);
+        System.arraycopy(chunk.getData(), 0, transfer.buffer, transfer.received, length);
+        transfer.received += length;
+        transfer.lastUpdate = now;
+
+        if (transfer.received < transfer.size) {
+            return new Result(transfer.received, false, null);
+        }
+
+        this.transfers.remove(chunk.getTransferId());
+        byte[] image = Arrays.copyOf(transfer.buffer, transfer.size);
+        release(transfer);
+        MapId mapId = transfer.mapId;
+
+        return new Result(transfer.received, false, new ImagePayload(mapId.world(), mapId.type(), mapId.x(), mapId.y(), image, transfer.timestamp,
+                                                                      transfer.hash));
+    }
+
+    /**
+     * Drop a transfer, its next chunks are ignored.
+     *
+     * @return false if there was no such transfer.
+     */
+    public synchronized boolean abort(int transferId) {
+        Transfer transfer = this.transfers.remove(transferId);
+        if (transfer != null) {
+            release(transfer);
+        }
+
+        return transfer != null;
+    }
+
+    public synchronized void clear() {
+        this.transfers.clear();
+    }
+
+    private void expire(long now) {
+        for (Iterator<Transfer> iterator = this.transfers.values().iterator(); iterator.hasNext(); ) {
+            Transfer transfer = iterator.next();
+
+            if (now - transfer.lastUpdate > TIMEOUT) {
+                iterator.remove();
+                release(transfer);
+            }
+        }
+    }
+
+    private void release(Transfer transfer) {
+        if (transfer.buffer.length == BUFFER_SIZE && this.pool.size() < POOL_SIZE) {
+            this.pool.push(transfer.buffer);
+        }
+    }
+
+    /**
+     * @param received the number of bytes of the image received in order
+     * @param resend   true if the sender must send again from received
+     * @param image    the complete image, null until the last chunk
+     */
+    public record Result(int received, boolean resend, ImagePayload image) {}
+
+    private static class Transfer {
+
+        private final int id;
+
+        private final MapId mapId;
+
+        private final long timestamp;
+
+        private final long hash;
+
+        private final int size;
+
+        private final byte[] buffer;
+
+        private int received;
+
+        private long lastUpdate = System.currentTimeMillis();
+
+        private Transfer(ImageChunkPayload chunk, byte[] pooled) {
+            this.id = chunk.getTransferId();
+            this.mapId = chunk.getMapId();
+            this.timestamp = chunk.getTimestamp();
+            this.hash = chunk.getHash();
+            this.size = chunk.getSize();
+            this.buffer = pooled != null ? pooled : new byte[chunk.getSize() <= BUFFER_SIZE ? BUFFER_SIZE : chunk.getSize()];
+        }
+
+        private boolean matches(ImageChunkPayload chunk) {
+            return this.mapId.equals(chunk.getMapId()) && this.timestamp == chunk.getTimestamp() && this.size == chunk.getSize();
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.util.stream.Stream;
+
+/**
+ * Each image in its own png file, world/type/x,y.png like the folders of JourneyMap. The timestamp of an image is the last modified time of its file.
+ */
+public class FileTileStorage implements TileStorage {
+
+    private final Path location;
+
+    public FileTileStorage(Path location) {
+        this.location = location;
+    }
+
+    @Override
+    public Tile read(MapId mapId) throws IOException {
+        Path path = mapId.getPath(this.location);
+
+        try {
+            long timestamp = path.toFile().lastModified();
+            return new Tile(Files.readAllBytes(path), timestamp);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public long getTimestamp(MapId mapId) {
+        return mapId.getPath(this.location).toFile().lastModified();
+    }
+
+    /**
+     * Write the image in a temporary file moved over the previous one, so a crash never leaves a partial image. The temporary file is synced before
+     * the move, otherwise the move may reach the disk before the image.
+     */
+    @Override
+    public void write(MapId mapId, byte[] image, long timestamp) throws IOException {
+        Path path = mapId.getPath(this.location);
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        FileUtils.forceMkdirParent(path.toFile());
+
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(image);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            Files.setLastModifiedTime(tmp, FileTime.fromMillis(timestamp));
+            channel.force(true);
+        }
+
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void forEach(String world, String type, TileVisitor visitor) throws IOException {
+        Path folder = this.location.resolve(world).resolve(type);
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+
+        try (Stream<Path> stream = Files.list(folder)) {
+            for (Path path : (Iterable<Path>) stream::iterator) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return;
+                }
+
+                if (!JourneyMapShare.FILENAME_MATCH.test(path.getFileName().toString()) || !Files.isRegularFile(path)) {
+                    continue;
+                }
+
+                Pair<Integer, Integer> pos = JourneyMapShareUtils.pathToXY(path);
+                visitor.visit(pos.getLeft(), pos.getRight(), path.toFile().lastModified());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        //Nothing kept open
+    }
+}
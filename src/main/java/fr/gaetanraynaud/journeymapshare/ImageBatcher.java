@@ -0,0 +1,66 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import fr.gaetanraynaud.journeymapshare.network.ImagePayload;
+import fr.gaetanraynaud.journeymapshare.network.ImagesBatchPayload;
+import net.minecraft.network.packet.CustomPayload;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Group the images to send into {@link ImagesBatchPayload}s of the same world and type, up to {@link #BATCH_SIZE} bytes of images. A batch of a
+ * single image is sent as an {@link ImagePayload}.
+ */
+public class ImageBatcher {
+
+    public static final int BATCH_SIZE = 256 * 1024;
+
+    private final Consumer<CustomPayload> sender;
+
+    private final List<ImagePayload> images = new ArrayList<>();
+
+    private int size;
+
+    public ImageBatcher(Consumer<CustomPayload> sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * @return true if the image can be added to the current batch without sending it.
+     */
+    public boolean accepts(ImagePayload image) {
+        if (this.images.isEmpty()) {
+            return true;
+        }
+
+        ImagePayload first = this.images.getFirst();
+        return first.getWorld().equals(image.getWorld()) && first.getType().equals(image.getType()) &&
+               this.size + image.getImage().length <= BATCH_SIZE;
+    }
+
+    /**
+     * Add an image to the current batch, the batch is sent first if the image does not fit in it.
+     */
+    public void add(ImagePayload image) {
+        if (!accepts(image)) {
+            flush();
+        }
+
+        this.images.add(image);
+        this.size += image.getImage().length;
+    }
+
+    /**
+     * Send the current batch.
+     */
+    public void flush() {
+        if (this.images.isEmpty()) {
+            return;
+        }
+
+        this.sender.accept(this.images.size() == 1 ? this.images.getFirst() : new ImagesBatchPayload(List.copyOf(this.images)));
+        this.images.clear();
+        this.size = 0;
+    }
+}
@@ -1,10 +1,22 @@
 package fr.gaetanraynaud.journeymapshare;
 
+import fr.gaetanraynaud.journeymapshare.image.PixelBuffer;
+import fr.gaetanraynaud.journeymapshare.image.PngEncoder;
+import fr.gaetanraynaud.journeymapshare.image.TileDelta;
+import fr.gaetanraynaud.journeymapshare.image.TileMerger;
+import fr.gaetanraynaud.journeymapshare.network.BackoffPayload;
+import fr.gaetanraynaud.journeymapshare.network.ImageChunkAckPayload;
+import fr.gaetanraynaud.journeymapshare.network.ImageChunkPayload;
+import fr.gaetanraynaud.journeymapshare.network.ImageDeltaPayload;
 import fr.gaetanraynaud.journeymapshare.network.ImagePayload;
-import fr.gaetanraynaud.journeymapshare.network.ImageTimestamp;
+import fr.gaetanraynaud.journeymapshare.network.ImagesBatchPayload;
 import fr.gaetanraynaud.journeymapshare.network.ImagesListPayload;
 import fr.gaetanraynaud.journeymapshare.network.ImagesMetaListPayload;
+import fr.gaetanraynaud.journeymapshare.network.PayloadCompression;
+import fr.gaetanraynaud.journeymapshare.network.RegionsRequestPayload;
 import fr.gaetanraynaud.journeymapshare.network.SubscribePayload;
+import fr.gaetanraynaud.journeymapshare.network.TileTreePayload;
+import fr.gaetanraynaud.journeymapshare.network.TypesPayload;
 import net.fabricmc.api.ModInitializer;
 import net.fabricmc.fabric.api.entity.event.v1.ServerEntityWorldChangeEvents;
 import net.fabricmc.fabric.api.event.lifecycle.v1.ServerLifecycleEvents;
@@ -15,41 +27,41 @@ import net.fabricmc.fabric.api.networking.v1.ServerPlayConnectionEvents;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking;
 import net.fabricmc.fabric.api.networking.v1.ServerPlayNetworking.Context;
 import net.fabricmc.loader.api.FabricLoader;
+import net.minecraft.network.packet.CustomPayload;
 import net.minecraft.registry.RegistryKey;
 import net.minecraft.server.MinecraftServer;
 import net.minecraft.server.network.ServerPlayerEntity;
 import net.minecraft.server.world.ServerWorld;
 import net.minecraft.util.WorldSavePath;
 import net.minecraft.world.World;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.lang3.tuple.Pair;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.imageio.ImageIO;
-import java.awt.AlphaComposite;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.Function;
 import java.util.function.Predicate;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
+import java.util.zip.Deflater;
 
 public class JourneyMapShare implements ModInitializer {
 
@@ -62,21 +74,139 @@ public class JourneyMapShare implements ModInitializer {
 
     public static final Logger LOGGER = LoggerFactory.getLogger(MOD_ID);
 
-    private final Map<RegistryKey<World>, Map<String, Set<ImageTimestamp>>> maps = WORLDS_TO_WATCH.values()
-                                                                                                  .stream()
-                                                                                                  .collect(Collectors.toMap(Function.identity(),
-                                                                                                                            s -> new ConcurrentHashMap<>()));
+    private static final int STATS_INTERVAL = 20 * 30;
+
+    /**
+     * Ticks between the updates of the positions of the players, to send the images closest to them first.
+     */
+    private static final int POSITION_INTERVAL = 20;
+
+    /**
+     * Maximum number of previous versions a delta applies to.
+     */
+    private static final int DELTA_VERSIONS = 8;
+
+    /**
+     * Maximum number of pending merges, each one keeps the pixels of an image in memory.
+     */
+    private static final int MAX_PENDING_MERGES = 64;
+
+    /**
+     * Seconds of uploads and requests a player can do at once before being limited.
+     */
+    private static final int RATE_BURST = 10;
+
+    /**
+     * Delay in milliseconds before uploading again the images dropped because the merge queue is full.
+     */
+    private static final long MERGE_QUEUE_FULL_DELAY = 5000;
+
+    /**
+     * Filter of the images encoded fast, with the fastest deflate level it gives images almost as small as the adaptive filter.
+     */
+    private static final PngEncoder.Filter FAST_FILTER = PngEncoder.Filter.SUB;
+
+    /**
+     * Ticks between the searches of images encoded fast to compress again.
+     */
+    private static final int RECOMPRESS_INTERVAL = 20 * 10;
+
+    /**
+     * Time in milliseconds without change before an image encoded fast is compressed again.
+     */
+    private static final long RECOMPRESS_DELAY = 60 * 1000;
+
+    /**
+     * Maximum number of images compressed again at each search, so the merge workers stay available for the uploads.
+     */
+    private static final int RECOMPRESS_BATCH = 64;
+
+    private final Map<RegistryKey<World>, Map<String, TileIndex>> maps = WORLDS_TO_WATCH.values()
+                                                                                        .stream()
+                                                                                        .collect(Collectors.toMap(Function.identity(),
+                                                                                                                  s -> new ConcurrentHashMap<>()));
 
     private final Map<UUID, RegistryKey<World>> subscribedPlayers = new ConcurrentHashMap<>();
 
-    private final ConcurrentHashMap<UUID, ConcurrentLinkedQueue<MapId>> mapsToSend = new ConcurrentHashMap<>();
+    /**
+     * Version of the index of each world and type in the last images list sent to each player.
+     */
+    private final Map<UUID, Map<String, Long>> syncedVersions = new ConcurrentHashMap<>();
+
+    /**
+     * Players which already have images from a previous sync, they get the {@link TileHashTree} instead of the full images list.
+     */
+    private final Set<UUID> reconciledPlayers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Players which asked for compressed images lists.
+     */
+    private final Set<UUID> compressedPlayers = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Types of images each player gets, all types for the players which are not in it.
+     */
+    private final Map<UUID, Set<String>> subscribedTypes = new ConcurrentHashMap<>();
+
+    /**
+     * Images uploaded in chunks by each player.
+     */
+    private final Map<UUID, ChunkAssembler> chunkAssemblers = new ConcurrentHashMap<>();
+
+    /**
+     * Images waiting for the end of the quiet period of their tile to be written.
+     */
+    private final Map<MapId, PendingMerge> pendingMerges = new ConcurrentHashMap<>();
+
+    /**
+     * Images encoded fast while the merge workers were busy, with their timestamp, to compress them again later.
+     */
+    private final Map<MapId, Long> fastEncoded = new ConcurrentHashMap<>();
+
+    /**
+     * Rate limits of the uploaded bytes of each player.
+     */
+    private final Map<UUID, TokenBucket> uploadBuckets = new ConcurrentHashMap<>();
+
+    /**
+     * Rate limits of the images asked by each player.
+     */
+    private final Map<UUID, TokenBucket> requestBuckets = new ConcurrentHashMap<>();
 
-    private boolean init = false;
+    /**
+     * Reused pixels of the pending merges.
+     */
+    private final Deque<PixelBuffer> pixelsPool = new ArrayDeque<>();
+
+    private JourneyMapShareConfig config;
+
+    private SendScheduler sendScheduler;
+
+    private TileCache tileCache;
+
+    private final TileLocks tileLocks = new TileLocks(64);
 
-    private Path location;
+    private TileExecutor mergeExecutor;
+
+    private ExecutorService backgroundExecutor;
+
+    private volatile boolean init = false;
+
+    private volatile Path location;
+
+    private volatile TileStorage storage;
+
+    /**
+     * Identify the indexes loaded at startup, versions sent before a restart can't be compared to the new ones.
+     */
+    private long epoch;
 
     @Override
     public void onInitialize() {
+        this.config = JourneyMapShareConfig.load();
+        this.sendScheduler = new SendScheduler(this.config.getSendBytesPerTick(), this.config.getSendBytesPerTickPerPlayer());
+        this.tileCache = new TileCache(this.config.getCacheSize());
+
         //Prepare local disk
         ServerLifecycleEvents.SERVER_STARTED.register(this::init);
 
@@ -89,20 +219,37 @@ public class JourneyMapShare implements ModInitializer {
         //Register player changing dimension to send him out of date images for this dimension
         ServerEntityWorldChangeEvents.AFTER_PLAYER_CHANGE_WORLD.register(this::playerChangeWorld);
 
-        //Register a task to send 1 packet at each tick
+        //Register a task to send the waiting images at each tick
         ServerTickEvents.END_SERVER_TICK.register(this::sendNextPacket);
+        ServerTickEvents.END_SERVER_TICK.register(this::recompressColdImages);
 
         //Packets handlers
         PayloadTypeRegistry.playS2C().register(ImagesMetaListPayload.ID, ImagesMetaListPayload.CODEC);
         PayloadTypeRegistry.playS2C().register(ImagePayload.ID, ImagePayload.CODEC);
+        PayloadTypeRegistry.playS2C().register(TileTreePayload.ID, TileTreePayload.CODEC);
+        PayloadTypeRegistry.playS2C().register(ImageChunkPayload.ID, ImageChunkPayload.CODEC);
+        PayloadTypeRegistry.playS2C().register(ImageDeltaPayload.ID, ImageDeltaPayload.CODEC);
+        PayloadTypeRegistry.playS2C().register(ImagesBatchPayload.ID, ImagesBatchPayload.CODEC);
+        PayloadTypeRegistry.playS2C().register(BackoffPayload.ID, BackoffPayload.CODEC);
         PayloadTypeRegistry.playC2S().register(ImagePayload.ID, ImagePayload.CODEC);
+        PayloadTypeRegistry.playC2S().register(ImagesBatchPayload.ID, ImagesBatchPayload.CODEC);
+        PayloadTypeRegistry.playC2S().register(ImageChunkPayload.ID, ImageChunkPayload.CODEC);
+        PayloadTypeRegistry.playC2S().register(ImageChunkAckPayload.ID, ImageChunkAckPayload.CODEC);
         PayloadTypeRegistry.playC2S().register(SubscribePayload.ID, SubscribePayload.CODEC);
         PayloadTypeRegistry.playC2S().register(ImagesListPayload.ID, ImagesListPayload.CODEC);
-        ServerPlayNetworking.registerGlobalReceiver(ImagePayload.ID,
-                                                    (payload, context) -> context.server().execute(() -> processImagePayload(payload, context)));
+        PayloadTypeRegistry.playC2S().register(RegionsRequestPayload.ID, RegionsRequestPayload.CODEC);
+        PayloadTypeRegistry.playC2S().register(TypesPayload.ID, TypesPayload.CODEC);
+        ServerPlayNetworking.registerGlobalReceiver(ImagePayload.ID, (payload, context) -> receiveImages(List.of(payload), context));
+        ServerPlayNetworking.registerGlobalReceiver(ImagesBatchPayload.ID, (payload, context) -> receiveImages(payload.getImages(), context));
+        ServerPlayNetworking.registerGlobalReceiver(ImageChunkPayload.ID, this::receiveImageChunkPayload);
+        ServerPlayNetworking.registerGlobalReceiver(ImageChunkAckPayload.ID, (payload, context) -> context.server().execute(
+                () -> this.sendScheduler.acknowledge(context.player().getUuid(), payload.transferId(), payload.offset(), payload.resend())));
         ServerPlayNetworking.registerGlobalReceiver(SubscribePayload.ID, (payload, context) -> context.server().execute(() -> subscribe(context, payload)));
         ServerPlayNetworking.registerGlobalReceiver(ImagesListPayload.ID,
                                                     (payload, context) -> context.server().execute(() -> handleListRequest(context, payload)));
+        ServerPlayNetworking.registerGlobalReceiver(RegionsRequestPayload.ID,
+                                                    (payload, context) -> context.server().execute(() -> handleRegionsRequest(context, payload)));
+        ServerPlayNetworking.registerGlobalReceiver(TypesPayload.ID, (payload, context) -> context.server().execute(() -> changeTypes(context, payload)));
     }
 
     private void init(MinecraftServer server) {
@@ -112,139 +259,519 @@ public class JourneyMapShare implements ModInitializer {
         }
 
         this.location = server.getSavePath(WorldSavePath.ROOT).toAbsolutePath().resolve("journeymap-share");
+        TileStorage backend = "regions".equals(this.config.getStorage()) ? new RegionTileStorage(this.location) : new FileTileStorage(this.location);
+        this.storage = this.config.getWriteDelay() > 0 ? new WriteBehindTileStorage(backend, this.config.getWriteDelay()) : backend;
+        this.epoch = System.currentTimeMillis();
+        this.mergeExecutor = new TileExecutor(MOD_ID + "-merge", this.config.getMergeThreads(), this.config.getMergeQueueSize());
         this.init = true;
         LOGGER.info("Started {} on server in folder {}!", MOD_ID, this.location);
 
-        try (ExecutorService executorService = Executors.newSingleThreadExecutor()) {
-            executorService.submit(() -> {
-                for (Map.Entry<String, RegistryKey<World>> world : WORLDS_TO_WATCH.entrySet()) {
-                    Path worldPath = this.location.resolve(world.getKey());
-                    worldPath.toFile().mkdirs();
+        //Load the indexes, then check them against the folders in background so the server does not wait for the listing
+        for (Map.Entry<String, RegistryKey<World>> world : WORLDS_TO_WATCH.entrySet()) {
+            Path worldPath = this.location.resolve(world.getKey());
+            worldPath.toFile().mkdirs();
 
-                    for (String type : JourneyMapShareUtils.worldToTypes(server.getWorld(world.getValue()))) {
-                        worldPath.resolve(type).toFile().mkdir();
-                    }
+            for (String type : JourneyMapShareUtils.worldToTypes(server.getWorld(world.getValue()))) {
+                worldPath.resolve(type).toFile().mkdir();
+                loadIndex(world.getKey(), type);
+            }
+        }
 
-                    try (Stream<Path> stream = Files.walk(worldPath)) {
-                        stream.filter(Files::isRegularFile).filter(path -> FILENAME_MATCH.test(path.getFileName().toString())).forEach(path -> {
-                            Pair<Integer, Integer> pos = JourneyMapShareUtils.pathToXY(path);
-
-                            MapId mapId = new MapId(world.getKey(), path.getParent().getFileName().toString(), pos.getLeft(), pos.getRight());
-                            this.maps.get(world.getValue())
-                                     .computeIfAbsent(mapId.type(), s -> ConcurrentHashMap.newKeySet())
-                                     .add(new ImageTimestamp(pos.getLeft(), pos.getRight(), path.toFile().lastModified()));
-                        });
-                    } catch (IOException e) {
-                        LOGGER.error("An error occurred while listing files", e);
+        Path location = this.location;
+        TileStorage storage = this.storage;
+        this.backgroundExecutor = Executors.newSingleThreadExecutor();
+        this.backgroundExecutor.submit(() -> {
+            for (String world : WORLDS_TO_WATCH.keySet()) {
+                Path worldPath = location.resolve(world);
+
+                try (Stream<Path> stream = Files.list(worldPath)) {
+                    for (Path folder : stream.filter(Files::isDirectory).toList()) {
+                        if (Thread.currentThread().isInterrupted()) {
+                            return;
+                        }
+
+                        String type = folder.getFileName().toString();
+                        TileIndex index = getIndex(world, type);
+                        if (index == null) {
+                            continue;
+                        }
+
+                        //Images stored as files before switching to regions
+                        if (backend instanceof RegionTileStorage regionStorage) {
+                            int imported = regionStorage.importFiles(world, type);
+                            if (imported > 0) {
+                                LOGGER.info("Imported {} images of {}/{} in regions", imported, world, type);
+                            }
+                        }
+
+                        index.check(storage, world, type);
                     }
+                } catch (IOException e) {
+                    LOGGER.error("An error occurred while listing files", e);
                 }
-            });
+            }
+
+            LOGGER.info("Checked indexes of {} images", this.maps.values().stream().flatMap(m -> m.values().stream()).mapToInt(TileIndex::size).sum());
+        });
+    }
+
+    /**
+     * Get the index of a world and type, the types come from the clients so only the indexes of the map types of the world loaded at startup are
+     * returned.
+     *
+     * @return null if the type is not a map type of the world.
+     */
+    private TileIndex getIndex(String world, String type) {
+        Map<String, TileIndex> indexes = this.maps.get(WORLDS_TO_WATCH.get(world));
+
+        return indexes == null ? null : indexes.get(type);
+    }
+
+    /**
+     * Load the index of a map type of a world from its file, at startup.
+     */
+    private void loadIndex(String world, String type) {
+        Path location = this.location;
+        Map<String, TileIndex> indexes = this.maps.get(WORLDS_TO_WATCH.get(world));
+
+        if (location == null || indexes == null) {
+            return;
         }
+
+        indexes.computeIfAbsent(type, t -> {
+            TileIndex index = new TileIndex(location.resolve(world).resolve(t + ".index"));
+            index.load();
+            return index;
+        });
     }
 
     private void cleanup() {
+        //Let the queued and running merges write their result before releasing the folder, they stop early once init is cleared
+        if (this.mergeExecutor != null) {
+            this.mergeExecutor.close();
+            this.mergeExecutor = null;
+        }
+
+        this.init = false;
+
+        //The workers are stopped, the images still waiting for their quiet period are written from here
+        for (Map.Entry<MapId, PendingMerge> pending : List.copyOf(this.pendingMerges.entrySet())) {
+            writeMerge(pending.getKey(), pending.getValue(), true);
+        }
+
+        if (this.backgroundExecutor != null) {
+            this.backgroundExecutor.shutdownNow();
+            try {
+                //The check may still be reading the storage
+                this.backgroundExecutor.awaitTermination(10, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            this.backgroundExecutor = null;
+        }
+
+        if (this.storage != null) {
+            this.storage.close();
+            this.storage = null;
+        }
+
         this.location = null;
-        this.mapsToSend.clear();
+        this.sendScheduler.clear();
+        this.tileCache.clear();
         this.subscribedPlayers.clear();
-        for (Map<String, Set<ImageTimestamp>> map : this.maps.values()) {
+        this.syncedVersions.clear();
+        this.reconciledPlayers.clear();
+        this.compressedPlayers.clear();
+        this.subscribedTypes.clear();
+        this.chunkAssemblers.clear();
+        this.uploadBuckets.clear();
+        this.requestBuckets.clear();
+        this.fastEncoded.clear();
+        for (Map<String, TileIndex> map : this.maps.values()) {
+            for (TileIndex index : map.values()) {
+                index.save();
+                index.close();
+            }
+
             map.clear();
         }
     }
 
-    private void processImagePayload(ImagePayload payload, Context context) {
+    /**
+     * Called on the network thread, admit the images within the upload rate of the player. The player uploads the other ones again after a delay.
+     *
+     * @param images images of a same world and type
+     */
+    private void receiveImages(List<ImagePayload> images, Context context) {
+        if (!this.init || images.isEmpty()) {
+            return;
+        }
+
+        TokenBucket bucket = this.uploadBuckets.computeIfAbsent(context.player().getUuid(),
+                                                                uuid -> new TokenBucket(this.config.getUploadBytesPerSecond(), RATE_BURST));
+        List<Long> rejected = new ArrayList<>();
+        long rejectedBytes = 0;
+        long delay = 0;
+
+        for (ImagePayload image : images) {
+            if (!bucket.tryTake(image.getImage().length)) {
+                rejected.add(JourneyMapShareUtils.toKey(image.getX(), image.getY()));
+                rejectedBytes += image.getImage().length;
+            } else if (!receiveImagePayload(image, context)) {
+                rejected.add(JourneyMapShareUtils.toKey(image.getX(), image.getY()));
+                delay = MERGE_QUEUE_FULL_DELAY;
+            }
+        }
+
+        if (!rejected.isEmpty()) {
+            delay = Math.max(delay, bucket.getWait(rejectedBytes));
+            LOGGER.debug("Rejected {} images from {}, retry in {} ms", rejected.size(), context.player(), delay);
+            ServerPlayNetworking.send(context.player(), new BackoffPayload(images.getFirst().getWorld(), images.getFirst().getType(), delay, rejected,
+                                                                           List.of(), List.of()));
+        }
+    }
+
+    /**
+     * Called on the network thread, merging is done by the merge workers so the server thread is not blocked by images decoding and disk writes.
+     *
+     * @return false if the image was dropped because the merge queue is full.
+     */
+    private boolean receiveImagePayload(ImagePayload payload, Context context) {
         LOGGER.debug("Received image payload {} from {}", payload, context.player());
 
-        if (!this.init || this.location == null) {
+        TileExecutor executor = this.mergeExecutor;
+        if (!this.init || executor == null) {
+            return true;
+        }
+
+        if (!executor.execute(payload.getMapId(), () -> processImagePayload(payload, context))) {
+            LOGGER.warn("Merge queue full, dropped image {} from {}", payload, context.player());
+            return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Called on the network thread, the image is merged once all its chunks are received. Each chunk is taken from the upload rate of the player
+     * before being buffered, the transfer is dropped at the first rejected chunk and the player uploads the image again after a delay.
+     */
+    private void receiveImageChunkPayload(ImageChunkPayload payload, Context context) {
+        if (!this.init) {
+            return;
+        }
+
+        UUID uuid = context.player().getUuid();
+        TokenBucket bucket = this.uploadBuckets.computeIfAbsent(uuid, p -> new TokenBucket(this.config.getUploadBytesPerSecond(), RATE_BURST));
+        ChunkAssembler assembler = this.chunkAssemblers.computeIfAbsent(uuid, p -> new ChunkAssembler());
+
+        if (!bucket.tryTake(payload.getData().length)) {
+            //Only the first rejected chunk of a transfer asks the image again
+            if (assembler.abort(payload.getTransferId()) || payload.getOffset() == 0) {
+                sendUploadBackoff(context, payload.getMapId(), bucket.getWait(payload.getSize()));
+            }
+
+            return;
+        }
+
+        ChunkAssembler.Result result = assembler.accept(payload);
+
+        if (result.resend()) {
+            LOGGER.debug("Dropped chunk {} from {}, expected offset {}", payload, context.player(), result.received());
+        } else if (result.image() != null && !receiveImagePayload(result.image(), context)) {
+            sendUploadBackoff(context, payload.getMapId(), MERGE_QUEUE_FULL_DELAY);
+        }
+    }
+
+    private void sendUploadBackoff(Context context, MapId mapId, long delay) {
+        LOGGER.debug("Rejected image {} from {}, retry in {} ms", mapId, context.player(), delay);
+        ServerPlayNetworking.send(context.player(), new BackoffPayload(mapId.world(), mapId.type(), delay,
+                                                                       List.of(JourneyMapShareUtils.toKey(mapId.x(), mapId.y())), List.of(),
+                                                                       List.of()));
+    }
+
+    /**
+     * Merge the received image into the pending merge of the tile, runs on the merge worker of the tile. The merged image is written and sent once
+     * no image of the tile was received for the quiet period.
+     */
+    private void processImagePayload(ImagePayload payload, Context context) {
+        TileStorage storage = this.storage;
+        TileExecutor executor = this.mergeExecutor;
+        if (!this.init || storage == null || executor == null) {
+            return;
+        }
+
+        TileIndex index = getIndex(payload.getWorld(), payload.getType());
+        if (index == null) {
+            return;
+        }
+
+        MapId mapId = payload.getMapId();
+        UUID sender = context.player().getUuid();
+        PendingMerge pending = this.pendingMerges.get(mapId);
+
+        //Same pixels as the image of the server, nothing to merge
+        if (pending == null && payload.getHash() != 0 && payload.getHash() == index.getHash(payload.getX(), payload.getY())) {
+            LOGGER.debug("Unchanged: {}", payload);
             return;
         }
 
         try {
-            Path path = payload.getPath(this.location);
-            FileUtils.forceMkdirParent(path.toFile());
+            if (pending != null) {
+                pending.merge(payload, sender);
+                LOGGER.debug("Merged: {}", payload);
+                return;
+            }
 
-            synchronized (path.toString()) {
-                boolean changed = false;
-                boolean sendToSender = false;
+            PixelBuffer pixels = borrowPixels();
+            ReentrantLock lock = this.tileLocks.get(mapId);
+            lock.lock();
+            try {
+                TileCache.CachedTile cached = this.tileCache.get(mapId);
+                TileStorage.Tile stored = cached == null ? storage.read(mapId) : new TileStorage.Tile(cached.image(), cached.timestamp());
 
-                if (!Files.exists(path)) {
-                    //If the file does not exist on server, just write it
-                    Files.write(path, payload.getImage(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-                    changed = true;
+                if (stored == null) {
+                    pending = PendingMerge.create(context.server(), pixels, payload, sender);
                     LOGGER.debug("Created: {}", payload);
                 } else {
-                    //If the file does exist, combine two versions and return result to the client
-                    boolean payloadMoreRecent = payload.getTimestamp() > path.toFile().lastModified();
-
-                    //Write the oldest image first then override with the new one
-                    byte[] oldData;
-                    byte[] newData;
-                    byte[] serverData;
-                    if (payloadMoreRecent) {
-                        newData = payload.getImage();
-                        oldData = Files.readAllBytes(path);
-                        serverData = oldData;
-                    } else {
-                        newData = Files.readAllBytes(path);
-                        oldData = payload.getImage();
-                        serverData = newData;
-                    }
+                    pending = PendingMerge.load(context.server(), pixels, stored);
+                    pending.merge(payload, sender);
+                    LOGGER.debug("Merged: {}", payload);
+                }
+            } catch (Exception e) {
+                releasePixels(pixels);
+                throw e;
+            } finally {
+                lock.unlock();
+            }
 
-                    try (ByteArrayInputStream oldImage = new ByteArrayInputStream(oldData); ByteArrayInputStream newImage = new ByteArrayInputStream(newData)) {
-                        BufferedImage destImage = ImageIO.read(oldImage);
+            //The pixels of each pending merge are kept in memory, above the limit the images are written right away
+            long quietPeriod = this.config.getMergeQuietPeriod();
+            if (quietPeriod > 0 && this.pendingMerges.size() < MAX_PENDING_MERGES) {
+                PendingMerge scheduled = pending;
+                this.pendingMerges.put(mapId, scheduled);
+                executor.schedule(mapId, () -> writeMerge(mapId, scheduled, false), quietPeriod);
+            } else {
+                writeMerge(mapId, pending, true);
+            }
+        } catch (Exception e) {
+            LOGGER.error("Error while processing image {}", payload, e);
+        }
+    }
 
-                        if (destImage == null) {
-                            LOGGER.error("An error occurred while processing payload {}", payload);
-                            return;
-                        }
+    /**
+     * Write a pending merge and queue it for the subscribed players, runs on the merge worker of the tile.
+     *
+     * @param force write it even if images of the tile were received during the quiet period
+     */
+    private void writeMerge(MapId mapId, PendingMerge pending, boolean force) {
+        if (!force) {
+            //Already written
+            if (this.pendingMerges.get(mapId) != pending) {
+                return;
+            }
 
-                        Graphics2D graphics = destImage.createGraphics();
-                        graphics.setComposite(AlphaComposite.DstOver);
-                        graphics.drawImage(ImageIO.read(newImage), null, 0, 0);
-                        graphics.dispose();
-
-                        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream(payload.getImage().length)) {
-                            ImageIO.write(destImage, "PNG", outputStream);
-                            destImage.flush();
-                            byte[] outArray = outputStream.toByteArray();
-
-                            //If content is the same as the one already on the server, don't write to disk
-                            if (!Arrays.equals(outArray, serverData)) {
-                                Files.write(path, outArray, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.CREATE);
-                                changed = true;
-                                LOGGER.debug("Updated: {}", payload);
-                            }
+            long wait = pending.getWait(this.config.getMergeQuietPeriod());
+            TileExecutor executor = this.mergeExecutor;
+            if (wait > 0 && executor != null) {
+                executor.schedule(mapId, () -> writeMerge(mapId, pending, false), wait);
+                return;
+            }
+        }
 
-                            sendToSender = !Arrays.equals(payload.getImage(), outArray);
-                        }
+        this.pendingMerges.remove(mapId, pending);
+        TileStorage storage = this.storage;
+        TileIndex index = getIndex(mapId.world(), mapId.type());
 
-                    }
+        try {
+            //If content is the same as the one already on the server, don't encode nor write to disk
+            if (storage == null || index == null || !pending.isChanged()) {
+                return;
+            }
+
+            //Under heavy merging the images are encoded fast, and compressed again once no player uploads them anymore
+            boolean fast = isMergeBusy();
+            ReentrantLock lock = this.tileLocks.get(mapId);
+            lock.lock();
+            try {
+                byte[] written = fast ? pending.encode(Deflater.BEST_SPEED, FAST_FILTER) :
+                                 pending.encode(this.config.getImageCompressionLevel(), this.config.getImageFilter());
+                long hash = pending.getHash();
+                TileCache.Delta delta = pending.getBlocks() == null ? null : createDelta(pending.getPixels(), pending.getBlocks(),
+                                                                                          index.getHash(mapId.x(), mapId.y()),
+                                                                                          this.tileCache.get(mapId), written);
+                storage.write(mapId, written, pending.getTimestamp());
+                this.tileCache.put(mapId, written, pending.getTimestamp(), hash, delta);
+                index.update(mapId.x(), mapId.y(), pending.getTimestamp(), hash);
+                if (fast) {
+                    this.fastEncoded.put(mapId, pending.getTimestamp());
+                } else {
+                    this.fastEncoded.remove(mapId);
                 }
 
-                if (changed) {
-                    payload.setTimestamp(path.toFile().lastModified());
-                    Map<String, Set<ImageTimestamp>> map = this.maps.get(WORLDS_TO_WATCH.get(payload.getWorld()));
+                LOGGER.debug("Updated: {} from {} players", mapId, pending.getSenders().size());
+            } finally {
+                lock.unlock();
+            }
+
+            pending.getServer().execute(() -> onImageMerged(mapId, pending.getServer(), pending.getSenders()));
+        } catch (Exception e) {
+            LOGGER.error("Error while writing image {}", mapId, e);
+        } finally {
+            releasePixels(pending.getPixels());
+        }
+    }
 
-                    if (map == null) {
-                        return;
-                    }
+    /**
+     * @return true if enough images are waiting to be merged to encode the merged images fast.
+     */
+    private boolean isMergeBusy() {
+        int threshold = this.config.getFastEncodeQueueSize();
+        TileExecutor executor = this.mergeExecutor;
 
-                    map.computeIfAbsent(payload.getType(), s -> ConcurrentHashMap.newKeySet())
-                       .add(payload.getImageTimestamp());
-                    UUID sender = context.player().getUuid();
-                    for (ServerPlayerEntity player : PlayerLookup.all(context.server())) {
-                        try {
-                            if ((sendToSender || !sender.equals(player.getUuid())) && this.subscribedPlayers.containsKey(player.getUuid()) &&
-                                this.subscribedPlayers.get(player.getUuid()).equals(WORLDS_TO_WATCH.get(payload.getWorld()))) {
-                                this.mapsToSend.computeIfAbsent(player.getUuid(), e -> new ConcurrentLinkedQueue<>()).add(payload.getMapId());
-                            }
-                        } catch (Exception e) {
-                            LOGGER.error("Error while sending image {} to {}", payload, player, e);
-                        }
-                    }
+        return threshold > 0 && executor != null && executor.getQueueSize() >= threshold;
+    }
+
+    /**
+     * Queue the images encoded fast that did not change for a while to be compressed again, only when the merge workers are idle.
+     */
+    private void recompressColdImages(MinecraftServer server) {
+        TileExecutor executor = this.mergeExecutor;
+        if (!this.init || executor == null || this.fastEncoded.isEmpty() || server.getTicks() % RECOMPRESS_INTERVAL != 0 ||
+            executor.getQueueSize() > 0) {
+            return;
+        }
+
+        long coldTime = System.currentTimeMillis() - RECOMPRESS_DELAY;
+        int queued = 0;
+
+        for (Map.Entry<MapId, Long> entry : this.fastEncoded.entrySet()) {
+            if (queued >= RECOMPRESS_BATCH) {
+                break;
+            }
+
+            MapId mapId = entry.getKey();
+            long timestamp = entry.getValue();
+            if (timestamp < coldTime && this.fastEncoded.remove(mapId, timestamp)) {
+                if (!executor.execute(mapId, () -> recompress(mapId, timestamp))) {
+                    this.fastEncoded.putIfAbsent(mapId, timestamp);
+                    break;
                 }
+
+                queued++;
+            }
+        }
+    }
+
+    /**
+     * Encode again an image encoded fast with the image compression level and filter, runs on the merge worker of the tile. The cached image keeps
+     * the fast encoding until it is evicted, it has the same pixels.
+     */
+    private void recompress(MapId mapId, long timestamp) {
+        TileStorage storage = this.storage;
+        //The pending merge writes the image again
+        if (storage == null || this.pendingMerges.containsKey(mapId)) {
+            return;
+        }
+
+        PixelBuffer pixels = borrowPixels();
+        ReentrantLock lock = this.tileLocks.get(mapId);
+        lock.lock();
+        try {
+            TileStorage.Tile stored = storage.read(mapId);
+            //Written again since
+            if (stored == null || stored.timestamp() != timestamp) {
+                return;
+            }
+
+            TileMerger merger = TileMerger.get();
+            merger.decode(stored.image(), pixels);
+            byte[] image = merger.encode(pixels, this.config.getImageCompressionLevel(), this.config.getImageFilter());
+
+            if (image.length < stored.image().length) {
+                storage.write(mapId, image, timestamp);
+                LOGGER.debug("Compressed {} from {} to {} bytes", mapId, stored.image().length, image.length);
             }
         } catch (Exception e) {
-            LOGGER.error("Error while processing image {}", payload, e);
+            LOGGER.error("Error while compressing image {}", mapId, e);
+        } finally {
+            lock.unlock();
+            releasePixels(pixels);
+        }
+    }
+
+    private PixelBuffer borrowPixels() {
+        synchronized (this.pixelsPool) {
+            PixelBuffer pixels = this.pixelsPool.poll();
+            return pixels == null ? new PixelBuffer() : pixels;
+        }
+    }
+
+    private void releasePixels(PixelBuffer pixels) {
+        synchronized (this.pixelsPool) {
+            if (this.pixelsPool.size() < MAX_PENDING_MERGES) {
+                this.pixelsPool.push(pixels);
+            }
+        }
+    }
+
+    /**
+     * Encode the blocks changed by the merges, so the players which have the previous version of the image only get them.
+     *
+     * @param baseHash hash of the image of the server before the merges
+     * @return the delta, null if the previous version is unknown or if the delta is not smaller than the whole image.
+     */
+    private static TileCache.Delta createDelta(PixelBuffer pixels, long[] blocks, long baseHash, TileCache.CachedTile cached, byte[] written) {
+        if (baseHash == 0) {
+            return null;
+        }
+
+        long[] baseHashes = new long[] {baseHash};
+
+        //Players may not have received the previous delta yet, keep its blocks so it also applies to its base versions
+        TileCache.Delta previous = cached == null ? null : cached.delta();
+        if (previous != null && cached.hash() == baseHash && previous.blocks().length == blocks.length &&
+            previous.baseHashes().length < DELTA_VERSIONS) {
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] |= previous.blocks()[i];
+            }
+
+            baseHashes = Arrays.copyOf(previous.baseHashes(), previous.baseHashes().length + 1);
+            baseHashes[baseHashes.length - 1] = baseHash;
+        }
+
+        //Most of the image changed, it is smaller as a png
+        if (TileDelta.count(blocks) * 2 > TileDelta.blocks(pixels.getWidth(), pixels.getHeight())) {
+            return null;
+        }
+
+        byte[] data = TileDelta.encode(pixels, blocks);
+        return data.length < written.length ? new TileCache.Delta(baseHashes, blocks, data) : null;
+    }
+
+    /**
+     * Publish a merged image, runs on the server thread: queue the image for the subscribed players.
+     *
+     * @param senders players which uploaded an image of the tile, and if their image differs from the merged one
+     */
+    private void onImageMerged(MapId mapId, MinecraftServer server, Map<UUID, Boolean> senders) {
+        if (!this.init) {
+            return;
+        }
+
+        for (ServerPlayerEntity player : PlayerLookup.all(server)) {
+            try {
+                Boolean outdated = senders.get(player.getUuid());
+                if (!Boolean.FALSE.equals(outdated) && this.subscribedPlayers.containsKey(player.getUuid()) &&
+                    this.subscribedPlayers.get(player.getUuid()).equals(WORLDS_TO_WATCH.get(mapId.world())) &&
+                    isSubscribed(player.getUuid(), mapId.type())) {
+                    //The senders have their own version of the image, not the previous one of the server
+                    this.sendScheduler.add(player.getUuid(), mapId, outdated != null);
+                }
+            } catch (Exception e) {
+                LOGGER.error("Error while sending image {} to {}", mapId, player, e);
+            }
         }
     }
 
@@ -272,6 +799,30 @@ public class JourneyMapShare implements ModInitializer {
         valid &= "true".equals(payload.config().get("mapBlendWater"));
 
         if (valid) {
+            //The versions known by the client are only valid if the indexes were not reloaded since
+            if (payload.epoch() == this.epoch) {
+                this.syncedVersions.put(context.player().getUuid(), new ConcurrentHashMap<>(payload.versions()));
+            } else {
+                this.syncedVersions.remove(context.player().getUuid());
+            }
+
+            //A client which synced before a restart still has most of the images, only compare the hashes of the regions
+            if (payload.epoch() != 0) {
+                this.reconciledPlayers.add(context.player().getUuid());
+            } else {
+                this.reconciledPlayers.remove(context.player().getUuid());
+            }
+
+            if (payload.compression()) {
+                this.compressedPlayers.add(context.player().getUuid());
+            } else {
+                this.compressedPlayers.remove(context.player().getUuid());
+            }
+
+            setTypes(context.player().getUuid(), payload.types());
+
+            //Continue the transfers interrupted by a disconnection
+            this.sendScheduler.resume(context.player().getUuid());
             registerPlayerForWorld(context.player(), context.player().getEntityWorld().getRegistryKey());
         } else {
             this.subscribedPlayers.remove(context.player().getUuid());
@@ -284,7 +835,14 @@ public class JourneyMapShare implements ModInitializer {
         }
 
         this.subscribedPlayers.remove(player.getUuid());
-        this.mapsToSend.remove(player.getUuid());
+        this.syncedVersions.remove(player.getUuid());
+        this.reconciledPlayers.remove(player.getUuid());
+        this.compressedPlayers.remove(player.getUuid());
+        this.subscribedTypes.remove(player.getUuid());
+        this.chunkAssemblers.remove(player.getUuid());
+        this.uploadBuckets.remove(player.getUuid());
+        this.requestBuckets.remove(player.getUuid());
+        this.sendScheduler.suspend(player.getUuid());
     }
 
     private void playerChangeWorld(ServerPlayerEntity player, ServerWorld origin, ServerWorld destination) {
@@ -301,62 +859,246 @@ public class JourneyMapShare implements ModInitializer {
 
     private void registerPlayerForWorld(ServerPlayerEntity player, RegistryKey<World> world) {
         this.subscribedPlayers.put(player.getUuid(), world);
+        this.sendScheduler.setPosition(player.getUuid(), world.getValue().getPath(), JourneyMapShareUtils.blockToTile(player.getX()),
+                                       JourneyMapShareUtils.blockToTile(player.getZ()));
 
         for (String type : JourneyMapShareUtils.worldToTypes(player.getEntityWorld())) {
-            ServerPlayNetworking.send(player, new ImagesMetaListPayload(world.getValue().getPath(), type, this.maps.get(world).get(type)));
+            //The indexes of the types the player does not get are not even loaded
+            if (isSubscribed(player.getUuid(), type)) {
+                sendTypeList(player, world, type);
+            }
+        }
+    }
+
+    /**
+     * Send the images updated since the last list sent to the player for a type.
+     */
+    private void sendTypeList(ServerPlayerEntity player, RegistryKey<World> world, String type) {
+        TileIndex index = getIndex(world.getValue().getPath(), type);
+
+        if (index == null) {
+            return;
+        }
+
+        Map<String, Long> versions = this.syncedVersions.computeIfAbsent(player.getUuid(), p -> new ConcurrentHashMap<>());
+        String key = JourneyMapShareUtils.toSyncKey(world.getValue().getPath(), type);
+        long since = versions.getOrDefault(key, 0L);
+        long version = index.getVersion();
+
+        if (since > version) {
+            since = 0;
         }
+
+        if (since == 0 && this.reconciledPlayers.contains(player.getUuid())) {
+            TileHashTree tree = index.getTree();
+            ServerPlayNetworking.send(player, new TileTreePayload(world.getValue().getPath(), type, this.epoch, version, tree.getRoot(), tree.getRegions()));
+        } else {
+            sendImagesList(player, new ImagesMetaListPayload(world.getValue().getPath(), type, this.epoch, version, since == 0, index.getImages(since)));
+        }
+
+        versions.put(key, version);
     }
 
     /**
-     * Pick the first map to send in the first element in the list to send, and send it to all players waiting for it.
+     * Change the types of images a player gets: the lists of the new types are sent, the queued images of the other types are dropped.
+     */
+    private void changeTypes(Context context, TypesPayload payload) {
+        UUID uuid = context.player().getUuid();
+        RegistryKey<World> world = this.subscribedPlayers.get(uuid);
+
+        if (!this.init || world == null) {
+            return;
+        }
+
+        Set<String> previous = this.subscribedTypes.get(uuid);
+        setTypes(uuid, payload.types());
+        this.sendScheduler.removeIf(uuid, mapId -> !isSubscribed(uuid, mapId.type()));
+
+        for (String type : JourneyMapShareUtils.worldToTypes(context.player().getEntityWorld())) {
+            if (previous != null && !previous.contains(type) && isSubscribed(uuid, type)) {
+                sendTypeList(context.player(), world, type);
+            }
+        }
+
+        LOGGER.debug("Player {} now gets types {}", context.player(), payload.types().isEmpty() ? "all" : payload.types());
+    }
+
+    private void setTypes(UUID player, List<String> types) {
+        if (types.isEmpty()) {
+            this.subscribedTypes.remove(player);
+        } else {
+            this.subscribedTypes.put(player, Set.copyOf(types));
+        }
+    }
+
+    private boolean isSubscribed(UUID player, String type) {
+        Set<String> types = this.subscribedTypes.get(player);
+        return types == null || types.contains(type);
+    }
+
+    /**
+     * Send the images waiting in the queues, as much as the bytes budget of the tick allows, and send each image to all the players waiting for it.
+     * The images sent to a player during the tick are grouped in batches.
      */
     private void sendNextPacket(MinecraftServer server) {
         if (!this.init) {
             return;
         }
 
-        MapId mapId = null;
-        for (Map.Entry<UUID, ConcurrentLinkedQueue<MapId>> entry : this.mapsToSend.entrySet()) {
-            if (!entry.getValue().isEmpty()) {
-                mapId = entry.getValue().peek();
-                break;
+        if (server.getTicks() % POSITION_INTERVAL == 0) {
+            for (UUID uuid : this.subscribedPlayers.keySet()) {
+                ServerPlayerEntity player = server.getPlayerManager().getPlayer(uuid);
+
+                if (player != null) {
+                    this.sendScheduler.setPosition(uuid, player.getEntityWorld().getRegistryKey().getValue().getPath(),
+                                                   JourneyMapShareUtils.blockToTile(player.getX()), JourneyMapShareUtils.blockToTile(player.getZ()));
+                }
             }
         }
 
-        if (mapId != null) {
-            try {
-                Path path = mapId.getPath(this.location);
-                ImagePayload payload = new ImagePayload(mapId.world(), mapId.type(), mapId.x(), mapId.y(), Files.readAllBytes(path),
-                                                        path.toFile().lastModified());
-                for (Map.Entry<UUID, ConcurrentLinkedQueue<MapId>> entry : this.mapsToSend.entrySet()) {
-                    if (entry.getValue().contains(mapId)) {
-                        entry.getValue().remove(mapId);
-                        ServerPlayerEntity player = server.getPlayerManager().getPlayer(entry.getKey());
-
-                        if (player != null) {
-                            LOGGER.debug("Sent image {} to {}", payload, player);
-                            ServerPlayNetworking.send(player, payload);
-                        }
+        this.sendScheduler.tick(new SendScheduler.TileSender() {
+
+            private final Map<UUID, ImageBatcher> batchers = new HashMap<>();
+
+            @Override
+            public ImagePayload load(MapId mapId) throws IOException {
+                TileCache.CachedTile cached = JourneyMapShare.this.tileCache.get(mapId);
+                if (cached != null) {
+                    return new ImagePayload(mapId.world(), mapId.type(), mapId.x(), mapId.y(), cached.image(), cached.timestamp(), cached.hash());
+                }
+
+                //The tile is being merged, retry at next tick instead of blocking the server thread
+                ReentrantLock lock = JourneyMapShare.this.tileLocks.get(mapId);
+                if (!lock.tryLock()) {
+                    return null;
+                }
+
+                try {
+                    TileStorage.Tile tile = JourneyMapShare.this.storage.read(mapId);
+                    if (tile == null) {
+                        throw new NoSuchFileException(mapId.toString());
                     }
 
+                    TileIndex index = getIndex(mapId.world(), mapId.type());
+                    long hash = index == null ? 0 : index.getHash(mapId.x(), mapId.y());
+                    JourneyMapShare.this.tileCache.put(mapId, tile.image(), tile.timestamp(), hash);
+
+                    return new ImagePayload(mapId.world(), mapId.type(), mapId.x(), mapId.y(), tile.image(), tile.timestamp(), hash);
+                } finally {
+                    lock.unlock();
+                }
+            }
+
+            @Override
+            public ImageDeltaPayload loadDelta(MapId mapId, ImagePayload image) {
+                TileCache.CachedTile cached = JourneyMapShare.this.tileCache.get(mapId);
+                if (cached == null || cached.delta() == null || cached.hash() != image.getHash()) {
+                    return null;
                 }
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+
+                return new ImageDeltaPayload(mapId, cached.timestamp(), cached.hash(), cached.delta().baseHashes(), cached.delta().data());
+            }
+
+            @Override
+            public boolean send(UUID uuid, CustomPayload payload) {
+                ServerPlayerEntity player = server.getPlayerManager().getPlayer(uuid);
+
+                if (player == null) {
+                    return false;
+                }
+
+                LOGGER.debug("Sent {} to {}", payload, player);
+                if (payload instanceof ImagePayload image) {
+                    this.batchers.computeIfAbsent(uuid, p -> new ImageBatcher(batch -> ServerPlayNetworking.send(player, batch))).add(image);
+                } else {
+                    ServerPlayNetworking.send(player, payload);
+                }
+
+                return true;
+            }
+
+            @Override
+            public void flush() {
+                this.batchers.values().forEach(ImageBatcher::flush);
+            }
+        });
+
+        if (server.getTicks() % STATS_INTERVAL == 0 && LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Send queues: {}", this.sendScheduler.pollStats());
+            LOGGER.debug("Images cache: {}", this.tileCache.pollStats());
+            LOGGER.debug("Lists compression: {}", PayloadCompression.pollStats());
+            if (this.storage instanceof WriteBehindTileStorage writeBehind) {
+                LOGGER.debug("Images writes: {}", writeBehind.pollStats());
             }
         }
     }
 
+    /**
+     * Queue the asked images within the requests rate of the player, the player asks the other ones again after a delay.
+     */
     private void handleListRequest(Context context, ImagesListPayload payload) {
-        if (!this.init) {
+        if (!this.init || !isSubscribed(context.player().getUuid(), payload.getType()) || getIndex(payload.getWorld(), payload.getType()) == null) {
             return;
         }
 
-        ConcurrentLinkedQueue<MapId> queue = this.mapsToSend.computeIfAbsent(context.player().getUuid(), p -> new ConcurrentLinkedQueue<>());
+        TokenBucket bucket = this.requestBuckets.computeIfAbsent(context.player().getUuid(),
+                                                                 uuid -> new TokenBucket(this.config.getRequestedImagesPerSecond(), RATE_BURST));
+        long admitted = bucket.takeUpTo(payload.getImages().values().stream().mapToInt(List::size).sum());
+        List<Long> rejected = new ArrayList<>();
 
         for (Map.Entry<Integer, List<Integer>> entry : payload.getImages().entrySet()) {
             for (Integer y : entry.getValue()) {
-                queue.add(new MapId(payload.getWorld(), payload.getType(), entry.getKey(), y));
+                if (admitted-- > 0) {
+                    this.sendScheduler.add(context.player().getUuid(), new MapId(payload.getWorld(), payload.getType(), entry.getKey(), y), true);
+                } else {
+                    rejected.add(JourneyMapShareUtils.toKey(entry.getKey(), y));
+                }
             }
         }
+
+        if (!rejected.isEmpty()) {
+            long delay = bucket.getWait(rejected.size());
+            LOGGER.debug("Rejected {} images asked by {}, retry in {} ms", rejected.size(), context.player(), delay);
+            ServerPlayNetworking.send(context.player(),
+                                      new BackoffPayload(payload.getWorld(), payload.getType(), delay, List.of(), rejected, List.of()));
+        }
+    }
+
+    /**
+     * Send the full images list of the regions whose hashes differ on the client, each region counting as a request. The whole request is
+     * asked again after a delay when it exceeds the requests rate of the player, the client saves its sync version on each answer.
+     */
+    private void handleRegionsRequest(Context context, RegionsRequestPayload payload) {
+        if (!this.init || !isSubscribed(context.player().getUuid(), payload.type())) {
+            return;
+        }
+
+        TileIndex index = getIndex(payload.world(), payload.type());
+        if (index == null) {
+            return;
+        }
+
+        TokenBucket bucket = this.requestBuckets.computeIfAbsent(context.player().getUuid(),
+                                                                 uuid -> new TokenBucket(this.config.getRequestedImagesPerSecond(), RATE_BURST));
+        if (!bucket.tryTake(payload.regions().size())) {
+            long delay = bucket.getWait(payload.regions().size());
+            LOGGER.debug("Rejected {} regions asked by {}, retry in {} ms", payload.regions().size(), context.player(), delay);
+            ServerPlayNetworking.send(context.player(),
+                                      new BackoffPayload(payload.world(), payload.type(), delay, List.of(), List.of(), payload.regions()));
+            return;
+        }
+
+        long version = index.getVersion();
+        TileIndex.Images images = index.getImages(new HashSet<>(payload.regions()));
+        sendImagesList(context.player(), new ImagesMetaListPayload(payload.world(), payload.type(), this.epoch, version, true, images, payload.regions()));
+        LOGGER.debug("Sent {} images of {} regions to {}", images.size(), payload.regions().size(), context.player());
+    }
+
+    private void sendImagesList(ServerPlayerEntity player, ImagesMetaListPayload payload) {
+        if (this.compressedPlayers.contains(player.getUuid())) {
+            payload.setCompressionLevel(this.config.getCompressionLevel());
+        }
+
+        ServerPlayNetworking.send(player, payload);
     }
 }
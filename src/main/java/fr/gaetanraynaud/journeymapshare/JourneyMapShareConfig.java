@@ -0,0 +1,229 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import fr.gaetanraynaud.journeymapshare.image.PngEncoder;
+import net.fabricmc.loader.api.FabricLoader;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Settings of the mod, read from config/journeymap-share.properties. Missing keys are written back with their default value.
+ */
+public class JourneyMapShareConfig {
+
+    private final Properties properties = new Properties();
+
+    private boolean dirty = false;
+
+    public static JourneyMapShareConfig load() {
+        JourneyMapShareConfig config = new JourneyMapShareConfig();
+        Path path = FabricLoader.getInstance().getConfigDir().resolve(JourneyMapShare.MOD_ID + ".properties");
+
+        if (Files.exists(path)) {
+            try (Reader reader = Files.newBufferedReader(path)) {
+                config.properties.load(reader);
+            } catch (IOException e) {
+                JourneyMapShare.LOGGER.error("An error occurred while reading config {}", path, e);
+            }
+        }
+
+        //Read every key once so the defaults are written to the file
+        config.getMergeThreads();
+        config.getMergeQueueSize();
+        config.getMergeQuietPeriod();
+        config.getSendBytesPerTick();
+        config.getSendBytesPerTickPerPlayer();
+        config.getUploadBytesPerSecond();
+        config.getRequestedImagesPerSecond();
+        config.getCacheSize();
+        config.getWatchDebounce();
+        config.getCompressionLevel();
+        config.getTypes();
+        config.getStorage();
+        config.getWriteDelay();
+        config.getImageCompressionLevel();
+        config.getImageFilter();
+        config.getFastEncodeQueueSize();
+
+        if (config.dirty) {
+            try (Writer writer = Files.newBufferedWriter(path)) {
+                config.properties.store(writer, "JourneyMap Share");
+            } catch (IOException e) {
+                JourneyMapShare.LOGGER.error("An error occurred while writing config {}", path, e);
+            }
+        }
+
+        return config;
+    }
+
+    /**
+     * Number of threads used by the server to merge received images.
+     */
+    public int getMergeThreads() {
+        return getInt("mergeThreads", Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() / 2)));
+    }
+
+    /**
+     * Maximum number of images waiting to be merged by each merge thread, payloads above that are dropped.
+     */
+    public int getMergeQueueSize() {
+        return getInt("mergeQueueSize", 1024);
+    }
+
+    /**
+     * Time in milliseconds without upload of a tile before the server writes and sends its merged image, so the images uploaded at the same time by
+     * several players are encoded and sent once. 0 to write each merged image right away.
+     */
+    public long getMergeQuietPeriod() {
+        return getLong("mergeQuietPeriod", 1000);
+    }
+
+    /**
+     * Maximum number of bytes of images sent by the server at each tick, for all players.
+     */
+    public long getSendBytesPerTick() {
+        return getLong("sendBytesPerTick", 512 * 1024);
+    }
+
+    /**
+     * Maximum number of bytes of images sent by the server to a player at each tick.
+     */
+    public long getSendBytesPerTickPerPlayer() {
+        return getLong("sendBytesPerTickPerPlayer", 64 * 1024);
+    }
+
+    /**
+     * Maximum number of bytes of images a player can upload per second, the images above that are uploaded again later.
+     */
+    public long getUploadBytesPerSecond() {
+        return getLong("uploadBytesPerSecond", 512 * 1024);
+    }
+
+    /**
+     * Maximum number of images a player can ask per second, the images above that are asked again later.
+     */
+    public long getRequestedImagesPerSecond() {
+        return getLong("requestedImagesPerSecond", 128);
+    }
+
+    /**
+     * Maximum size in bytes of the images kept in memory by the server to send them without reading the disk.
+     */
+    public long getCacheSize() {
+        return getLong("cacheSize", 64 * 1024 * 1024);
+    }
+
+    /**
+     * Time in milliseconds without change before the client sends a modified image, JourneyMap writes an image many times while the player moves.
+     */
+    public long getWatchDebounce() {
+        return getLong("watchDebounce", 2000);
+    }
+
+    /**
+     * Deflate level, from 1 to 9, of the images lists exchanged with the server, 0 to not compress them.
+     */
+    public int getCompressionLevel() {
+        return getInt("compressionLevel", 6);
+    }
+
+    /**
+     * Types of images the client syncs, separated by commas, empty for all. The caves types are the numbers of the 16 blocks high layers.
+     */
+    public Set<String> getTypes() {
+        return parseTypes(getString("types", ""));
+    }
+
+    /**
+     * How the server stores the images: "files" for a png file per image, "regions" to pack them in region files. Switching to regions imports the
+     * existing png files at startup.
+     */
+    public String getStorage() {
+        return getString("storage", "files");
+    }
+
+    /**
+     * Time in milliseconds the server keeps a merged image in memory before writing it, so an image merged many times is written once. 0 to write
+     * the images right after their merge.
+     */
+    public long getWriteDelay() {
+        return getLong("writeDelay", 5000);
+    }
+
+    /**
+     * Deflate level, from 1 to 9, of the images merged by the server. Higher levels give smaller images but take longer to encode.
+     */
+    public int getImageCompressionLevel() {
+        return getInt("imageCompressionLevel", PngEncoder.DEFAULT_LEVEL);
+    }
+
+    /**
+     * Filter of the rows of the images merged by the server: "none", "sub", "up", "average", "paeth", or "adaptive" to choose the best one for each
+     * row.
+     */
+    public PngEncoder.Filter getImageFilter() {
+        String value = getString("imageFilter", "adaptive");
+
+        try {
+            return PngEncoder.Filter.valueOf(value.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            JourneyMapShare.LOGGER.warn("Invalid value {} for config imageFilter, using adaptive", value);
+            return PngEncoder.Filter.ADAPTIVE;
+        }
+    }
+
+    /**
+     * Number of images waiting to be merged above which the merged images are encoded as fast as possible, they are compressed again once no player
+     * uploads them anymore. 0 to always use the image compression level and filter.
+     */
+    public int getFastEncodeQueueSize() {
+        return getInt("fastEncodeQueueSize", 256);
+    }
+
+    /**
+     * @return the types separated by commas, empty for all types.
+     */
+    public static Set<String> parseTypes(String types) {
+        return Arrays.stream(types.split(",")).map(String::trim).filter(type -> !type.isEmpty() && !"all".equals(type)).collect(Collectors.toSet());
+    }
+
+    private String getString(String key, String defaultValue) {
+        String value = this.properties.getProperty(key);
+
+        if (value != null) {
+            return value.trim();
+        }
+
+        this.properties.setProperty(key, defaultValue);
+        this.dirty = true;
+        return defaultValue;
+    }
+
+    private int getInt(String key, int defaultValue) {
+        return (int) getLong(key, defaultValue);
+    }
+
+    private long getLong(String key, long defaultValue) {
+        String value = this.properties.getProperty(key);
+
+        if (value != null) {
+            try {
+                return Long.parseLong(value.trim());
+            } catch (NumberFormatException e) {
+                JourneyMapShare.LOGGER.warn("Invalid value {} for config {}, using {}", value, key, defaultValue);
+            }
+        }
+
+        this.properties.setProperty(key, String.valueOf(defaultValue));
+        this.dirty = true;
+        return defaultValue;
+    }
+}
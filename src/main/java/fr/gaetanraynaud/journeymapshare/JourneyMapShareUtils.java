@@ -17,6 +17,35 @@ public class JourneyMapShareUtils {
         return Pair.of(Integer.parseInt(pos[0]), Integer.parseInt(pos[1]));
     }
 
+    /**
+     * Pack the coordinates of a tile into a single key.
+     */
+    public static long toKey(int x, int y) {
+        return (long) x << 32 | y & 0xFFFFFFFFL;
+    }
+
+    public static int keyToX(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int keyToY(long key) {
+        return (int) key;
+    }
+
+    /**
+     * @return the coordinate of the tile of a block coordinate, a tile is 512 blocks wide.
+     */
+    public static int blockToTile(double coordinate) {
+        return Math.floorDiv((int) Math.floor(coordinate), 512);
+    }
+
+    /**
+     * Key of a world and type in the sync versions.
+     */
+    public static String toSyncKey(String world, String type) {
+        return world + "/" + type;
+    }
+
     public static List<String> worldToTypes(ServerWorld world) {
         if (world == null) {
             return List.of();
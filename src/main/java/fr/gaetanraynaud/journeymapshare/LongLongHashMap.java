@@ -0,0 +1,154 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import java.util.Arrays;
+
+/**
+ * Map of long keys to long values without boxing, with open addressing and linear probing. A value of 0 means no value, putting 0 removes the key.
+ * Not thread safe.
+ */
+public class LongLongHashMap {
+
+    private long[] keys;
+
+    private long[] values;
+
+    private int mask;
+
+    private int size;
+
+    public LongLongHashMap() {
+        this(16);
+    }
+
+    public LongLongHashMap(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(8, expectedSize * 2 - 1)) << 1;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * @return the value of the key, 0 if it has none.
+     */
+    public long get(long key) {
+        for (int i = index(key); ; i = i + 1 & this.mask) {
+            if (this.values[i] == 0) {
+                return 0;
+            }
+
+            if (this.keys[i] == key) {
+                return this.values[i];
+            }
+        }
+    }
+
+    /**
+     * @return the previous value of the key, 0 if it had none.
+     */
+    public long put(long key, long value) {
+        if (value == 0) {
+            return remove(key);
+        }
+
+        int i = index(key);
+        for (; this.values[i] != 0; i = i + 1 & this.mask) {
+            if (this.keys[i] == key) {
+                long previous = this.values[i];
+                this.values[i] = value;
+                return previous;
+            }
+        }
+
+        this.keys[i] = key;
+        this.values[i] = value;
+
+        if (++this.size * 2 > this.keys.length) {
+            resize(this.keys.length << 1);
+        }
+
+        return 0;
+    }
+
+    /**
+     * @return the value of the removed key, 0 if it had none.
+     */
+    public long remove(long key) {
+        int i = index(key);
+        for (; this.values[i] != 0; i = i + 1 & this.mask) {
+            if (this.keys[i] == key) {
+                long previous = this.values[i];
+                shiftBack(i);
+                this.size--;
+                return previous;
+            }
+        }
+
+        return 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        Arrays.fill(this.values, 0);
+        this.size = 0;
+    }
+
+    public void forEach(Consumer consumer) {
+        for (int i = 0; i < this.values.length; i++) {
+            if (this.values[i] != 0) {
+                consumer.accept(this.keys[i], this.values[i]);
+            }
+        }
+    }
+
+    /**
+     * Move back the next entries of the probe sequence into the freed slot, so lookups don't stop early.
+     */
+    private void shiftBack(int free) {
+        for (int i = free + 1 & this.mask; this.values[i] != 0; i = i + 1 & this.mask) {
+            int home = index(this.keys[i]);
+
+            //Only move the entry if its home slot is not between the free slot and its current slot
+            if ((i - home & this.mask) >= (i - free & this.mask)) {
+                this.keys[free] = this.keys[i];
+                this.values[free] = this.values[i];
+                free = i;
+            }
+        }
+
+        this.values[free] = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = this.keys;
+        long[] oldValues = this.values;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.mask = capacity - 1;
+
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldValues[i] != 0) {
+                int j = index(oldKeys[i]);
+                while (this.values[j] != 0) {
+                    j = j + 1 & this.mask;
+                }
+
+                this.keys[j] = oldKeys[i];
+                this.values[j] = oldValues[i];
+            }
+        }
+    }
+
+    private int index(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ hash >>> 32) & this.mask;
+    }
+
+    @FunctionalInterface
+    public interface Consumer {
+
+        void accept(long key, long value);
+    }
+}
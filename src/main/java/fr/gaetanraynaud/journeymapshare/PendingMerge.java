@@ -0,0 +1,159 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import fr.gaetanraynaud.journeymapshare.image.PixelBuffer;
+import fr.gaetanraynaud.journeymapshare.image.PngEncoder;
+import fr.gaetanraynaud.journeymapshare.image.TileMerger;
+import fr.gaetanraynaud.journeymapshare.image.XxHash64;
+import fr.gaetanraynaud.journeymapshare.network.ImagePayload;
+import net.minecraft.server.MinecraftServer;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Decoded image of a tile kept in memory while uploads of the tile keep coming, each upload is merged into it. It is encoded, written and sent to
+ * the players once, when no upload came for a while.
+ * <p>
+ * Only used by the merge worker of the tile.
+ */
+public class PendingMerge {
+
+    private final MinecraftServer server;
+
+    private final PixelBuffer pixels;
+
+    private final long start;
+
+    private long lastUpdate;
+
+    /**
+     * Timestamp of the image, the time of its last change.
+     */
+    private long timestamp;
+
+    /**
+     * Encoded image if the pixels did not change since it was decoded, so an unchanged image is not encoded again.
+     */
+    private byte[] encoded;
+
+    private boolean changed;
+
+    private boolean created;
+
+    /**
+     * Blocks changed since the image of the storage, null if the tile is new or unchanged.
+     */
+    private long[] blocks;
+
+    /**
+     * Players which uploaded an image of the tile, and if their image differs from the merged one.
+     */
+    private final Map<UUID, Boolean> senders = new HashMap<>();
+
+    private PendingMerge(MinecraftServer server, PixelBuffer pixels, long timestamp, byte[] encoded) {
+        this.server = server;
+        this.pixels = pixels;
+        this.start = System.currentTimeMillis();
+        this.lastUpdate = this.start;
+        this.timestamp = timestamp;
+        this.encoded = encoded;
+    }
+
+    /**
+     * Start from the image of the storage.
+     */
+    public static PendingMerge load(MinecraftServer server, PixelBuffer pixels, TileStorage.Tile stored) throws IOException {
+        TileMerger.get().decode(stored.image(), pixels);
+        return new PendingMerge(server, pixels, stored.timestamp(), stored.image());
+    }
+
+    /**
+     * Start from the first image of a new tile, decoding it also checks that it is a valid image.
+     */
+    public static PendingMerge create(MinecraftServer server, PixelBuffer pixels, ImagePayload payload, UUID sender) throws IOException {
+        TileMerger.get().decode(payload.getImage(), pixels);
+        PendingMerge merge = new PendingMerge(server, pixels, System.currentTimeMillis(), payload.getImage());
+        merge.changed = true;
+        merge.created = true;
+        merge.senders.put(sender, false);
+
+        return merge;
+    }
+
+    /**
+     * Merge an uploaded image, the oldest image stays on top and the newest one only fills its transparent pixels.
+     */
+    public void merge(ImagePayload payload, UUID sender) throws IOException {
+        TileMerger merger = TileMerger.get();
+        boolean payloadMoreRecent = payload.getTimestamp() > this.timestamp;
+        int changes = merger.merge(this.pixels, payload.getImage(), !payloadMoreRecent);
+        this.lastUpdate = System.currentTimeMillis();
+
+        if (changes > 0) {
+            //A new tile has no previous version to make a delta from
+            if (!this.created) {
+                long[] blocks = merger.getChangedBlocks();
+                if (this.blocks == null) {
+                    this.blocks = blocks;
+                } else {
+                    for (int i = 0; i < this.blocks.length; i++) {
+                        this.blocks[i] |= blocks[i];
+                    }
+                }
+            }
+
+            this.changed = true;
+            this.encoded = null;
+            this.timestamp = this.lastUpdate;
+            //The previous senders don't have the new pixels
+            this.senders.replaceAll((uuid, outdated) -> true);
+        }
+
+        this.senders.put(sender, merger.getImageDifferences() > 0);
+    }
+
+    /**
+     * @return the time in milliseconds to wait for other uploads, 0 if the image has to be written now. An image is not kept more than ten quiet
+     * periods, so a tile uploaded continuously is still written.
+     */
+    public long getWait(long quietPeriod) {
+        return Math.max(0, Math.min(this.lastUpdate + quietPeriod, this.start + 10 * quietPeriod) - System.currentTimeMillis());
+    }
+
+    public byte[] encode(int level, PngEncoder.Filter filter) {
+        return this.encoded == null ? TileMerger.get().encode(this.pixels, level, filter) : this.encoded;
+    }
+
+    public long getHash() {
+        return XxHash64.hash(this.pixels);
+    }
+
+    public MinecraftServer getServer() {
+        return server;
+    }
+
+    public PixelBuffer getPixels() {
+        return pixels;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return true if the image differs from the one of the storage.
+     */
+    public boolean isChanged() {
+        return changed;
+    }
+
+    public long[] getBlocks() {
+        return blocks;
+    }
+
+    public Map<UUID, Boolean> getSenders() {
+        return senders;
+    }
+}
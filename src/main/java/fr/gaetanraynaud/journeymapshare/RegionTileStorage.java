@@ -0,0 +1,561 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import org.apache.commons.lang3.tuple.Pair;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+/**
+ * Images packed in region files of {@link #REGION_SIZE}x{@link #REGION_SIZE} tiles, world/type/r.x.y.jms, so the server does not keep millions of
+ * small files. Region files are memory mapped, at most {@link #MAX_OPEN} of them are kept open.
+ * <p>
+ * Images of the files layout of {@link FileTileStorage} are still read until {@link #importFiles(String, String)} moves them into the regions.
+ */
+public class RegionTileStorage implements TileStorage {
+
+    public static final int REGION_SIZE = 32;
+
+    private static final Pattern REGION_NAME = Pattern.compile("r\\.(-?\\d+)\\.(-?\\d+)\\.jms");
+
+    private static final int MAX_OPEN = 256;
+
+    /**
+     * Number of imported files deleted at once, after their regions are flushed.
+     */
+    private static final int IMPORT_BATCH = 4096;
+
+    private final Path location;
+
+    /**
+     * Open regions, least recently used first.
+     */
+    private final Map<Path, RegionFile> regions = new LinkedHashMap<>(16, 0.75F, true);
+
+    public RegionTileStorage(Path location) {
+        this.location = location;
+    }
+
+    @Override
+    public Tile read(MapId mapId) throws IOException {
+        Tile tile = withRegion(regionPath(mapId), false, region -> region.read(index(mapId)));
+        if (tile != null) {
+            return tile;
+        }
+
+        //Not imported yet
+        Path path = mapId.getPath(this.location);
+        try {
+            long timestamp = path.toFile().lastModified();
+            return new Tile(Files.readAllBytes(path), timestamp);
+        } catch (NoSuchFileException e) {
+            //Imported since the region was read
+            return withRegion(regionPath(mapId), false, region -> region.read(index(mapId)));
+        }
+    }
+
+    @Override
+    public long getTimestamp(MapId mapId) throws IOException {
+        long timestamp = getRegionTimestamp(mapId);
+        if (timestamp == 0) {
+            timestamp = mapId.getPath(this.location).toFile().lastModified();
+        }
+
+        return timestamp == 0 ? getRegionTimestamp(mapId) : timestamp;
+    }
+
+    @Override
+    public void write(MapId mapId, byte[] image, long timestamp) throws IOException {
+        //The file of a tile that was not imported yet is now outdated
+        if (withRegion(regionPath(mapId), true, region -> region.write(index(mapId), image, timestamp, true))) {
+            Files.deleteIfExists(mapId.getPath(this.location));
+        }
+    }
+
+    @Override
+    public void forEach(String world, String type, TileVisitor visitor) throws IOException {
+        Path folder = this.location.resolve(world).resolve(type);
+        if (!Files.isDirectory(folder)) {
+            return;
+        }
+
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(folder)) {
+            files = stream.filter(path -> REGION_NAME.matcher(path.getFileName().toString()).matches()).toList();
+        }
+
+        for (Path file : files) {
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+
+            Matcher matcher = REGION_NAME.matcher(file.getFileName().toString());
+            matcher.matches();
+            int regionX = Integer.parseInt(matcher.group(1)) * REGION_SIZE;
+            int regionY = Integer.parseInt(matcher.group(2)) * REGION_SIZE;
+
+            //Copied so the visitor does not run with the region locked
+            long[] timestamps = withRegion(file, false, RegionFile::getTimestamps);
+            if (timestamps == null) {
+                continue;
+            }
+
+            for (int i = 0; i < timestamps.length; i++) {
+                if (timestamps[i] != 0) {
+                    visitor.visit(regionX + i % REGION_SIZE, regionY + i / REGION_SIZE, timestamps[i]);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move the png files of a world and type into the regions. A tile already in a region with a newer image was written after the file, the file
+     * is only deleted. Files are deleted once their regions are flushed, an interrupted import continues at the next one and writes again the
+     * images which were not flushed.
+     *
+     * @return the number of imported images.
+     */
+    public int importFiles(String world, String type) throws IOException {
+        Path folder = this.location.resolve(world).resolve(type);
+        if (!Files.isDirectory(folder)) {
+            return 0;
+        }
+
+        int imported = 0;
+        List<Path> done = new ArrayList<>();
+
+        try (Stream<Path> stream = Files.list(folder)) {
+            for (Path path : (Iterable<Path>) stream::iterator) {
+                if (Thread.currentThread().isInterrupted()) {
+                    break;
+                }
+
+                if (!JourneyMapShare.FILENAME_MATCH.test(path.getFileName().toString()) || !Files.isRegularFile(path)) {
+                    continue;
+                }
+
+                Pair<Integer, Integer> pos = JourneyMapShareUtils.pathToXY(path);
+                MapId mapId = new MapId(world, type, pos.getLeft(), pos.getRight());
+                int index = index(mapId);
+                long timestamp = path.toFile().lastModified();
+                byte[] image;
+
+                try {
+                    image = Files.readAllBytes(path);
+                } catch (NoSuchFileException e) {
+                    //Replaced by a merge since the listing
+                    continue;
+                }
+
+                if (withRegion(regionPath(mapId), true,
+                               region -> region.getTimestamp(index) <= timestamp && region.write(index, image, timestamp, false))) {
+                    imported++;
+                }
+
+                done.add(path);
+                if (done.size() >= IMPORT_BATCH) {
+                    deleteImported(done);
+                }
+            }
+        }
+
+        deleteImported(done);
+        return imported;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this.regions) {
+            for (RegionFile region : this.regions.values()) {
+                region.close();
+            }
+
+            this.regions.clear();
+        }
+    }
+
+    private void deleteImported(List<Path> files) throws IOException {
+        synchronized (this.regions) {
+            for (RegionFile region : this.regions.values()) {
+                region.force();
+            }
+        }
+
+        for (Path file : files) {
+            Files.deleteIfExists(file);
+        }
+
+        files.clear();
+    }
+
+    private long getRegionTimestamp(MapId mapId) throws IOException {
+        Long timestamp = withRegion(regionPath(mapId), false, region -> region.getTimestamp(index(mapId)));
+        return timestamp == null ? 0 : timestamp;
+    }
+
+    private Path regionPath(MapId mapId) {
+        return this.location.resolve(mapId.world())
+                            .resolve(mapId.type())
+                            .resolve("r." + Math.floorDiv(mapId.x(), REGION_SIZE) + "." + Math.floorDiv(mapId.y(), REGION_SIZE) + ".jms");
+    }
+
+    private static int index(MapId mapId) {
+        return Math.floorMod(mapId.y(), REGION_SIZE) * REGION_SIZE + Math.floorMod(mapId.x(), REGION_SIZE);
+    }
+
+    /**
+     * Run an action on an open region, opening it if needed.
+     *
+     * @return the result of the action, null if the region does not exist and is not created.
+     */
+    private <T> T withRegion(Path path, boolean create, RegionAction<T> action) throws IOException {
+        while (true) {
+            RegionFile region;
+
+            synchronized (this.regions) {
+                region = this.regions.get(path);
+
+                if (region == null) {
+                    if (!create && !Files.exists(path)) {
+                        return null;
+                    }
+
+                    Files.createDirectories(path.getParent());
+                    region = new RegionFile(path);
+                    this.regions.put(path, region);
+
+                    if (this.regions.size() > MAX_OPEN) {
+                        Iterator<RegionFile> iterator = this.regions.values().iterator();
+                        RegionFile eldest = iterator.next();
+                        iterator.remove();
+                        eldest.close();
+                    }
+                }
+            }
+
+            //The region may have been closed to open another one or after a failed compaction, open it again
+            IOException failure = null;
+            synchronized (region) {
+                if (!region.isClosed()) {
+                    try {
+                        return action.apply(region);
+                    } catch (IOException e) {
+                        if (!region.isClosed()) {
+                            throw e;
+                        }
+
+                        failure = e;
+                    }
+                }
+            }
+
+            synchronized (this.regions) {
+                this.regions.remove(path, region);
+            }
+
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface RegionAction<T> {
+
+        T apply(RegionFile region) throws IOException;
+    }
+
+    /**
+     * A memory mapped region file.
+     * <p>
+     * Format: a header (magic, version, end of the data), a table of (offset, length, timestamp) for each tile row by row, then the images. A written
+     * image is always appended after the others and synced before its entry is written, the bytes of its previous version become free. Once there
+     * are more free bytes than used ones, the file is compacted into a temporary file which replaces it.
+     */
+    private static final class RegionFile {
+
+        private static final int MAGIC = 0x4A4D5352;
+
+        private static final int VERSION = 1;
+
+        private static final int HEADER_SIZE = 16;
+
+        private static final int ENTRY_SIZE = 16;
+
+        private static final int TILES = REGION_SIZE * REGION_SIZE;
+
+        private static final int DATA_START = HEADER_SIZE + TILES * ENTRY_SIZE;
+
+        /**
+         * Minimum number of bytes added to the mapping when it is full, and of free bytes before compacting.
+         */
+        private static final int GROWTH = 1024 * 1024;
+
+        private final Path file;
+
+        private FileChannel channel;
+
+        private MappedByteBuffer buffer;
+
+        private int end;
+
+        private int used;
+
+        private boolean closed;
+
+        private RegionFile(Path file) throws IOException {
+            this.file = file;
+            open();
+        }
+
+        private void open() throws IOException {
+            this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+            try {
+                restoreCompacted();
+                long size = this.channel.size();
+
+                if (size == 0) {
+                    map(DATA_START + GROWTH);
+                    this.buffer.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, DATA_START);
+                    this.end = DATA_START;
+                    this.used = 0;
+                    return;
+                }
+
+                if (size < DATA_START || size > Integer.MAX_VALUE) {
+                    throw new IOException("Invalid region " + this.file + " of " + size + " bytes");
+                }
+
+                map((int) size);
+                this.end = this.buffer.getInt(8);
+                if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(4) != VERSION || this.end < DATA_START || this.end > size) {
+                    throw new IOException("Invalid region " + this.file);
+                }
+
+                //The end may not be written yet when an entry is, the image of the entry is already on the disk
+                this.used = 0;
+                for (int i = 0; i < TILES; i++) {
+                    int offset = getOffset(i);
+                    int length = getLength(i);
+
+                    if (length < 0 || length > 0 && (offset < DATA_START || offset > size - length)) {
+                        JourneyMapShare.LOGGER.warn("Ignoring invalid image {} of region {}", i, this.file);
+                        setEntry(this.buffer, i, 0, 0, 0);
+                    } else {
+                        this.used += length;
+                        this.end = Math.max(this.end, offset + length);
+                    }
+                }
+            } catch (IOException e) {
+                this.channel.close();
+                throw e;
+            }
+        }
+
+        private TileStorage.Tile read(int index) {
+            int length = getLength(index);
+            if (length == 0) {
+                return null;
+            }
+
+            byte[] image = new byte[length];
+            this.buffer.get(getOffset(index), image);
+            return new TileStorage.Tile(image, getTimestamp(index));
+        }
+
+        private long getTimestamp(int index) {
+            return this.buffer.getLong(entry(index) + 8);
+        }
+
+        private long[] getTimestamps() {
+            long[] timestamps = new long[TILES];
+            for (int i = 0; i < TILES; i++) {
+                timestamps[i] = getLength(i) == 0 ? 0 : getTimestamp(i);
+            }
+
+            return timestamps;
+        }
+
+        /**
+         * Append an image and point the entry of the tile to it. The mapped pages may be written back in any order, the image is synced before its
+         * entry when asked, an interruption then only leaves free bytes.
+         *
+         * @param sync false if the caller syncs the region before relying on the image.
+         * @return true if the tile had no image.
+         */
+        private boolean write(int index, byte[] image, long timestamp, boolean sync) throws IOException {
+            int previous = getLength(index);
+
+            if (this.end - DATA_START - this.used > Math.max(this.used, GROWTH)) {
+                compact();
+            }
+
+            if ((long) this.end + image.length > Integer.MAX_VALUE) {
+                throw new IOException("Region " + this.file + " is full");
+            }
+
+            if (this.end + image.length > this.buffer.capacity()) {
+                map((int) Math.min(Integer.MAX_VALUE, (long) this.end + image.length + Math.max(GROWTH, this.end / 4)));
+            }
+
+            int offset = this.end;
+            this.buffer.put(offset, image);
+            if (sync) {
+                this.buffer.force(offset, image.length);
+            }
+
+            this.end += image.length;
+            this.buffer.putInt(8, this.end);
+            setEntry(this.buffer, index, offset, image.length, timestamp);
+            this.used += image.length - previous;
+
+            return previous == 0;
+        }
+
+        /**
+         * Rewrite the used bytes in a temporary file and replace the region with it. A mapped file can't be replaced on Windows, the temporary file
+         * is then copied over the start of the region by {@link #open()}. The header of the temporary file is written last, an interrupted
+         * compaction leaves the region untouched and an interrupted copy is done again. If the region can't be opened again, it is left closed.
+         */
+        private void compact() throws IOException {
+            Path tmp = tmpPath();
+
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                        StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer table = ByteBuffer.allocate(DATA_START);
+                int end = DATA_START;
+
+                for (int i = 0; i < TILES; i++) {
+                    int length = getLength(i);
+                    if (length != 0) {
+                        writeFully(channel, this.buffer.slice(getOffset(i), length), end);
+                        setEntry(table, i, end, length, getTimestamp(i));
+                        end += length;
+                    }
+                }
+
+                writeFully(channel, table, 0);
+                channel.force(true);
+                writeFully(channel, ByteBuffer.allocate(HEADER_SIZE).putInt(0, MAGIC).putInt(4, VERSION).putInt(8, end), 0);
+                channel.force(true);
+            }
+
+            release();
+            try {
+                Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                JourneyMapShare.LOGGER.debug("Could not replace region {}, compacting it in place", this.file, e);
+            }
+
+            try {
+                open();
+            } catch (IOException e) {
+                this.closed = true;
+                throw e;
+            }
+        }
+
+        /**
+         * Copy a compacted region which could not replace the region over its start, then delete it.
+         */
+        private void restoreCompacted() throws IOException {
+            Path tmp = tmpPath();
+            if (!Files.exists(tmp)) {
+                return;
+            }
+
+            try (FileChannel compacted = FileChannel.open(tmp, StandardOpenOption.READ)) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                compacted.read(header, 0);
+                int end = header.getInt(8);
+
+                //Without its header, the compaction was interrupted before it was complete
+                if (header.getInt(0) == MAGIC && header.getInt(4) == VERSION && end >= DATA_START && end <= compacted.size()) {
+                    long position = 0;
+                    while (position < end) {
+                        position += compacted.transferTo(position, end - position, this.channel);
+                    }
+
+                    this.channel.force(true);
+                }
+            }
+
+            Files.delete(tmp);
+        }
+
+        private Path tmpPath() {
+            return this.file.resolveSibling(this.file.getFileName() + ".tmp");
+        }
+
+        private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+            while (buffer.hasRemaining()) {
+                position += channel.write(buffer, position);
+            }
+        }
+
+        private void map(int capacity) throws IOException {
+            this.buffer = this.channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        private int getOffset(int index) {
+            return this.buffer.getInt(entry(index));
+        }
+
+        private int getLength(int index) {
+            return this.buffer.getInt(entry(index) + 4);
+        }
+
+        private static void setEntry(ByteBuffer buffer, int index, int offset, int length, long timestamp) {
+            buffer.putInt(entry(index), offset).putInt(entry(index) + 4, length).putLong(entry(index) + 8, timestamp);
+        }
+
+        private static int entry(int index) {
+            return HEADER_SIZE + index * ENTRY_SIZE;
+        }
+
+        private synchronized void force() {
+            if (!this.closed) {
+                this.buffer.force();
+            }
+        }
+
+        private boolean isClosed() {
+            return closed;
+        }
+
+        private synchronized void close() {
+            if (!this.closed) {
+                this.closed = true;
+                release();
+            }
+        }
+
+        private void release() {
+            if (this.buffer != null) {
+                this.buffer.force();
+                this.buffer = null;
+            }
+
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                JourneyMapShare.LOGGER.error("An error occurred while closing region {}", this.file, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,505 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import fr.gaetanraynaud.journeymapshare.network.ImageChunkPayload;
+import fr.gaetanraynaud.journeymapshare.network.ImageDeltaPayload;
+import fr.gaetanraynaud.journeymapshare.network.ImagePayload;
+import net.minecraft.network.packet.CustomPayload;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Predicate;
+
+/**
+ * Images waiting to be sent to each player. At each tick the players are served in turn, each one spending its own bytes budget, until the global
+ * budget of the tick is spent. A player whose image is bigger than its remaining budget goes in debt and waits the next ticks.
+ * <p>
+ * The queue of each player is sorted by distance from the player, see {@link TileQueue}. Besides these queues, the players waiting for each image
+ * are indexed, so an image is sent to all of them without scanning every queue. Must only be used from the server thread.
+ * <p>
+ * Images bigger than {@link ImageChunkPayload#CHUNK_SIZE} become transfers, sent chunk by chunk alternately with the small images so they don't block
+ * the queue. At most {@link #WINDOW} chunks of a transfer are sent ahead of the acknowledgements of the player, a transfer without acknowledgement for
+ * {@link ChunkAssembler#TIMEOUT} milliseconds is dropped. When a player disconnects its queue and transfers are kept for the same time, and resumed
+ * from the last acknowledged chunk if it subscribes again. An image which could not be sent stays in the queue of the player.
+ * <p>
+ * An image updated by a merge is sent as a delta from its previous versions when there is one, except to the players which asked for the whole
+ * image.
+ */
+public class SendScheduler {
+
+    /**
+     * Estimation of the size of an image payload without the image itself.
+     */
+    private static final int PAYLOAD_OVERHEAD = 64;
+
+    private static final int WINDOW = 4;
+
+    private final Map<UUID, PlayerQueue> queues = new HashMap<>();
+
+    private final Map<UUID, PlayerQueue> suspended = new HashMap<>();
+
+    private final Map<MapId, Set<UUID>> waiting = new HashMap<>();
+
+    private final long globalBudget;
+
+    private final long playerBudget;
+
+    private long globalCredit;
+
+    private int cursor;
+
+    private int nextTransferId;
+
+    private long sentImages;
+
+    private long sentBytes;
+
+    private long statsStart = System.nanoTime();
+
+    private double drainRate;
+
+    public SendScheduler(long globalBudget, long playerBudget) {
+        this.globalBudget = Math.max(1, globalBudget);
+        this.playerBudget = Math.max(1, playerBudget);
+    }
+
+    /**
+     * Queue an image for a player, nothing is done if it is already waiting for it.
+     *
+     * @param full true if the player must get the whole image and not a delta
+     */
+    public void add(UUID player, MapId mapId, boolean full) {
+        PlayerQueue queue = this.queues.computeIfAbsent(player, p -> new PlayerQueue());
+
+        if (queue.images.add(mapId)) {
+            this.waiting.computeIfAbsent(mapId, m -> new HashSet<>(2)).add(player);
+        }
+
+        if (full) {
+            queue.fullImages.add(mapId);
+        }
+    }
+
+    public void remove(UUID player) {
+        PlayerQueue queue = this.queues.remove(player);
+        this.suspended.remove(player);
+
+        if (queue != null) {
+            for (MapId mapId : queue.images) {
+                removeWaiting(mapId, player);
+            }
+        }
+    }
+
+    /**
+     * Keep the queue of a disconnected player aside, to resume it if the player comes back before the timeout.
+     */
+    public void suspend(UUID player) {
+        PlayerQueue queue = this.queues.remove(player);
+
+        if (queue != null) {
+            for (MapId mapId : queue.images) {
+                removeWaiting(mapId, player);
+            }
+
+            //The chunks after the last acknowledged one may not have been received
+            for (Transfer transfer : queue.transfers) {
+                transfer.sent = transfer.acked;
+            }
+
+            queue.suspendTime = System.currentTimeMillis();
+            this.suspended.put(player, queue);
+        }
+    }
+
+    /**
+     * Restore the queue of a player suspended at disconnection.
+     */
+    public void resume(UUID player) {
+        PlayerQueue queue = this.suspended.remove(player);
+
+        if (queue == null || System.currentTimeMillis() - queue.suspendTime > ChunkAssembler.TIMEOUT) {
+            return;
+        }
+
+        PlayerQueue current = this.queues.computeIfAbsent(player, p -> new PlayerQueue());
+        long now = System.currentTimeMillis();
+        for (Transfer transfer : queue.transfers) {
+            //The player could not acknowledge while disconnected
+            transfer.lastAck = now;
+        }
+
+        current.transfers.addAll(queue.transfers);
+        for (MapId mapId : queue.images) {
+            add(player, mapId, queue.fullImages.contains(mapId));
+        }
+    }
+
+    /**
+     * Acknowledge the chunks of a transfer received by a player.
+     */
+    public void acknowledge(UUID player, int transferId, int offset, boolean resend) {
+        PlayerQueue queue = this.queues.get(player);
+        if (queue == null) {
+            return;
+        }
+
+        for (Iterator<Transfer> iterator = queue.transfers.iterator(); iterator.hasNext(); ) {
+            Transfer transfer = iterator.next();
+
+            if (transfer.id == transferId) {
+                transfer.lastAck = System.currentTimeMillis();
+                if (resend) {
+                    transfer.sent = offset;
+                    transfer.acked = offset;
+                } else {
+                    transfer.acked = Math.max(transfer.acked, offset);
+                }
+
+                if (transfer.acked >= transfer.size()) {
+                    iterator.remove();
+                }
+
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove the images of a player matching a filter, the transfers already started are kept.
+     */
+    public void removeIf(UUID player, Predicate<MapId> filter) {
+        PlayerQueue queue = this.queues.get(player);
+        if (queue == null) {
+            return;
+        }
+
+        List<MapId> removed = new ArrayList<>();
+        for (MapId mapId : queue.images) {
+            if (filter.test(mapId)) {
+                removed.add(mapId);
+            }
+        }
+
+        for (MapId mapId : removed) {
+            queue.images.remove(mapId);
+            queue.fullImages.remove(mapId);
+            removeWaiting(mapId, player);
+        }
+    }
+
+    /**
+     * Set the position of a player, to send the images closest to it first.
+     */
+    public void setPosition(UUID player, String world, int x, int y) {
+        this.queues.computeIfAbsent(player, p -> new PlayerQueue()).images.setPosition(world, x, y);
+    }
+
+    public void clear() {
+        this.queues.clear();
+        this.suspended.clear();
+        this.waiting.clear();
+    }
+
+    /**
+     * Send images for this tick, must be called from the server thread.
+     */
+    public void tick(TileSender sender) {
+        this.globalCredit = Math.min(this.globalCredit + this.globalBudget, this.globalBudget);
+
+        long now = System.currentTimeMillis();
+        this.suspended.values().removeIf(queue -> now - queue.suspendTime > ChunkAssembler.TIMEOUT);
+
+        List<UUID> players = new ArrayList<>(this.queues.size());
+        for (Map.Entry<UUID, PlayerQueue> entry : this.queues.entrySet()) {
+            PlayerQueue queue = entry.getValue();
+            queue.credit = Math.min(queue.credit + this.playerBudget, this.playerBudget);
+            queue.transfers.removeIf(transfer -> {
+                boolean expired = now - transfer.lastAck > ChunkAssembler.TIMEOUT;
+                if (expired) {
+                    JourneyMapShare.LOGGER.debug("Dropped transfer {} of {} to {}, never acknowledged", transfer.id, transfer.payload, entry.getKey());
+                }
+
+                return expired;
+            });
+
+            if (!queue.images.isEmpty() || !queue.transfers.isEmpty()) {
+                players.add(entry.getKey());
+            }
+        }
+
+        if (players.isEmpty()) {
+            return;
+        }
+
+        //Start with a different player at each tick so the first ones don't always get the global budget
+        this.cursor = (this.cursor + 1) % players.size();
+        boolean progress = true;
+
+        while (progress && this.globalCredit > 0) {
+            progress = false;
+
+            for (int i = 0; i < players.size() && this.globalCredit > 0; i++) {
+                UUID player = players.get((this.cursor + i) % players.size());
+                PlayerQueue queue = this.queues.get(player);
+
+                if (queue == null || queue.credit <= 0) {
+                    continue;
+                }
+
+                //Alternate between the chunks of the transfers and the small images
+                Transfer transfer = queue.nextTransfer();
+                if (transfer != null && (queue.chunkTurn || queue.blocked || queue.images.isEmpty())) {
+                    queue.chunkTurn = false;
+                    ImageChunkPayload chunk = new ImageChunkPayload(transfer.id, transfer.payload, transfer.sent);
+
+                    if (sender.send(player, chunk)) {
+                        int cost = chunk.getData().length + PAYLOAD_OVERHEAD;
+                        transfer.sent += chunk.getData().length;
+                        queue.credit -= cost;
+                        this.globalCredit -= cost;
+                        this.sentBytes += cost;
+                        //Next chunk from the next transfer
+                        queue.transfers.remove(transfer);
+                        queue.transfers.addLast(transfer);
+                    } else {
+                        suspend(player);
+                    }
+
+                    progress = true;
+                    continue;
+                }
+
+                if (queue.blocked || queue.images.isEmpty()) {
+                    continue;
+                }
+
+                queue.chunkTurn = true;
+                MapId mapId = queue.images.peek();
+                ImagePayload payload;
+                try {
+                    payload = sender.load(mapId);
+                } catch (IOException e) {
+                    JourneyMapShare.LOGGER.error("Error while reading image {}", mapId, e);
+                    drop(mapId);
+                    progress = true;
+                    continue;
+                }
+
+                if (payload == null) {
+                    //Not available for now, retry at next tick
+                    queue.blocked = true;
+                    continue;
+                }
+
+                ImageDeltaPayload delta = sender.loadDelta(mapId, payload);
+                Set<UUID> recipients = this.waiting.get(mapId);
+                Map<UUID, Boolean> disconnected = null;
+
+                //Send to all the players waiting for this image which still have budget
+                for (Iterator<UUID> iterator = recipients.iterator(); iterator.hasNext(); ) {
+                    UUID recipient = iterator.next();
+                    PlayerQueue other = this.queues.get(recipient);
+                    boolean full = delta == null || other.fullImages.contains(mapId);
+
+                    //Too big for a single payload, the player gets a transfer, paced by its chunks
+                    if (full && payload.getImage().length > ImageChunkPayload.CHUNK_SIZE) {
+                        iterator.remove();
+                        other.images.remove(mapId);
+                        other.fullImages.remove(mapId);
+                        other.transfers.addLast(new Transfer(this.nextTransferId++, payload));
+                        this.sentImages++;
+                        continue;
+                    }
+
+                    if (other.credit <= 0) {
+                        continue;
+                    }
+
+                    iterator.remove();
+                    other.images.remove(mapId);
+                    boolean fullAsked = other.fullImages.remove(mapId);
+                    int cost = (full ? payload.getImage().length : delta.getData().length) + PAYLOAD_OVERHEAD;
+
+                    if (sender.send(recipient, full ? payload : delta)) {
+                        other.credit -= cost;
+                        this.globalCredit -= cost;
+                        this.sentImages++;
+                        this.sentBytes += cost;
+                    } else {
+                        if (disconnected == null) {
+                            disconnected = new HashMap<>();
+                        }
+                        disconnected.put(recipient, fullAsked);
+                    }
+                }
+
+                if (recipients.isEmpty()) {
+                    this.waiting.remove(mapId);
+                }
+
+                //Queue the image again so it is sent if the player resumes
+                if (disconnected != null) {
+                    disconnected.forEach((recipient, fullAsked) -> {
+                        add(recipient, mapId, fullAsked);
+                        suspend(recipient);
+                    });
+                }
+
+                progress = true;
+            }
+        }
+
+        sender.flush();
+
+        for (PlayerQueue queue : this.queues.values()) {
+            queue.blocked = false;
+        }
+    }
+
+    /**
+     * @return the number of images waiting to be sent, for all players.
+     */
+    public int getQueueDepth() {
+        int depth = 0;
+        for (PlayerQueue queue : this.queues.values()) {
+            depth += queue.images.size();
+        }
+
+        return depth;
+    }
+
+    /**
+     * @return the number of distinct images waiting to be sent.
+     */
+    public int getPendingImages() {
+        return this.waiting.size();
+    }
+
+    /**
+     * @return the number of images sent per second, measured between the last two calls to {@link #pollStats()}.
+     */
+    public double getDrainRate() {
+        return drainRate;
+    }
+
+    /**
+     * Describe the queues and the throughput since the last call.
+     */
+    public String pollStats() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - this.statsStart) / 1_000_000_000D;
+        this.drainRate = this.sentImages / seconds;
+        String stats = String.format("%d images queued (%d distinct) for %d players, sent %.1f images/s, %.1f KB/s", getQueueDepth(), getPendingImages(), this.queues.size(), this.drainRate,
+                                     this.sentBytes / seconds / 1024);
+        this.sentImages = 0;
+        this.sentBytes = 0;
+        this.statsStart = now;
+
+        return stats;
+    }
+
+    private void drop(MapId mapId) {
+        Set<UUID> players = this.waiting.remove(mapId);
+
+        if (players != null) {
+            for (UUID player : players) {
+                this.queues.get(player).images.remove(mapId);
+                this.queues.get(player).fullImages.remove(mapId);
+            }
+        }
+    }
+
+    private void removeWaiting(MapId mapId, UUID player) {
+        Set<UUID> players = this.waiting.get(mapId);
+
+        if (players != null && players.remove(player) && players.isEmpty()) {
+            this.waiting.remove(mapId);
+        }
+    }
+
+    public interface TileSender {
+
+        /**
+         * @return the payload of the image, null if it can't be read for now.
+         */
+        ImagePayload load(MapId mapId) throws IOException;
+
+        /**
+         * @return the delta from the previous versions of the loaded image, null if there is none.
+         */
+        ImageDeltaPayload loadDelta(MapId mapId, ImagePayload image);
+
+        /**
+         * @return false if the player is not connected anymore.
+         */
+        boolean send(UUID player, CustomPayload payload);
+
+        /**
+         * Send what was kept to be sent with the next payloads, called at the end of the tick.
+         */
+        void flush();
+    }
+
+    private static class PlayerQueue {
+
+        private final TileQueue images = new TileQueue();
+
+        /**
+         * Queued images that must not be sent as a delta.
+         */
+        private final Set<MapId> fullImages = new HashSet<>();
+
+        private final ArrayDeque<Transfer> transfers = new ArrayDeque<>();
+
+        private long credit;
+
+        private boolean blocked;
+
+        private boolean chunkTurn;
+
+        private long suspendTime;
+
+        /**
+         * @return the first transfer with a chunk to send, null if they all wait for acknowledgements.
+         */
+        private Transfer nextTransfer() {
+            for (Transfer transfer : this.transfers) {
+                if (transfer.sent < transfer.size() && transfer.sent - transfer.acked < WINDOW * ImageChunkPayload.CHUNK_SIZE) {
+                    return transfer;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    private static class Transfer {
+
+        private final int id;
+
+        private final ImagePayload payload;
+
+        private int sent;
+
+        private int acked;
+
+        private long lastAck = System.currentTimeMillis();
+
+        private Transfer(int id, ImagePayload payload) {
+            this.id = id;
+            this.payload = payload;
+        }
+
+        private int size() {
+            return this.payload.getImage().length;
+        }
+    }
+}
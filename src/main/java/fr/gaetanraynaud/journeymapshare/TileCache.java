@@ -0,0 +1,108 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Least recently used cache of the encoded images, with the delta from their previous versions, bounded by the total size of the images and deltas.
+ */
+public class TileCache {
+
+    private final LinkedHashMap<MapId, CachedTile> tiles = new LinkedHashMap<>(256, 0.75F, true);
+
+    private final long maxSize;
+
+    private long size;
+
+    private long hits;
+
+    private long misses;
+
+    public TileCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the cached image, null if it is not in the cache.
+     */
+    public synchronized CachedTile get(MapId mapId) {
+        CachedTile tile = this.tiles.get(mapId);
+
+        if (tile == null) {
+            this.misses++;
+        } else {
+            this.hits++;
+        }
+
+        return tile;
+    }
+
+    public void put(MapId mapId, byte[] image, long timestamp, long hash) {
+        put(mapId, image, timestamp, hash, null);
+    }
+
+    public synchronized void put(MapId mapId, byte[] image, long timestamp, long hash, Delta delta) {
+        CachedTile tile = new CachedTile(image, timestamp, hash, delta);
+        if (tile.size() > this.maxSize) {
+            invalidate(mapId);
+            return;
+        }
+
+        CachedTile previous = this.tiles.put(mapId, tile);
+        if (previous != null) {
+            this.size -= previous.size();
+        }
+
+        this.size += tile.size();
+
+        for (Iterator<CachedTile> iterator = this.tiles.values().iterator(); this.size > this.maxSize && iterator.hasNext(); ) {
+            this.size -= iterator.next().size();
+            iterator.remove();
+        }
+    }
+
+    public synchronized void invalidate(MapId mapId) {
+        CachedTile previous = this.tiles.remove(mapId);
+
+        if (previous != null) {
+            this.size -= previous.size();
+        }
+    }
+
+    public synchronized void clear() {
+        this.tiles.clear();
+        this.size = 0;
+    }
+
+    /**
+     * Describe the content of the cache and its hit ratio since the last call.
+     */
+    public synchronized String pollStats() {
+        long total = this.hits + this.misses;
+        String stats = String.format("%d images, %.1f/%.1f MB, %d hits, %d misses (%.0f%%)", this.tiles.size(), this.size / 1024D / 1024,
+                                     this.maxSize / 1024D / 1024, this.hits, this.misses, total == 0 ? 0 : 100D * this.hits / total);
+        this.hits = 0;
+        this.misses = 0;
+
+        return stats;
+    }
+
+    /**
+     * @param delta the changes from the previous versions, null if there is none
+     */
+    public record CachedTile(byte[] image, long timestamp, long hash, Delta delta) {
+
+        private long size() {
+            return this.image.length + (this.delta == null ? 0 : this.delta.data().length);
+        }
+    }
+
+    /**
+     * Encoded {@link fr.gaetanraynaud.journeymapshare.image.TileDelta} blocks changed since one of the previous versions of a tile.
+     *
+     * @param baseHashes hashes of the versions the delta applies to, oldest first
+     * @param blocks     mask of the changed blocks
+     * @param data       encoded delta
+     */
+    public record Delta(long[] baseHashes, long[] blocks, byte[] data) {}
+}
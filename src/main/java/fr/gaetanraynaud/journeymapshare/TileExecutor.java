@@ -0,0 +1,100 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded pool of worker threads. All the tasks of a same tile run on the same worker, so they are executed in the order they are submitted.
+ */
+public class TileExecutor implements AutoCloseable {
+
+    private final ThreadPoolExecutor[] workers;
+
+    private final ScheduledExecutorService timer;
+
+    public TileExecutor(String name, int threads, int queueSize) {
+        this.workers = new ThreadPoolExecutor[Math.max(1, threads)];
+        AtomicInteger counter = new AtomicInteger();
+
+        for (int i = 0; i < this.workers.length; i++) {
+            this.workers[i] = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(Math.max(1, queueSize)), runnable -> {
+                Thread thread = new Thread(runnable, name + "-" + counter.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        this.timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, name + "-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Submit a task for a tile.
+     *
+     * @return false if the queue of the worker is full or if the executor is closed, the task is then dropped.
+     */
+    public boolean execute(MapId mapId, Runnable task) {
+        try {
+            this.workers[Math.floorMod(mapId.hashCode(), this.workers.length)].execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Submit a task for a tile after a delay in milliseconds, it is delayed again while the queue of the worker is full. Dropped if the executor is
+     * closed before.
+     */
+    public void schedule(MapId mapId, Runnable task, long delay) {
+        try {
+            this.timer.schedule(() -> {
+                if (!execute(mapId, task)) {
+                    schedule(mapId, task, delay);
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            //Closed
+        }
+    }
+
+    public int getQueueSize() {
+        int size = 0;
+        for (ThreadPoolExecutor worker : this.workers) {
+            size += worker.getQueue().size();
+        }
+
+        return size;
+    }
+
+    /**
+     * Stop accepting tasks and wait for the submitted ones to finish, the scheduled ones are dropped.
+     */
+    @Override
+    public void close() {
+        this.timer.shutdownNow();
+
+        for (ThreadPoolExecutor worker : this.workers) {
+            worker.shutdown();
+        }
+
+        try {
+            for (ThreadPoolExecutor worker : this.workers) {
+                if (!worker.awaitTermination(30, TimeUnit.SECONDS)) {
+                    JourneyMapShare.LOGGER.warn("Timed out while waiting for pending tiles tasks");
+                    worker.shutdownNow();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
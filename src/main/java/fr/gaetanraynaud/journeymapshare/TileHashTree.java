@@ -0,0 +1,107 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Hashes of the timestamps of the images of a world and type, grouped by regions of {@link #REGION_SIZE} x {@link #REGION_SIZE} tiles, with a root
+ * hash of all the images.
+ * <p>
+ * The hashes are sums of the hashes of each image, so they don't depend on the order of the images and are updated without reading the other images
+ * of the region. Two trees with the same images and timestamps have the same hashes, client and server only have to compare the regions whose hashes
+ * differ.
+ */
+public class TileHashTree {
+
+    public static final int REGION_SIZE = 32;
+
+    private final Map<Long, Region> regions = new HashMap<>();
+
+    private long root;
+
+    public static long toRegionKey(int x, int y) {
+        return JourneyMapShareUtils.toKey(Math.floorDiv(x, REGION_SIZE), Math.floorDiv(y, REGION_SIZE));
+    }
+
+    public static long hash(int x, int y, long timestamp) {
+        return mix(JourneyMapShareUtils.toKey(x, y) ^ mix(timestamp));
+    }
+
+    /**
+     * Replace the timestamp of an image, 0 if the image did not exist or was removed.
+     */
+    public synchronized void update(int x, int y, long previousTimestamp, long timestamp) {
+        if (previousTimestamp == timestamp) {
+            return;
+        }
+
+        long key = toRegionKey(x, y);
+        Region region = this.regions.computeIfAbsent(key, k -> new Region());
+
+        if (previousTimestamp != 0) {
+            long hash = hash(x, y, previousTimestamp);
+            region.hash -= hash;
+            region.count--;
+            this.root -= hash;
+        }
+
+        if (timestamp != 0) {
+            long hash = hash(x, y, timestamp);
+            region.hash += hash;
+            region.count++;
+            this.root += hash;
+        }
+
+        if (region.count <= 0) {
+            this.regions.remove(key);
+        }
+    }
+
+    public synchronized void clear() {
+        this.regions.clear();
+        this.root = 0;
+    }
+
+    public synchronized long getRoot() {
+        return root;
+    }
+
+    /**
+     * @return the hash of the region, 0 if it has no images.
+     */
+    public synchronized long getHash(long regionKey) {
+        Region region = this.regions.get(regionKey);
+        return region == null ? 0 : region.hash;
+    }
+
+    /**
+     * @return the hash of each region with images.
+     */
+    public synchronized Map<Long, Long> getRegions() {
+        Map<Long, Long> hashes = new HashMap<>(this.regions.size() * 2);
+        for (Map.Entry<Long, Region> entry : this.regions.entrySet()) {
+            hashes.put(entry.getKey(), entry.getValue().hash);
+        }
+
+        return hashes;
+    }
+
+    /**
+     * Finalizer of MurmurHash3, spreads the bits so that sums of hashes don't collide for close coordinates and timestamps.
+     */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xFF51AFD7ED558CCDL;
+        value ^= value >>> 33;
+        value *= 0xC4CEB9FE1A85EC53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    private static class Region {
+
+        private long hash;
+
+        private int count;
+    }
+}
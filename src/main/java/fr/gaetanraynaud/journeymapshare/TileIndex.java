@@ -0,0 +1,358 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.stream.LongStream;
+
+/**
+ * Timestamps of the images of a world and type, persisted in an index file so the folder does not have to be listed at startup.
+ * <p>
+ * The file is a log of (x, y, timestamp, hash) records: each update is appended and the last record of a tile wins, a timestamp of 0 marks a removed
+ * tile. It is compacted when saved. Files of the first version, without hashes, are read and rewritten at the first update.
+ * <p>
+ * Each update also gets a version from a counter of the index, so the images updated since a version can be sent to a client which already received
+ * that version. Versions are only kept in memory and start over each time the index is loaded. The {@link TileHashTree} of the timestamps is kept
+ * up to date for the clients which can't use a version.
+ */
+public class TileIndex {
+
+    private static final int MAGIC = 0x4A4D5349;
+
+    private static final int VERSION = 2;
+
+    private static final int HEADER_SIZE = 8;
+
+    private static final int RECORD_SIZE = 24;
+
+    private static final int RECORD_SIZE_V1 = 16;
+
+    private final Path file;
+
+    /**
+     * Flip the sign bit of y in a packed key, so that sorting keys sorts by x then y.
+     */
+    private static final long Y_SIGN = 0x80000000L;
+
+    private final TileTable images = new TileTable();
+
+    private final TileHashTree tree = new TileHashTree();
+
+    private final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+
+    private FileChannel channel;
+
+    private int records;
+
+    private boolean outdated;
+
+    private volatile int version;
+
+    public TileIndex(Path file) {
+        this.file = file;
+    }
+
+    /**
+     * Read the index file, if it is missing or invalid the index stays empty until {@link #check(TileStorage, String, String)} rebuilds it.
+     */
+    public synchronized void load() {
+        this.images.clear();
+        this.tree.clear();
+        this.records = 0;
+        this.outdated = false;
+        this.version = 1;
+
+        if (!Files.exists(this.file)) {
+            return;
+        }
+
+        //Read on the heap, a mapped file can't be replaced by save() until the mapping is garbage collected on Windows
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(this.file));
+
+            int fileVersion = buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC ? -1 : buffer.getInt();
+            if (fileVersion != VERSION && fileVersion != 1) {
+                JourneyMapShare.LOGGER.warn("Ignoring invalid index {}", this.file);
+                return;
+            }
+
+            //Records can't be appended to the old format, the file is rewritten at first update
+            this.outdated = fileVersion != VERSION;
+            int recordSize = this.outdated ? RECORD_SIZE_V1 : RECORD_SIZE;
+
+            //A partial record at the end is the trace of an interrupted write, ignore it
+            while (buffer.remaining() >= recordSize) {
+                int x = buffer.getInt();
+                int y = buffer.getInt();
+                long timestamp = buffer.getLong();
+                long hash = this.outdated ? 0 : buffer.getLong();
+                //Loaded images all get the first version
+                put(x, y, timestamp, hash, 1);
+                this.records++;
+            }
+        } catch (IOException e) {
+            JourneyMapShare.LOGGER.error("An error occurred while reading index {}", this.file, e);
+        }
+    }
+
+    public long getTimestamp(int x, int y) {
+        return this.images.getTimestamp(JourneyMapShareUtils.toKey(x, y));
+    }
+
+    /**
+     * @return the hash of the pixels of the tile, 0 if it is unknown.
+     */
+    public long getHash(int x, int y) {
+        return this.images.getHash(JourneyMapShareUtils.toKey(x, y));
+    }
+
+    /**
+     * @return the version of the last update.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the images updated after the given version, all of them for version 0.
+     */
+    public Images getImages(long since) {
+        LongStream.Builder keys = LongStream.builder();
+        this.images.forEach((key, timestamp, hash, version) -> {
+            if (version > since) {
+                keys.add(key);
+            }
+        });
+
+        return toImages(keys.build().toArray());
+    }
+
+    /**
+     * @return all the images of the given regions of the {@link TileHashTree}.
+     */
+    public Images getImages(Set<Long> regions) {
+        LongStream.Builder keys = LongStream.builder();
+        this.images.forEach((key, timestamp, hash, version) -> {
+            if (regions.contains(TileHashTree.toRegionKey(JourneyMapShareUtils.keyToX(key), JourneyMapShareUtils.keyToY(key)))) {
+                keys.add(key);
+            }
+        });
+
+        return toImages(keys.build().toArray());
+    }
+
+    /**
+     * Sort the keys by coordinates and read the timestamps and hashes of the images, skipping the ones removed since the keys were collected.
+     */
+    private Images toImages(long[] keys) {
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] ^= Y_SIGN;
+        }
+
+        Arrays.sort(keys);
+        long[] timestamps = new long[keys.length];
+        long[] hashes = new long[keys.length];
+        int size = 0;
+
+        for (long sortKey : keys) {
+            long key = sortKey ^ Y_SIGN;
+            long timestamp = this.images.getTimestamp(key);
+
+            if (timestamp != 0) {
+                keys[size] = key;
+                timestamps[size] = timestamp;
+                hashes[size] = this.images.getHash(key);
+                size++;
+            }
+        }
+
+        return new Images(size, keys, timestamps, hashes);
+    }
+
+    public TileHashTree getTree() {
+        return tree;
+    }
+
+    public int size() {
+        return this.images.size();
+    }
+
+    /**
+     * Set the timestamp and the hash of a tile and persist it, 0 for an unknown hash.
+     */
+    public synchronized void update(int x, int y, long timestamp, long hash) {
+        put(x, y, timestamp, hash, ++this.version);
+        append(x, y, timestamp, hash);
+    }
+
+    public synchronized void remove(int x, int y) {
+        long previous = this.images.put(JourneyMapShareUtils.toKey(x, y), 0, 0, ++this.version);
+        if (previous != 0) {
+            this.tree.update(x, y, previous, 0);
+            append(x, y, 0, 0);
+        }
+    }
+
+    /**
+     * Compare the index with the images of the storage: add the missing or more recent images and remove the ones that were deleted.
+     * Slow on big folders, meant to run in background after {@link #load()}.
+     */
+    public void check(TileStorage storage, String world, String type) {
+        Set<Long> found = new HashSet<>();
+        LongStream.Builder behind = LongStream.builder();
+        int[] fixed = {0};
+
+        try {
+            storage.forEach(world, type, (x, y, timestamp) -> {
+                found.add(JourneyMapShareUtils.toKey(x, y));
+
+                synchronized (this) {
+                    //Only move forward, a merge may have updated the tile since it was listed
+                    //The file was changed outside the mod, its hash is unknown
+                    if (timestamp > getTimestamp(x, y)) {
+                        update(x, y, timestamp, 0);
+                        fixed[0]++;
+                    } else if (timestamp < getTimestamp(x, y)) {
+                        behind.add(JourneyMapShareUtils.toKey(x, y));
+                    }
+                }
+            });
+
+            if (Thread.currentThread().isInterrupted()) {
+                return;
+            }
+
+            //The last writes of the images were lost by a crash, go back to the version of the storage
+            for (long key : behind.build().toArray()) {
+                int x = JourneyMapShareUtils.keyToX(key);
+                int y = JourneyMapShareUtils.keyToY(key);
+
+                synchronized (this) {
+                    long timestamp = storage.getTimestamp(new MapId(world, type, x, y));
+                    if (timestamp != 0 && timestamp < getTimestamp(x, y)) {
+                        update(x, y, timestamp, 0);
+                        fixed[0]++;
+                    }
+                }
+            }
+
+            LongStream.Builder missing = LongStream.builder();
+            this.images.forEach((key, timestamp, hash, version) -> {
+                if (!found.contains(key)) {
+                    missing.add(key);
+                }
+            });
+
+            for (long key : missing.build().toArray()) {
+                int x = JourneyMapShareUtils.keyToX(key);
+                int y = JourneyMapShareUtils.keyToY(key);
+                if (storage.getTimestamp(new MapId(world, type, x, y)) == 0) {
+                    remove(x, y);
+                    fixed[0]++;
+                }
+            }
+        } catch (IOException e) {
+            JourneyMapShare.LOGGER.error("An error occurred while listing images of {}/{}", world, type, e);
+            return;
+        }
+
+        if (fixed[0] > 0) {
+            JourneyMapShare.LOGGER.info("Fixed {} entries of index {}", fixed[0], this.file);
+            save();
+        }
+    }
+
+    /**
+     * Rewrite the index file with only the current entries.
+     */
+    public synchronized void save() {
+        closeChannel();
+        Path tmp = this.file.resolveSibling(this.file.getFileName() + ".tmp");
+
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + this.images.size() * RECORD_SIZE);
+            buffer.putInt(MAGIC).putInt(VERSION);
+            int[] count = {0};
+
+            //Writes are synchronized, no image can be added during the iteration
+            this.images.forEach((key, timestamp, hash, version) -> {
+                buffer.putInt(JourneyMapShareUtils.keyToX(key)).putInt(JourneyMapShareUtils.keyToY(key)).putLong(timestamp).putLong(hash);
+                count[0]++;
+            });
+
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+
+            channel.force(false);
+            this.records = count[0];
+            this.outdated = false;
+        } catch (IOException e) {
+            JourneyMapShare.LOGGER.error("An error occurred while writing index {}", this.file, e);
+            return;
+        }
+
+        try {
+            Files.move(tmp, this.file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            JourneyMapShare.LOGGER.error("An error occurred while replacing index {}", this.file, e);
+        }
+    }
+
+    public synchronized void close() {
+        closeChannel();
+    }
+
+    private void put(int x, int y, long timestamp, long hash, int version) {
+        long previous = this.images.put(JourneyMapShareUtils.toKey(x, y), timestamp, hash, version);
+        this.tree.update(x, y, previous, timestamp);
+    }
+
+    private void append(int x, int y, long timestamp, long hash) {
+        try {
+            if (this.channel == null || !this.channel.isOpen()) {
+                //Rewriting the file also drops the records which were overridden since the last save
+                if (this.outdated || !Files.exists(this.file) || this.records > 2 * this.images.size() + 1024) {
+                    save();
+                }
+
+                this.channel = FileChannel.open(this.file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            }
+
+            this.record.clear();
+            this.record.putInt(x).putInt(y).putLong(timestamp).putLong(hash).flip();
+            while (this.record.hasRemaining()) {
+                this.channel.write(this.record);
+            }
+
+            this.records++;
+        } catch (IOException e) {
+            JourneyMapShare.LOGGER.error("An error occurred while writing index {}", this.file, e);
+        }
+    }
+
+    /**
+     * Images of the index sorted by x then y, as columns of packed coordinates, timestamps and hashes. Only the first size elements are used.
+     */
+    public record Images(int size, long[] positions, long[] timestamps, long[] hashes) {}
+
+    private void closeChannel() {
+        if (this.channel != null) {
+            try {
+                this.channel.close();
+            } catch (IOException e) {
+                JourneyMapShare.LOGGER.error("An error occurred while closing index {}", this.file, e);
+            }
+
+            this.channel = null;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Striped locks to serialize the reads and writes of a same tile, while different tiles can be processed in parallel.
+ */
+public class TileLocks {
+
+    private final ReentrantLock[] locks;
+
+    public TileLocks(int stripes) {
+        //Power of two so the stripe is a simple mask
+        this.locks = new ReentrantLock[Integer.highestOneBit(Math.max(1, stripes - 1)) << 1];
+
+        for (int i = 0; i < this.locks.length; i++) {
+            this.locks[i] = new ReentrantLock();
+        }
+    }
+
+    public ReentrantLock get(MapId mapId) {
+        int hash = mapId.hashCode();
+        return this.locks[(hash ^ (hash >>> 16)) & (this.locks.length - 1)];
+    }
+}
@@ -0,0 +1,173 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+
+/**
+ * Images to send, closest to the player first. The images of the world of the player come first, and on it the surface images as if they were
+ * {@link #TYPE_DISTANCE} tiles closer than the other types. Images at the same distance keep their order of insertion, and so do all the images
+ * until the position is known.
+ * <p>
+ * Removed images stay in the heap until they reach its top, the heap is rebuilt when they are too many, and when the player moves to another tile.
+ * Not thread safe.
+ */
+public class TileQueue implements Iterable<MapId> {
+
+    private static final String SURFACE_TYPE = "day";
+
+    private static final int TYPE_DISTANCE = 2;
+
+    private final Map<MapId, Entry> entries = new HashMap<>();
+
+    private PriorityQueue<Entry> heap = new PriorityQueue<>();
+
+    private long sequence;
+
+    private String world;
+
+    private int x;
+
+    private int y;
+
+    /**
+     * @return false if the image was already queued.
+     */
+    public boolean add(MapId mapId) {
+        if (this.entries.containsKey(mapId)) {
+            return false;
+        }
+
+        Entry entry = new Entry(mapId, priority(mapId), this.sequence++);
+        this.entries.put(mapId, entry);
+        this.heap.add(entry);
+        return true;
+    }
+
+    public boolean remove(MapId mapId) {
+        if (this.entries.remove(mapId) == null) {
+            return false;
+        }
+
+        if (this.heap.size() > this.entries.size() * 2 + 64) {
+            rebuild();
+        }
+
+        return true;
+    }
+
+    /**
+     * Remove the images matching a filter.
+     */
+    public void removeIf(Predicate<MapId> filter) {
+        if (this.entries.keySet().removeIf(filter)) {
+            rebuild();
+        }
+    }
+
+    public boolean contains(MapId mapId) {
+        return this.entries.containsKey(mapId);
+    }
+
+    /**
+     * @return the closest image, null if the queue is empty.
+     */
+    public MapId peek() {
+        Entry entry = this.heap.peek();
+
+        //Skip the removed images
+        while (entry != null && this.entries.get(entry.mapId()) != entry) {
+            this.heap.poll();
+            entry = this.heap.peek();
+        }
+
+        return entry == null ? null : entry.mapId();
+    }
+
+    /**
+     * @return the closest image, removed from the queue, null if the queue is empty.
+     */
+    public MapId poll() {
+        MapId mapId = peek();
+
+        if (mapId != null) {
+            this.heap.poll();
+            this.entries.remove(mapId);
+        }
+
+        return mapId;
+    }
+
+    public int size() {
+        return this.entries.size();
+    }
+
+    public boolean isEmpty() {
+        return this.entries.isEmpty();
+    }
+
+    public void clear() {
+        this.entries.clear();
+        this.heap.clear();
+    }
+
+    /**
+     * Set the position of the player, the images are sorted again if it moved to another tile.
+     *
+     * @return true if the images were sorted again.
+     */
+    public boolean setPosition(String world, int x, int y) {
+        if (world.equals(this.world) && x == this.x && y == this.y) {
+            return false;
+        }
+
+        this.world = world;
+        this.x = x;
+        this.y = y;
+
+        for (Map.Entry<MapId, Entry> entry : this.entries.entrySet()) {
+            entry.setValue(new Entry(entry.getKey(), priority(entry.getKey()), entry.getValue().sequence()));
+        }
+
+        rebuild();
+        return true;
+    }
+
+    /**
+     * Iterate over the images in no particular order.
+     */
+    @Override
+    public Iterator<MapId> iterator() {
+        return this.entries.keySet().iterator();
+    }
+
+    private void rebuild() {
+        this.heap = new PriorityQueue<>(this.entries.values());
+    }
+
+    /**
+     * @return the distance from the player in 1/1024 of tiles, with the type penalty, the other worlds after.
+     */
+    private long priority(MapId mapId) {
+        if (this.world == null) {
+            return 0;
+        }
+
+        double dx = mapId.x() - this.x;
+        double dy = mapId.y() - this.y;
+        double distance = Math.sqrt(dx * dx + dy * dy) + (SURFACE_TYPE.equals(mapId.type()) ? 0 : TYPE_DISTANCE);
+
+        return (long) (distance * 1024) + (this.world.equals(mapId.world()) ? 0 : Long.MAX_VALUE / 2);
+    }
+
+    private record Entry(MapId mapId, long priority, long sequence) implements Comparable<Entry> {
+
+        @Override
+        public int compareTo(Entry other) {
+            int compare = Long.compare(this.priority, other.priority);
+            return compare != 0 ? compare : Long.compare(this.sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import java.io.IOException;
+
+/**
+ * Where the server keeps the images of the tiles. The timestamp of an image is the time it was last merged, the oldest image stays on top when
+ * merging. Callers hold the lock of a tile while reading or writing it.
+ */
+public interface TileStorage {
+
+    /**
+     * @return the image and its timestamp, null if there is no image for this tile.
+     */
+    Tile read(MapId mapId) throws IOException;
+
+    /**
+     * @return the timestamp of the image, 0 if there is no image for this tile.
+     */
+    long getTimestamp(MapId mapId) throws IOException;
+
+    /**
+     * Replace the image of a tile, the timestamp is kept with it. The previous image stays readable until the new one is fully written.
+     */
+    void write(MapId mapId, byte[] image, long timestamp) throws IOException;
+
+    /**
+     * Visit the timestamps of all the images of a world and type, stops early if the thread is interrupted.
+     */
+    void forEach(String world, String type, TileVisitor visitor) throws IOException;
+
+    /**
+     * Flush and release the files, called when the server stops.
+     */
+    void close();
+
+    record Tile(byte[] image, long timestamp) {}
+
+    @FunctionalInterface
+    interface TileVisitor {
+
+        void visit(int x, int y, long timestamp);
+    }
+}
@@ -0,0 +1,202 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent open addressing table of the tiles of an index: packed coordinates to timestamp, hash and version, stored in primitive columns.
+ * <p>
+ * Reads don't lock: a slot is published by writing its version last, and the slots never move, a removed tile keeps its slot with a timestamp of 0
+ * until the next resize. A resize copies the live tiles into new columns, readers still on the old ones see the tiles as they were. Writes are
+ * serialized.
+ */
+public class TileTable {
+
+    private volatile Columns columns;
+
+    private int size;
+
+    /**
+     * Used slots, removed tiles included.
+     */
+    private int used;
+
+    public TileTable() {
+        this.columns = new Columns(64);
+    }
+
+    public long getTimestamp(long key) {
+        Columns columns = this.columns;
+        int slot = columns.find(key);
+        return slot < 0 ? 0 : columns.timestamps.get(slot);
+    }
+
+    public long getHash(long key) {
+        Columns columns = this.columns;
+        int slot = columns.find(key);
+        return slot < 0 ? 0 : columns.hashes.get(slot);
+    }
+
+    /**
+     * Set the timestamp, hash and version of a tile, a timestamp of 0 removes it.
+     *
+     * @return the previous timestamp of the tile, 0 if it had none.
+     */
+    public synchronized long put(long key, long timestamp, long hash, int version) {
+        Columns columns = this.columns;
+        int slot = columns.find(key);
+
+        if (slot >= 0) {
+            long previous = columns.timestamps.get(slot);
+            columns.timestamps.set(slot, timestamp);
+            columns.hashes.set(slot, timestamp == 0 ? 0 : hash);
+            columns.versions.set(slot, version);
+
+            if (previous == 0 && timestamp != 0) {
+                this.size++;
+            } else if (previous != 0 && timestamp == 0) {
+                this.size--;
+            }
+
+            return previous;
+        }
+
+        if (timestamp == 0) {
+            return 0;
+        }
+
+        if ((this.used + 1) * 4L > columns.capacity() * 3L) {
+            columns = resize();
+        }
+
+        slot = columns.free(key);
+        columns.keys.set(slot, key);
+        columns.timestamps.set(slot, timestamp);
+        columns.hashes.set(slot, hash);
+        columns.versions.set(slot, version);
+        this.size++;
+        this.used++;
+
+        return 0;
+    }
+
+    public synchronized void clear() {
+        this.columns = new Columns(64);
+        this.size = 0;
+        this.used = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Iterate over the tiles, without lock: tiles updated during the iteration may be seen with their old or new values.
+     */
+    public void forEach(Visitor visitor) {
+        Columns columns = this.columns;
+
+        for (int i = 0; i < columns.capacity(); i++) {
+            int version = columns.versions.get(i);
+            long timestamp = columns.timestamps.get(i);
+
+            if (version != 0 && timestamp != 0) {
+                visitor.visit(columns.keys.get(i), timestamp, columns.hashes.get(i), version);
+            }
+        }
+    }
+
+    /**
+     * Copy the tiles into new columns, sized for twice the live tiles, and publish them.
+     */
+    private Columns resize() {
+        Columns old = this.columns;
+        int capacity = 64;
+        while (capacity * 3L < this.size * 2L * 4) {
+            capacity <<= 1;
+        }
+
+        Columns columns = new Columns(capacity);
+        for (int i = 0; i < old.capacity(); i++) {
+            long timestamp = old.timestamps.get(i);
+
+            if (old.versions.get(i) != 0 && timestamp != 0) {
+                int slot = columns.free(old.keys.get(i));
+                columns.keys.set(slot, old.keys.get(i));
+                columns.timestamps.set(slot, timestamp);
+                columns.hashes.set(slot, old.hashes.get(i));
+                columns.versions.set(slot, old.versions.get(i));
+            }
+        }
+
+        this.used = this.size;
+        this.columns = columns;
+        return columns;
+    }
+
+    @FunctionalInterface
+    public interface Visitor {
+
+        void visit(long key, long timestamp, long hash, int version);
+    }
+
+    /**
+     * Slots of the table, a slot is empty while its version is 0.
+     */
+    private static final class Columns {
+
+        private final AtomicLongArray keys;
+
+        private final AtomicLongArray timestamps;
+
+        private final AtomicLongArray hashes;
+
+        private final AtomicIntegerArray versions;
+
+        private final int mask;
+
+        private Columns(int capacity) {
+            this.keys = new AtomicLongArray(capacity);
+            this.timestamps = new AtomicLongArray(capacity);
+            this.hashes = new AtomicLongArray(capacity);
+            this.versions = new AtomicIntegerArray(capacity);
+            this.mask = capacity - 1;
+        }
+
+        private int capacity() {
+            return this.mask + 1;
+        }
+
+        /**
+         * @return the slot of the key, -1 if it is not in the table.
+         */
+        private int find(long key) {
+            for (int i = index(key); ; i = i + 1 & this.mask) {
+                if (this.versions.get(i) == 0) {
+                    return -1;
+                }
+
+                if (this.keys.get(i) == key) {
+                    return i;
+                }
+            }
+        }
+
+        /**
+         * @return the first empty slot of the probe sequence of the key.
+         */
+        private int free(long key) {
+            int i = index(key);
+            while (this.versions.get(i) != 0) {
+                i = i + 1 & this.mask;
+            }
+
+            return i;
+        }
+
+        private int index(long key) {
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ hash >>> 32) & this.mask;
+        }
+    }
+}
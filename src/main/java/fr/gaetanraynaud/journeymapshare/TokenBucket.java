@@ -0,0 +1,71 @@
+package fr.gaetanraynaud.journeymapshare;
+
+/**
+ * Rate limit of a player: tokens are added at a fixed rate up to a capacity, and each admitted work takes some. A work bigger than the capacity is
+ * admitted when the bucket is full, the bucket then stays in debt until the tokens are added back.
+ */
+public class TokenBucket {
+
+    private final double tokensPerMilli;
+
+    private final long capacity;
+
+    private double tokens;
+
+    private long lastRefill;
+
+    /**
+     * @param burst seconds of tokens the bucket can hold, the bucket starts full
+     */
+    public TokenBucket(long tokensPerSecond, int burst) {
+        this.tokensPerMilli = Math.max(1, tokensPerSecond) / 1000D;
+        this.capacity = Math.max(1, tokensPerSecond) * burst;
+        this.tokens = this.capacity;
+        this.lastRefill = System.currentTimeMillis();
+    }
+
+    /**
+     * Take the tokens of a work if there are enough.
+     *
+     * @return true if the work is admitted.
+     */
+    public synchronized boolean tryTake(long amount) {
+        refill();
+
+        if (this.tokens < Math.min(amount, this.capacity)) {
+            return false;
+        }
+
+        this.tokens -= amount;
+        return true;
+    }
+
+    /**
+     * Take as many tokens as available, up to the amount.
+     *
+     * @return the number of tokens taken.
+     */
+    public synchronized long takeUpTo(long amount) {
+        refill();
+        long taken = Math.max(0, Math.min(amount, (long) this.tokens));
+        this.tokens -= taken;
+
+        return taken;
+    }
+
+    /**
+     * @return the time in milliseconds before a work of this amount can be admitted.
+     */
+    public synchronized long getWait(long amount) {
+        refill();
+        double missing = Math.min(amount, this.capacity) - this.tokens;
+
+        return missing <= 0 ? 0 : (long) Math.ceil(missing / this.tokensPerMilli);
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        this.tokens = Math.min(this.capacity, this.tokens + (now - this.lastRefill) * this.tokensPerMilli);
+        this.lastRefill = now;
+    }
+}
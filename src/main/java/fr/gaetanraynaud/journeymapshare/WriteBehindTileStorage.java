@@ -0,0 +1,150 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the last written image of each tile in memory and writes it to another storage after a delay, on a background thread. The images of a tile
+ * merged many times during the delay are only written once. Pending images are written when the storage is closed.
+ */
+public class WriteBehindTileStorage implements TileStorage {
+
+    /**
+     * Number of pending images above which they are written without waiting for the delay.
+     */
+    private static final int MAX_PENDING = 4096;
+
+    private final TileStorage storage;
+
+    private final long delay;
+
+    private final Map<MapId, Tile> pending = new ConcurrentHashMap<>();
+
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private final AtomicBoolean urgent = new AtomicBoolean();
+
+    private final ScheduledExecutorService executor;
+
+    private final LongAdder writes = new LongAdder();
+
+    private final LongAdder flushed = new LongAdder();
+
+    /**
+     * @param delay time in milliseconds an image stays in memory before being written
+     */
+    public WriteBehindTileStorage(TileStorage storage, long delay) {
+        this.storage = storage;
+        this.delay = delay;
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, JourneyMapShare.MOD_ID + "-write");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @Override
+    public Tile read(MapId mapId) throws IOException {
+        Tile tile = this.pending.get(mapId);
+        return tile == null ? this.storage.read(mapId) : tile;
+    }
+
+    @Override
+    public long getTimestamp(MapId mapId) throws IOException {
+        Tile tile = this.pending.get(mapId);
+        return tile == null ? this.storage.getTimestamp(mapId) : tile.timestamp();
+    }
+
+    @Override
+    public void write(MapId mapId, byte[] image, long timestamp) {
+        this.pending.put(mapId, new Tile(image, timestamp));
+        this.writes.increment();
+
+        if (this.pending.size() >= MAX_PENDING && this.urgent.compareAndSet(false, true)) {
+            this.executor.execute(this::flush);
+        } else if (this.scheduled.compareAndSet(false, true)) {
+            this.executor.schedule(this::flush, this.delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void forEach(String world, String type, TileVisitor visitor) throws IOException {
+        this.storage.forEach(world, type, visitor);
+
+        //The index only moves forward, the tiles also written to the storage are visited twice
+        for (Map.Entry<MapId, Tile> entry : this.pending.entrySet()) {
+            if (entry.getKey().world().equals(world) && entry.getKey().type().equals(type)) {
+                visitor.visit(entry.getKey().x(), entry.getKey().y(), entry.getValue().timestamp());
+            }
+        }
+    }
+
+    /**
+     * Write the pending images, then close the storage.
+     */
+    @Override
+    public void close() {
+        this.executor.shutdown();
+
+        try {
+            if (!this.executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                JourneyMapShare.LOGGER.warn("Timed out while waiting for pending images writes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        flush();
+        if (!this.pending.isEmpty()) {
+            JourneyMapShare.LOGGER.error("Lost {} images that could not be written", this.pending.size());
+        }
+
+        this.storage.close();
+    }
+
+    /**
+     * Describe the writes done since the last call.
+     */
+    public String pollStats() {
+        long writes = this.writes.sumThenReset();
+        long flushed = this.flushed.sumThenReset();
+
+        return String.format("%d writes, %d to disk (%.0f%%), %d pending", writes, flushed, writes == 0 ? 100 : flushed * 100D / writes,
+                             this.pending.size());
+    }
+
+    /**
+     * Write the pending images, an image written again meanwhile stays pending. A failed write is retried at the next flush.
+     */
+    private synchronized void flush() {
+        this.scheduled.set(false);
+        this.urgent.set(false);
+
+        for (MapId mapId : List.copyOf(this.pending.keySet())) {
+            Tile tile = this.pending.get(mapId);
+            if (tile == null) {
+                continue;
+            }
+
+            try {
+                this.storage.write(mapId, tile.image(), tile.timestamp());
+                this.pending.remove(mapId, tile);
+                this.flushed.increment();
+            } catch (IOException e) {
+                JourneyMapShare.LOGGER.error("An error occurred while writing image {}", mapId, e);
+            }
+        }
+
+        //Failed writes or images written during the flush
+        if (!this.pending.isEmpty() && !this.executor.isShutdown() && this.scheduled.compareAndSet(false, true)) {
+            this.executor.schedule(this::flush, this.delay, TimeUnit.MILLISECONDS);
+        }
+    }
+}
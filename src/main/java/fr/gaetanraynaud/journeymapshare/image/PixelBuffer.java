@@ -0,0 +1,34 @@
+package fr.gaetanraynaud.journeymapshare.image;
+
+/**
+ * Reusable ARGB pixels of an image, the array is only reallocated when a bigger image is decoded.
+ */
+public class PixelBuffer {
+
+    private int width;
+
+    private int height;
+
+    private int[] pixels = new int[0];
+
+    public void resize(int width, int height) {
+        this.width = width;
+        this.height = height;
+
+        if (this.pixels.length < width * height) {
+            this.pixels = new int[width * height];
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int[] getPixels() {
+        return pixels;
+    }
+}
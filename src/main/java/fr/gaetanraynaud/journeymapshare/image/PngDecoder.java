@@ -0,0 +1,284 @@
+package fr.gaetanraynaud.journeymapshare.image;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decode PNG images directly into ARGB pixels. Handles the non-interlaced 8 bits images written by JourneyMap, other formats go through ImageIO.
+ * Not thread safe, the buffers are reused between calls.
+ */
+public class PngDecoder {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    private static final int IHDR = 0x49484452;
+
+    private static final int PLTE = 0x504C5445;
+
+    private static final int TRNS = 0x74524E53;
+
+    private static final int IDAT = 0x49444154;
+
+    private static final int IEND = 0x49454E44;
+
+    /**
+     * Maximum width and height, the size of the JourneyMap tiles. Bigger images are rejected, so an uploaded image can't make the decoder allocate
+     * and keep huge buffers.
+     */
+    public static final int MAX_SIZE = 512;
+
+    private final Inflater inflater = new Inflater();
+
+    private final int[] palette = new int[256];
+
+    private byte[] raw = new byte[0];
+
+    /**
+     * Decode the image into the buffer, which is resized if needed.
+     */
+    public void decode(byte[] data, PixelBuffer buffer) throws IOException {
+        if (data.length < SIGNATURE.length + 25) {
+            throw new IOException("Invalid PNG: too short");
+        }
+
+        for (int i = 0; i < SIGNATURE.length; i++) {
+            if (data[i] != SIGNATURE[i]) {
+                throw new IOException("Invalid PNG: bad signature");
+            }
+        }
+
+        int width = 0;
+        int height = 0;
+        int colorType = 0;
+        int bytesPerPixel = 0;
+        int rawSize = 0;
+        int rawPos = 0;
+        boolean transparency = false;
+        this.inflater.reset();
+
+        int pos = SIGNATURE.length;
+        while (pos + 8 <= data.length) {
+            int length = readInt(data, pos);
+            int type = readInt(data, pos + 4);
+            int start = pos + 8;
+
+            if (length < 0 || (long) start + length > data.length) {
+                throw new IOException("Invalid PNG: truncated chunk");
+            }
+
+            //The header is the first chunk, and the only one
+            if ((pos == SIGNATURE.length) != (type == IHDR) || type == IHDR && length != 13) {
+                throw new IOException("Invalid PNG: bad header");
+            }
+
+            switch (type) {
+                case IHDR -> {
+                    width = readInt(data, start);
+                    height = readInt(data, start + 4);
+                    int bitDepth = data[start + 8];
+                    colorType = data[start + 9];
+                    int interlace = data[start + 12];
+
+                    if (width <= 0 || height <= 0 || width > MAX_SIZE || height > MAX_SIZE) {
+                        throw new IOException("Invalid PNG: unsupported size " + width + "x" + height);
+                    }
+
+                    bytesPerPixel = switch (colorType) {
+                        case 0, 3 -> 1;
+                        case 4 -> 2;
+                        case 2 -> 3;
+                        case 6 -> 4;
+                        default -> 0;
+                    };
+
+                    if (bitDepth != 8 || interlace != 0 || bytesPerPixel == 0) {
+                        decodeWithImageIO(data, buffer);
+                        return;
+                    }
+
+                    rawSize = Math.toIntExact((long) height * ((long) width * bytesPerPixel + 1));
+                    if (this.raw.length < rawSize) {
+                        this.raw = new byte[rawSize];
+                    }
+
+                    for (int i = 0; i < this.palette.length; i++) {
+                        this.palette[i] = 0xFF000000;
+                    }
+                }
+                case PLTE -> {
+                    for (int i = 0; i < length / 3 && i < this.palette.length; i++) {
+                        int offset = start + i * 3;
+                        this.palette[i] = 0xFF000000 | (data[offset] & 0xFF) << 16 | (data[offset + 1] & 0xFF) << 8 | data[offset + 2] & 0xFF;
+                    }
+                }
+                case TRNS -> {
+                    if (colorType != 3) {
+                        //Color key transparency is never written by JourneyMap
+                        decodeWithImageIO(data, buffer);
+                        return;
+                    }
+
+                    for (int i = 0; i < length && i < this.palette.length; i++) {
+                        this.palette[i] = (data[start + i] & 0xFF) << 24 | this.palette[i] & 0xFFFFFF;
+                    }
+                    transparency = true;
+                }
+                case IDAT -> {
+                    if (rawSize == 0) {
+                        throw new IOException("Invalid PNG: IDAT before IHDR");
+                    }
+
+                    this.inflater.setInput(data, start, length);
+                    try {
+                        while (rawPos < rawSize && !this.inflater.needsInput() && !this.inflater.finished()) {
+                            int read = this.inflater.inflate(this.raw, rawPos, rawSize - rawPos);
+                            if (read == 0 && this.inflater.needsDictionary()) {
+                                throw new IOException("Invalid PNG: preset dictionary");
+                            }
+                            rawPos += read;
+                        }
+                    } catch (DataFormatException e) {
+                        throw new IOException("Invalid PNG: corrupted data", e);
+                    }
+                }
+                default -> {
+                }
+            }
+
+            if (type == IEND) {
+                break;
+            }
+
+            pos = start + length + 4;
+        }
+
+        if (rawSize == 0 || rawPos < rawSize) {
+            throw new IOException("Invalid PNG: missing image data");
+        }
+
+        unfilter(width, height, bytesPerPixel);
+        buffer.resize(width, height);
+        toArgb(buffer.getPixels(), width, height, colorType, bytesPerPixel, transparency);
+    }
+
+    private void unfilter(int width, int height, int bpp) throws IOException {
+        byte[] raw = this.raw;
+        int stride = width * bpp;
+
+        for (int row = 0; row < height; row++) {
+            int line = row * (stride + 1);
+            int filter = raw[line];
+            int cur = line + 1;
+            int prev = cur - stride - 1;
+
+            switch (filter) {
+                case 0 -> {
+                }
+                case 1 -> {
+                    for (int i = bpp; i < stride; i++) {
+                        raw[cur + i] += raw[cur + i - bpp];
+                    }
+                }
+                case 2 -> {
+                    if (row > 0) {
+                        for (int i = 0; i < stride; i++) {
+                            raw[cur + i] += raw[prev + i];
+                        }
+                    }
+                }
+                case 3 -> {
+                    for (int i = 0; i < stride; i++) {
+                        int left = i >= bpp ? raw[cur + i - bpp] & 0xFF : 0;
+                        int up = row > 0 ? raw[prev + i] & 0xFF : 0;
+                        raw[cur + i] += (byte) ((left + up) >>> 1);
+                    }
+                }
+                case 4 -> {
+                    for (int i = 0; i < stride; i++) {
+                        int left = i >= bpp ? raw[cur + i - bpp] & 0xFF : 0;
+                        int up = row > 0 ? raw[prev + i] & 0xFF : 0;
+                        int upLeft = i >= bpp && row > 0 ? raw[prev + i - bpp] & 0xFF : 0;
+                        raw[cur + i] += (byte) paeth(left, up, upLeft);
+                    }
+                }
+                default -> throw new IOException("Invalid PNG: unknown filter " + filter);
+            }
+        }
+    }
+
+    private void toArgb(int[] pixels, int width, int height, int colorType, int bpp, boolean transparency) {
+        byte[] raw = this.raw;
+        int stride = width * bpp;
+        int p = 0;
+
+        for (int row = 0; row < height; row++) {
+            int i = row * (stride + 1) + 1;
+            int end = i + stride;
+
+            switch (colorType) {
+                case 6 -> {
+                    for (; i < end; i += 4) {
+                        pixels[p++] = (raw[i + 3] & 0xFF) << 24 | (raw[i] & 0xFF) << 16 | (raw[i + 1] & 0xFF) << 8 | raw[i + 2] & 0xFF;
+                    }
+                }
+                case 2 -> {
+                    for (; i < end; i += 3) {
+                        pixels[p++] = 0xFF000000 | (raw[i] & 0xFF) << 16 | (raw[i + 1] & 0xFF) << 8 | raw[i + 2] & 0xFF;
+                    }
+                }
+                case 4 -> {
+                    for (; i < end; i += 2) {
+                        int gray = raw[i] & 0xFF;
+                        pixels[p++] = (raw[i + 1] & 0xFF) << 24 | gray << 16 | gray << 8 | gray;
+                    }
+                }
+                case 3 -> {
+                    for (; i < end; i++) {
+                        pixels[p++] = this.palette[raw[i] & 0xFF];
+                    }
+                }
+                default -> {
+                    for (; i < end; i++) {
+                        int gray = raw[i] & 0xFF;
+                        pixels[p++] = 0xFF000000 | gray << 16 | gray << 8 | gray;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void decodeWithImageIO(byte[] data, PixelBuffer buffer) throws IOException {
+        try (ByteArrayInputStream stream = new ByteArrayInputStream(data)) {
+            BufferedImage image = ImageIO.read(stream);
+
+            if (image == null) {
+                throw new IOException("Invalid PNG: unreadable image");
+            }
+
+            buffer.resize(image.getWidth(), image.getHeight());
+            image.getRGB(0, 0, image.getWidth(), image.getHeight(), buffer.getPixels(), 0, image.getWidth());
+            image.flush();
+        }
+    }
+
+    static int paeth(int left, int up, int upLeft) {
+        int p = left + up - upLeft;
+        int pa = Math.abs(p - left);
+        int pb = Math.abs(p - up);
+        int pc = Math.abs(p - upLeft);
+
+        if (pa <= pb && pa <= pc) {
+            return left;
+        }
+
+        return pb <= pc ? up : upLeft;
+    }
+
+    private static int readInt(byte[] data, int pos) {
+        return (data[pos] & 0xFF) << 24 | (data[pos + 1] & 0xFF) << 16 | (data[pos + 2] & 0xFF) << 8 | data[pos + 3] & 0xFF;
+    }
+}
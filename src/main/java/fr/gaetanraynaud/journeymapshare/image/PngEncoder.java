@@ -0,0 +1,264 @@
+package fr.gaetanraynaud.journeymapshare.image;
+
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Encode ARGB pixels into an 8 bits RGBA PNG, with a deflate level and a filter for the rows. By default the filter of each row is chosen like
+ * ImageIO does. Not thread safe, the buffers and the deflater are reused between calls.
+ */
+public class PngEncoder {
+
+    private static final byte[] SIGNATURE = {(byte) 137, 80, 78, 71, 13, 10, 26, 10};
+
+    private static final int IDAT_SIZE = 32 * 1024;
+
+    /**
+     * Same level as the ImageIO PNG writer.
+     */
+    public static final int DEFAULT_LEVEL = 4;
+
+    private final CRC32 crc = new CRC32();
+
+    private final Deflater deflater = new Deflater(DEFAULT_LEVEL);
+
+    private final byte[] idat = new byte[IDAT_SIZE];
+
+    private byte[] out = new byte[64 * 1024];
+
+    private int size;
+
+    private byte[] previous = new byte[0];
+
+    private byte[] current = new byte[0];
+
+    private byte[][] filtered = new byte[5][0];
+
+    public byte[] encode(int[] pixels, int width, int height) {
+        return encode(pixels, width, height, DEFAULT_LEVEL, Filter.ADAPTIVE);
+    }
+
+    /**
+     * @param level deflate level, from 1 for the fastest to 9 for the smallest
+     */
+    public byte[] encode(int[] pixels, int width, int height, int level, Filter filter) {
+        int stride = width * 4;
+        if (this.current.length < stride) {
+            this.previous = new byte[stride];
+            this.current = new byte[stride];
+            this.filtered = new byte[5][stride + 1];
+        }
+
+        this.size = 0;
+        write(SIGNATURE, 0, SIGNATURE.length);
+
+        byte[] header = new byte[13];
+        writeInt(header, 0, width);
+        writeInt(header, 4, height);
+        header[8] = 8; //Bit depth
+        header[9] = 6; //RGBA
+        writeChunk(0x49484452, header, header.length);
+
+        Deflater deflater = this.deflater;
+        deflater.reset();
+        deflater.setLevel(Math.max(Deflater.BEST_SPEED, Math.min(level, Deflater.BEST_COMPRESSION)));
+        Arrays.fill(this.previous, 0, stride, (byte) 0);
+        int idatSize = 0;
+
+        for (int row = 0; row < height; row++) {
+            int p = row * width;
+            for (int i = 0; i < stride; i += 4) {
+                int argb = pixels[p++];
+                this.current[i] = (byte) (argb >>> 16);
+                this.current[i + 1] = (byte) (argb >>> 8);
+                this.current[i + 2] = (byte) argb;
+                this.current[i + 3] = (byte) (argb >>> 24);
+            }
+
+            byte[] line = filter == Filter.ADAPTIVE ? filterAdaptive(stride) : filter(stride, filter.ordinal());
+            deflater.setInput(line, 0, stride + 1);
+            while (!deflater.needsInput()) {
+                idatSize = deflate(deflater, idatSize);
+            }
+
+            byte[] swap = this.previous;
+            this.previous = this.current;
+            this.current = swap;
+        }
+
+        deflater.finish();
+        while (!deflater.finished()) {
+            idatSize = deflate(deflater, idatSize);
+        }
+
+        if (idatSize > 0) {
+            writeChunk(0x49444154, this.idat, idatSize);
+        }
+
+        writeChunk(0x49454E44, this.idat, 0);
+        return Arrays.copyOf(this.out, this.size);
+    }
+
+    private int deflate(Deflater deflater, int idatSize) {
+        idatSize += deflater.deflate(this.idat, idatSize, IDAT_SIZE - idatSize);
+
+        if (idatSize == IDAT_SIZE) {
+            writeChunk(0x49444154, this.idat, idatSize);
+            return 0;
+        }
+
+        return idatSize;
+    }
+
+    /**
+     * Apply a single PNG filter to the current row.
+     *
+     * @param type PNG filter type, from 0 for none to 4 for paeth
+     */
+    private byte[] filter(int stride, int type) {
+        byte[] cur = this.current;
+        byte[] prev = this.previous;
+        byte[] line = this.filtered[type];
+        line[0] = (byte) type;
+
+        switch (type) {
+            case 0 -> System.arraycopy(cur, 0, line, 1, stride);
+            case 1 -> {
+                System.arraycopy(cur, 0, line, 1, Math.min(4, stride));
+                for (int i = 4; i < stride; i++) {
+                    line[i + 1] = (byte) (cur[i] - cur[i - 4]);
+                }
+            }
+            case 2 -> {
+                for (int i = 0; i < stride; i++) {
+                    line[i + 1] = (byte) (cur[i] - prev[i]);
+                }
+            }
+            case 3 -> {
+                for (int i = 0; i < stride; i++) {
+                    int left = i >= 4 ? cur[i - 4] & 0xFF : 0;
+                    line[i + 1] = (byte) (cur[i] - ((left + (prev[i] & 0xFF)) >>> 1));
+                }
+            }
+            default -> {
+                for (int i = 0; i < stride; i++) {
+                    int left = i >= 4 ? cur[i - 4] & 0xFF : 0;
+                    int upLeft = i >= 4 ? prev[i - 4] & 0xFF : 0;
+                    line[i + 1] = (byte) (cur[i] - PngDecoder.paeth(left, prev[i] & 0xFF, upLeft));
+                }
+            }
+        }
+
+        return line;
+    }
+
+    /**
+     * Apply the five PNG filters to the current row and keep the one with the smallest sum of its bytes read as signed, in absolute value, same
+     * heuristic as libpng and ImageIO.
+     */
+    private byte[] filterAdaptive(int stride) {
+        byte[] cur = this.current;
+        byte[] prev = this.previous;
+        byte[] none = this.filtered[0];
+        byte[] sub = this.filtered[1];
+        byte[] up = this.filtered[2];
+        byte[] avg = this.filtered[3];
+        byte[] paeth = this.filtered[4];
+        none[0] = 0;
+        sub[0] = 1;
+        up[0] = 2;
+        avg[0] = 3;
+        paeth[0] = 4;
+        long sumNone = 0;
+        long sumSub = 0;
+        long sumUp = 0;
+        long sumAvg = 0;
+        long sumPaeth = 0;
+
+        for (int i = 0; i < stride; i++) {
+            int x = cur[i] & 0xFF;
+            int left = i >= 4 ? cur[i - 4] & 0xFF : 0;
+            int above = prev[i] & 0xFF;
+            int upLeft = i >= 4 ? prev[i - 4] & 0xFF : 0;
+
+            int d = x - left;
+            int e = x - above;
+            int f = x - ((left + above) >>> 1);
+            int g = x - PngDecoder.paeth(left, above, upLeft);
+            none[i + 1] = (byte) x;
+            sub[i + 1] = (byte) d;
+            up[i + 1] = (byte) e;
+            avg[i + 1] = (byte) f;
+            paeth[i + 1] = (byte) g;
+            sumNone += Math.abs((byte) x);
+            sumSub += Math.abs((byte) d);
+            sumUp += Math.abs((byte) e);
+            sumAvg += Math.abs((byte) f);
+            sumPaeth += Math.abs((byte) g);
+        }
+
+        byte[] best = none;
+        long min = sumNone;
+        if (sumSub < min) {
+            best = sub;
+            min = sumSub;
+        }
+        if (sumUp < min) {
+            best = up;
+            min = sumUp;
+        }
+        if (sumAvg < min) {
+            best = avg;
+            min = sumAvg;
+        }
+        if (sumPaeth < min) {
+            best = paeth;
+        }
+
+        return best;
+    }
+
+    private void writeChunk(int type, byte[] data, int length) {
+        ensureCapacity(length + 12);
+        writeInt(this.out, this.size, length);
+        writeInt(this.out, this.size + 4, type);
+        System.arraycopy(data, 0, this.out, this.size + 8, length);
+        this.crc.reset();
+        this.crc.update(this.out, this.size + 4, length + 4);
+        writeInt(this.out, this.size + 8 + length, (int) this.crc.getValue());
+        this.size += length + 12;
+    }
+
+    private void write(byte[] data, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(data, offset, this.out, this.size, length);
+        this.size += length;
+    }
+
+    private void ensureCapacity(int length) {
+        if (this.size + length > this.out.length) {
+            this.out = Arrays.copyOf(this.out, Math.max(this.out.length * 2, this.size + length));
+        }
+    }
+
+    private static void writeInt(byte[] data, int pos, int value) {
+        data[pos] = (byte) (value >>> 24);
+        data[pos + 1] = (byte) (value >>> 16);
+        data[pos + 2] = (byte) (value >>> 8);
+        data[pos + 3] = (byte) value;
+    }
+
+    /**
+     * Filter applied to the rows before deflating them, in the order of the PNG filter types. A fixed filter is faster, the adaptive one gives
+     * smaller images.
+     */
+    public enum Filter {
+        NONE,
+        SUB,
+        UP,
+        AVERAGE,
+        PAETH,
+        ADAPTIVE
+    }
+}
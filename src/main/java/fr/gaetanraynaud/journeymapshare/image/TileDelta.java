@@ -0,0 +1,147 @@
+package fr.gaetanraynaud.journeymapshare.image;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Changes between two versions of a tile, as the pixels of the {@link #BLOCK_SIZE} blocks that changed. The changed blocks are a bit mask, block by
+ * block from the top left corner, row by row.
+ * <p>
+ * Format, deflated: width and height as shorts, the longs of the mask, then the ARGB pixels of each changed block, row by row.
+ */
+public final class TileDelta {
+
+    public static final int BLOCK_SIZE = 16;
+
+    private TileDelta() {}
+
+    /**
+     * @return an empty mask for the blocks of an image of this size.
+     */
+    public static long[] newMask(int width, int height) {
+        return new long[(blocksPerRow(width) * blocksPerRow(height) + 63) / 64];
+    }
+
+    /**
+     * Mark the block of a pixel as changed.
+     */
+    public static void mark(long[] mask, int width, int x, int y) {
+        int block = (y / BLOCK_SIZE) * blocksPerRow(width) + x / BLOCK_SIZE;
+        mask[block >>> 6] |= 1L << block;
+    }
+
+    /**
+     * @return the number of changed blocks of the mask.
+     */
+    public static int count(long[] mask) {
+        int count = 0;
+        for (long bits : mask) {
+            count += Long.bitCount(bits);
+        }
+
+        return count;
+    }
+
+    /**
+     * @return the number of blocks of an image of this size.
+     */
+    public static int blocks(int width, int height) {
+        return blocksPerRow(width) * blocksPerRow(height);
+    }
+
+    /**
+     * Encode the pixels of the changed blocks of an image.
+     */
+    public static byte[] encode(PixelBuffer buffer, long[] mask) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Deflater deflater = new Deflater();
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(bytes, deflater, 8192), 8192))) {
+            out.writeShort(buffer.getWidth());
+            out.writeShort(buffer.getHeight());
+            for (long bits : mask) {
+                out.writeLong(bits);
+            }
+
+            int[] pixels = buffer.getPixels();
+            forEachBlock(mask, buffer.getWidth(), buffer.getHeight(), (offset, width, height) -> {
+                for (int y = 0; y < height; y++) {
+                    for (int x = 0; x < width; x++) {
+                        out.writeInt(pixels[offset + y * buffer.getWidth() + x]);
+                    }
+                }
+            });
+        } catch (IOException e) {
+            //Only written in memory
+            throw new IllegalStateException(e);
+        } finally {
+            deflater.end();
+        }
+
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Replace the changed blocks of an image by the ones of a delta.
+     */
+    public static void apply(byte[] delta, PixelBuffer buffer) throws IOException {
+        Inflater inflater = new Inflater();
+
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new InflaterInputStream(new ByteArrayInputStream(delta), inflater, 8192), 8192))) {
+            int width = in.readUnsignedShort();
+            int height = in.readUnsignedShort();
+
+            if (width != buffer.getWidth() || height != buffer.getHeight()) {
+                throw new IOException("Delta of a " + width + "x" + height + " image for a " + buffer.getWidth() + "x" + buffer.getHeight() + " image");
+            }
+
+            long[] mask = newMask(width, height);
+            for (int i = 0; i < mask.length; i++) {
+                mask[i] = in.readLong();
+            }
+
+            int[] pixels = buffer.getPixels();
+            forEachBlock(mask, width, height, (offset, blockWidth, blockHeight) -> {
+                for (int y = 0; y < blockHeight; y++) {
+                    for (int x = 0; x < blockWidth; x++) {
+                        pixels[offset + y * width + x] = in.readInt();
+                    }
+                }
+            });
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static int blocksPerRow(int size) {
+        return (size + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private static void forEachBlock(long[] mask, int width, int height, BlockVisitor visitor) throws IOException {
+        int blocksPerRow = blocksPerRow(width);
+
+        for (int block = 0, blocks = blocks(width, height); block < blocks; block++) {
+            if ((mask[block >>> 6] & 1L << block) != 0) {
+                int x = (block % blocksPerRow) * BLOCK_SIZE;
+                int y = (block / blocksPerRow) * BLOCK_SIZE;
+                visitor.visit(y * width + x, Math.min(BLOCK_SIZE, width - x), Math.min(BLOCK_SIZE, height - y));
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface BlockVisitor {
+
+        void visit(int offset, int width, int height) throws IOException;
+    }
+}
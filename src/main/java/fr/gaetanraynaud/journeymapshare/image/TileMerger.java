@@ -0,0 +1,211 @@
+package fr.gaetanraynaud.journeymapshare.image;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.function.LongPredicate;
+
+/**
+ * Merge two versions of a tile directly on their pixels: the pixels of the bottom image fill the transparent pixels of the top image.
+ * Same result as drawing the bottom image with {@link java.awt.AlphaComposite#DstOver} on the top one.
+ * <p>
+ * The {@link TileDelta} blocks changed by the merge are kept, to send only them to the players which have one of the merged images.
+ * <p>
+ * Each thread has its own merger, so decoding and merging reuse the same buffers and don't allocate once warmed up. The merged pixels are kept by
+ * the caller, to merge several images before encoding the result.
+ */
+public class TileMerger {
+
+    private static final ThreadLocal<TileMerger> MERGERS = ThreadLocal.withInitial(TileMerger::new);
+
+    private final PngDecoder decoder = new PngDecoder();
+
+    private final PngEncoder encoder = new PngEncoder();
+
+    private final PixelBuffer top = new PixelBuffer();
+
+    private final PixelBuffer bottom = new PixelBuffer();
+
+    private int bottomDifferences;
+
+    private int imageDifferences;
+
+    private long[] topBlocks = new long[0];
+
+    private long[] bottomBlocks = new long[0];
+
+    private long[] changedBlocks = new long[0];
+
+    public static TileMerger get() {
+        return MERGERS.get();
+    }
+
+    /**
+     * Merge an image with pixels kept by the caller, the result replaces the pixels. The pixels of the bottom image fill the transparent pixels of
+     * the top one.
+     *
+     * @param imageOnTop true if the image is on top of the pixels
+     * @return the number of pixels that changed, 0 if the image brings nothing new.
+     */
+    public int merge(PixelBuffer pixels, byte[] image, boolean imageOnTop) throws IOException {
+        if (imageOnTop) {
+            this.decoder.decode(image, this.top);
+            this.imageDifferences = merge(this.top, pixels);
+            this.changedBlocks = this.bottomBlocks;
+            int changed = this.bottomDifferences;
+
+            System.arraycopy(this.top.getPixels(), 0, pixels.getPixels(), 0, pixels.getWidth() * pixels.getHeight());
+            return changed;
+        }
+
+        this.decoder.decode(image, this.bottom);
+        int changed = merge(pixels, this.bottom);
+        this.imageDifferences = this.bottomDifferences;
+        this.changedBlocks = this.topBlocks;
+
+        return changed;
+    }
+
+    /**
+     * Merge the bottom image into the top one.
+     *
+     * @return the number of pixels of the top image that changed.
+     */
+    private int merge(PixelBuffer top, PixelBuffer bottom) throws IOException {
+        if (top.getWidth() != bottom.getWidth() || top.getHeight() != bottom.getHeight()) {
+            throw new IOException("Can't merge images of different sizes");
+        }
+
+        int[] dst = top.getPixels();
+        int[] src = bottom.getPixels();
+        int width = top.getWidth();
+        int changed = 0;
+        int different = 0;
+        this.topBlocks = resetMask(this.topBlocks, top);
+        this.bottomBlocks = resetMask(this.bottomBlocks, top);
+
+        for (int y = 0, i = 0; y < top.getHeight(); y++) {
+            for (int x = 0; x < width; x++, i++) {
+                int t = dst[i];
+                int b = src[i];
+                int topAlpha = t >>> 24;
+
+                if (topAlpha != 0xFF) {
+                    int r;
+                    if (topAlpha == 0) {
+                        r = b >>> 24 == 0 ? t : b;
+                    } else {
+                        r = blend(t, b, topAlpha);
+                    }
+
+                    if (r != t) {
+                        dst[i] = r;
+                        changed++;
+                        t = r;
+                        TileDelta.mark(this.topBlocks, width, x, y);
+                    }
+                }
+
+                if (t != b) {
+                    different++;
+                    TileDelta.mark(this.bottomBlocks, width, x, y);
+                }
+            }
+        }
+
+        this.bottomDifferences = different;
+        return changed;
+    }
+
+    /**
+     * @return the number of pixels of the result of the last merge that differ from the merged image.
+     */
+    public int getImageDifferences() {
+        return imageDifferences;
+    }
+
+    /**
+     * @return a copy of the mask of the {@link TileDelta} blocks of the pixels changed by the last merge.
+     */
+    public long[] getChangedBlocks() {
+        return this.changedBlocks.clone();
+    }
+
+    /**
+     * Decode an image into pixels kept by the caller.
+     */
+    public void decode(byte[] image, PixelBuffer pixels) throws IOException {
+        this.decoder.decode(image, pixels);
+    }
+
+    /**
+     * Encode pixels kept by the caller.
+     *
+     * @param level deflate level, from 1 for the fastest to 9 for the smallest
+     */
+    public byte[] encode(PixelBuffer pixels, int level, PngEncoder.Filter filter) {
+        return this.encoder.encode(pixels.getPixels(), pixels.getWidth(), pixels.getHeight(), level, filter);
+    }
+
+    /**
+     * Apply a delta on an image, the result is then read by {@link #getHash()} and {@link #encode()}.
+     *
+     * @param isBase test if the delta was made from the pixels with this hash
+     * @return false if the pixels of the image don't have a hash the delta was made from.
+     */
+    public boolean applyDelta(byte[] image, LongPredicate isBase, byte[] delta) throws IOException {
+        this.decoder.decode(image, this.top);
+
+        if (!isBase.test(XxHash64.hash(this.top))) {
+            return false;
+        }
+
+        TileDelta.apply(delta, this.top);
+        return true;
+    }
+
+    /**
+     * @return the {@link XxHash64} of the last image with a delta applied.
+     */
+    public long getHash() {
+        return XxHash64.hash(this.top);
+    }
+
+    /**
+     * Decode an image to get the {@link XxHash64} of its pixels, so images with the same content but encoded differently have the same hash.
+     */
+    public long hash(byte[] image) throws IOException {
+        this.decoder.decode(image, this.bottom);
+        return XxHash64.hash(this.bottom);
+    }
+
+    /**
+     * Encode the last image with a delta applied.
+     */
+    public byte[] encode() {
+        return this.encoder.encode(this.top.getPixels(), this.top.getWidth(), this.top.getHeight());
+    }
+
+    private static long[] resetMask(long[] mask, PixelBuffer image) {
+        if (mask.length != (TileDelta.blocks(image.getWidth(), image.getHeight()) + 63) / 64) {
+            return TileDelta.newMask(image.getWidth(), image.getHeight());
+        }
+
+        Arrays.fill(mask, 0);
+        return mask;
+    }
+
+    private static int blend(int top, int bottom, int topAlpha) {
+        int bottomAlpha = (bottom >>> 24) * (255 - topAlpha) / 255;
+        int alpha = topAlpha + bottomAlpha;
+
+        if (bottomAlpha == 0) {
+            return top;
+        }
+
+        int red = (((top >>> 16) & 0xFF) * topAlpha + ((bottom >>> 16) & 0xFF) * bottomAlpha) / alpha;
+        int green = (((top >>> 8) & 0xFF) * topAlpha + ((bottom >>> 8) & 0xFF) * bottomAlpha) / alpha;
+        int blue = ((top & 0xFF) * topAlpha + (bottom & 0xFF) * bottomAlpha) / alpha;
+
+        return alpha << 24 | red << 16 | green << 8 | blue;
+    }
+}
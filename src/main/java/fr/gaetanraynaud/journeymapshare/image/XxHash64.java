@@ -0,0 +1,92 @@
+package fr.gaetanraynaud.journeymapshare.image;
+
+/**
+ * xxHash64 of ARGB pixels, read as little endian bytes. Fully transparent pixels are all hashed as 0, their color is not visible.
+ */
+public final class XxHash64 {
+
+    private static final long PRIME_1 = 0x9E3779B185EBCA87L;
+
+    private static final long PRIME_2 = 0xC2B2AE3D27D4EB4FL;
+
+    private static final long PRIME_3 = 0x165667B19E3779F9L;
+
+    private static final long PRIME_4 = 0x85EBCA77C2B2AE63L;
+
+    private static final long PRIME_5 = 0x27D4EB2F165667C5L;
+
+    private XxHash64() {
+    }
+
+    public static long hash(PixelBuffer buffer) {
+        return hash(buffer.getPixels(), buffer.getWidth() * buffer.getHeight());
+    }
+
+    public static long hash(int[] pixels, int length) {
+        long hash;
+        int i = 0;
+
+        if (length >= 8) {
+            long v1 = PRIME_1 + PRIME_2;
+            long v2 = PRIME_2;
+            long v3 = 0;
+            long v4 = -PRIME_1;
+
+            //Stripes of 32 bytes, each lane reads 2 pixels
+            for (; i + 8 <= length; i += 8) {
+                v1 = round(v1, read(pixels, i));
+                v2 = round(v2, read(pixels, i + 2));
+                v3 = round(v3, read(pixels, i + 4));
+                v4 = round(v4, read(pixels, i + 6));
+            }
+
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+            hash = mergeRound(hash, v1);
+            hash = mergeRound(hash, v2);
+            hash = mergeRound(hash, v3);
+            hash = mergeRound(hash, v4);
+        } else {
+            hash = PRIME_5;
+        }
+
+        hash += length * 4L;
+
+        for (; i + 2 <= length; i += 2) {
+            hash ^= round(0, read(pixels, i));
+            hash = Long.rotateLeft(hash, 27) * PRIME_1 + PRIME_4;
+        }
+
+        if (i < length) {
+            hash ^= (pixel(pixels, i) & 0xFFFFFFFFL) * PRIME_1;
+            hash = Long.rotateLeft(hash, 23) * PRIME_2 + PRIME_3;
+        }
+
+        hash ^= hash >>> 33;
+        hash *= PRIME_2;
+        hash ^= hash >>> 29;
+        hash *= PRIME_3;
+        hash ^= hash >>> 32;
+
+        return hash;
+    }
+
+    private static long read(int[] pixels, int i) {
+        return pixel(pixels, i) & 0xFFFFFFFFL | (long) pixel(pixels, i + 1) << 32;
+    }
+
+    private static int pixel(int[] pixels, int i) {
+        int pixel = pixels[i];
+        return pixel >>> 24 == 0 ? 0 : pixel;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME_1;
+    }
+
+    private static long mergeRound(long acc, long value) {
+        acc ^= round(0, value);
+        return acc * PRIME_1 + PRIME_4;
+    }
+}
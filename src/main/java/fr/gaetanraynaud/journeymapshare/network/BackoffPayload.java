@@ -0,0 +1,30 @@
+package fr.gaetanraynaud.journeymapshare.network;
+
+import fr.gaetanraynaud.journeymapshare.JourneyMapShare;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.codec.PacketCodecs;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+import java.util.List;
+
+/**
+ * Packet sent by the server when a player uploads or asks images faster than its rate limit, used for S2C. The rejected images, as packed
+ * coordinates, and the rejected regions are uploaded or asked again after the delay in milliseconds, and the client slows down its uploads.
+ */
+public record BackoffPayload(String world, String type, long delay, List<Long> uploads, List<Long> requests, List<Long> regions)
+        implements CustomPayload {
+
+    public static final Id<BackoffPayload> ID = new Id<>(Identifier.of(JourneyMapShare.MOD_ID, "backoff"));
+
+    public static final PacketCodec<RegistryByteBuf, BackoffPayload> CODEC = PacketCodec.tuple(
+            PacketCodecs.STRING, BackoffPayload::world, PacketCodecs.STRING, BackoffPayload::type, PacketCodecs.VAR_LONG, BackoffPayload::delay,
+            PacketCodecs.LONG.collect(PacketCodecs.toList()), BackoffPayload::uploads, PacketCodecs.LONG.collect(PacketCodecs.toList()),
+            BackoffPayload::requests, PacketCodecs.VAR_LONG.collect(PacketCodecs.toList()), BackoffPayload::regions, BackoffPayload::new);
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,26 @@
+package fr.gaetanraynaud.journeymapshare.network;
+
+import fr.gaetanraynaud.journeymapshare.JourneyMapShare;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.codec.PacketCodecs;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+/**
+ * Packet acknowledging the chunks of a transfer received by the client, used for C2S. With resend, the client did not have the previous chunks and
+ * the server must send the transfer again from the offset.
+ */
+public record ImageChunkAckPayload(int transferId, int offset, boolean resend) implements CustomPayload {
+
+    public static final Id<ImageChunkAckPayload> ID = new Id<>(Identifier.of(JourneyMapShare.MOD_ID, "image_chunk_ack"));
+
+    public static final PacketCodec<RegistryByteBuf, ImageChunkAckPayload> CODEC = PacketCodec.tuple(
+            PacketCodecs.VAR_INT, ImageChunkAckPayload::transferId, PacketCodecs.VAR_INT, ImageChunkAckPayload::offset, PacketCodecs.BOOLEAN,
+            ImageChunkAckPayload::resend, ImageChunkAckPayload::new);
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+}
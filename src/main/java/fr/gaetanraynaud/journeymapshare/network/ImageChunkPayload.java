@@ -0,0 +1,120 @@
+package fr.gaetanraynaud.journeymapshare.network;
+
+import fr.gaetanraynaud.journeymapshare.JourneyMapShare;
+import fr.gaetanraynaud.journeymapshare.MapId;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+import java.util.Arrays;
+
+/**
+ * Packet with a part of an image too big for a single {@link ImagePayload}, used for C2S and S2C. Each chunk repeats the description of the image,
+ * so a transfer can be resumed from any chunk.
+ */
+public final class ImageChunkPayload implements CustomPayload {
+
+    /**
+     * Images bigger than this are sent in chunks of this size.
+     */
+    public static final int CHUNK_SIZE = 32 * 1024;
+
+    /**
+     * Maximum size of an image sent in chunks, above the size of an uncompressed 512x512 RGBA tile. The receiver allocates the whole image, so
+     * bigger sizes are rejected.
+     */
+    public static final int MAX_IMAGE_SIZE = 2 * 1024 * 1024;
+
+    public static final Id<ImageChunkPayload> ID = new Id<>(Identifier.of(JourneyMapShare.MOD_ID, "image_chunk"));
+
+    public static final PacketCodec<RegistryByteBuf, ImageChunkPayload> CODEC = PacketCodec.of(ImageChunkPayload::write, ImageChunkPayload::new);
+
+    private final int transferId;
+
+    private final MapId mapId;
+
+    private final long timestamp;
+
+    private final long hash;
+
+    private final int size;
+
+    private final int offset;
+
+    private final byte[] data;
+
+    public ImageChunkPayload(int transferId, ImagePayload image, int offset) {
+        this.transferId = transferId;
+        this.mapId = image.getMapId();
+        this.timestamp = image.getTimestamp();
+        this.hash = image.getHash();
+        this.size = image.getImage().length;
+        this.offset = offset;
+        this.data = Arrays.copyOfRange(image.getImage(), offset, Math.min(this.size, offset + CHUNK_SIZE));
+    }
+
+    private ImageChunkPayload(RegistryByteBuf buf) {
+        this.transferId = buf.readVarInt();
+        this.mapId = new MapId(buf.readString(), buf.readString(), buf.readInt(), buf.readInt());
+        this.timestamp = buf.readLong();
+        this.hash = buf.readLong();
+        this.size = buf.readVarInt();
+        this.offset = buf.readVarInt();
+        this.data = buf.readByteArray(CHUNK_SIZE);
+    }
+
+    private void write(RegistryByteBuf buf) {
+        buf.writeVarInt(this.transferId);
+        buf.writeString(this.mapId.world());
+        buf.writeString(this.mapId.type());
+        buf.writeInt(this.mapId.x());
+        buf.writeInt(this.mapId.y());
+        buf.writeLong(this.timestamp);
+        buf.writeLong(this.hash);
+        buf.writeVarInt(this.size);
+        buf.writeVarInt(this.offset);
+        buf.writeByteArray(this.data);
+    }
+
+    public int getTransferId() {
+        return transferId;
+    }
+
+    public MapId getMapId() {
+        return mapId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * @return the size of the whole image.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+
+    @Override
+    public String toString() {
+        return "transfer=" + transferId + ", " + mapId + ", offset=" + offset + "/" + size;
+    }
+}
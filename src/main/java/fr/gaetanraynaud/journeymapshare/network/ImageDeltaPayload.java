@@ -0,0 +1,106 @@
+package fr.gaetanraynaud.journeymapshare.network;
+
+import fr.gaetanraynaud.journeymapshare.JourneyMapShare;
+import fr.gaetanraynaud.journeymapshare.MapId;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+/**
+ * Packet with the blocks of an image changed since one of its previous versions, used for S2C. The client applies it on its image if it has the
+ * pixels of one of the base hashes, else it asks for the whole image.
+ */
+public final class ImageDeltaPayload implements CustomPayload {
+
+    public static final Id<ImageDeltaPayload> ID = new Id<>(Identifier.of(JourneyMapShare.MOD_ID, "image_delta"));
+
+    public static final PacketCodec<RegistryByteBuf, ImageDeltaPayload> CODEC = PacketCodec.of(ImageDeltaPayload::write, ImageDeltaPayload::new);
+
+    private final MapId mapId;
+
+    private final long timestamp;
+
+    private final long hash;
+
+    private final long[] baseHashes;
+
+    private final byte[] data;
+
+    public ImageDeltaPayload(MapId mapId, long timestamp, long hash, long[] baseHashes, byte[] data) {
+        this.mapId = mapId;
+        this.timestamp = timestamp;
+        this.hash = hash;
+        this.baseHashes = baseHashes;
+        this.data = data;
+    }
+
+    private ImageDeltaPayload(RegistryByteBuf buf) {
+        this.mapId = new MapId(buf.readString(), buf.readString(), buf.readInt(), buf.readInt());
+        this.timestamp = buf.readLong();
+        this.hash = buf.readLong();
+        this.baseHashes = new long[buf.readVarInt()];
+        for (int i = 0; i < this.baseHashes.length; i++) {
+            this.baseHashes[i] = buf.readLong();
+        }
+
+        this.data = buf.readByteArray();
+    }
+
+    private void write(RegistryByteBuf buf) {
+        buf.writeString(this.mapId.world());
+        buf.writeString(this.mapId.type());
+        buf.writeInt(this.mapId.x());
+        buf.writeInt(this.mapId.y());
+        buf.writeLong(this.timestamp);
+        buf.writeLong(this.hash);
+        buf.writeVarInt(this.baseHashes.length);
+        for (long baseHash : this.baseHashes) {
+            buf.writeLong(baseHash);
+        }
+
+        buf.writeByteArray(this.data);
+    }
+
+    public MapId getMapId() {
+        return mapId;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * @return the hash of the pixels of the image once the delta is applied.
+     */
+    public long getHash() {
+        return hash;
+    }
+
+    /**
+     * @return true if the delta can be applied on the pixels with this hash.
+     */
+    public boolean hasBase(long baseHash) {
+        for (long hash : this.baseHashes) {
+            if (hash == baseHash) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+
+    @Override
+    public String toString() {
+        return "world='" + mapId.world() + '\'' + ", type='" + mapId.type() + '\'' + ", x=" + mapId.x() + ", y=" + mapId.y() + ", delta=" + data.length;
+    }
+}
@@ -4,26 +4,20 @@ import fr.gaetanraynaud.journeymapshare.JourneyMapShare;
 import fr.gaetanraynaud.journeymapshare.MapId;
 import net.minecraft.network.RegistryByteBuf;
 import net.minecraft.network.codec.PacketCodec;
-import net.minecraft.network.codec.PacketCodecs;
 import net.minecraft.network.packet.CustomPayload;
 import net.minecraft.util.Identifier;
 
 import java.nio.file.Path;
 
 /**
- * Packet with the data on an image, used for C2S and S2C.
+ * Packet with the data on an image, and the hash of its pixels (0 if unknown), used for C2S and S2C.
  */
 public final class ImagePayload implements CustomPayload {
 
     public static final Id<ImagePayload> ID = new Id<>(Identifier.of(JourneyMapShare.MOD_ID, "image"));
 
-    public static final PacketCodec<RegistryByteBuf, ImagePayload> CODEC = PacketCodec.tuple(PacketCodecs.STRING, ImagePayload::getWorld,
-                                                                                             PacketCodecs.STRING, ImagePayload::getType,
-                                                                                             PacketCodecs.INTEGER, ImagePayload::getX,
-                                                                                             PacketCodecs.INTEGER, ImagePayload::getY,
-                                                                                             PacketCodecs.BYTE_ARRAY, ImagePayload::getImage,
-                                                                                             PacketCodecs.LONG, ImagePayload::getTimestamp,
-                                                                                             ImagePayload::new);
+    public static final PacketCodec<RegistryByteBuf, ImagePayload> CODEC = PacketCodec.of(ImagePayload::write, ImagePayload::new);
+
     private final String world;
 
     private final String type;
@@ -34,15 +28,36 @@ public final class ImagePayload implements CustomPayload {
 
     private final byte[] image;
 
-    private long timestamp;
+    private final long timestamp;
+
+    private final long hash;
 
     public ImagePayload(String world, String type, int x, int y, byte[] image, long timestamp) {
+        this(world, type, x, y, image, timestamp, 0);
+    }
+
+    public ImagePayload(String world, String type, int x, int y, byte[] image, long timestamp, long hash) {
         this.world = world;
         this.type = type;
         this.x = x;
         this.y = y;
         this.image = image;
         this.timestamp = timestamp;
+        this.hash = hash;
+    }
+
+    private ImagePayload(RegistryByteBuf buf) {
+        this(buf.readString(), buf.readString(), buf.readInt(), buf.readInt(), buf.readByteArray(), buf.readLong(), buf.readLong());
+    }
+
+    private void write(RegistryByteBuf buf) {
+        buf.writeString(this.world);
+        buf.writeString(this.type);
+        buf.writeInt(this.x);
+        buf.writeInt(this.y);
+        buf.writeByteArray(this.image);
+        buf.writeLong(this.timestamp);
+        buf.writeLong(this.hash);
     }
 
     public Path getPath(Path rootPath) {
@@ -53,10 +68,6 @@ public final class ImagePayload implements CustomPayload {
         return new MapId(this.world, this.type, this.x, this.y);
     }
 
-    public ImageTimestamp getImageTimestamp() {
-        return new ImageTimestamp(this.x, this.y, this.timestamp);
-    }
-
     public String getWorld() {
         return world;
     }
@@ -81,8 +92,8 @@ public final class ImagePayload implements CustomPayload {
         return timestamp;
     }
 
-    public void setTimestamp(long timestamp) {
-        this.timestamp = timestamp;
+    public long getHash() {
+        return hash;
     }
 
     @Override
@@ -0,0 +1,70 @@
+package fr.gaetanraynaud.journeymapshare.network;
+
+import fr.gaetanraynaud.journeymapshare.JourneyMapShare;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packet with several images of the same world and type, used for C2S and S2C. The world and type are only written once for all the images.
+ */
+public final class ImagesBatchPayload implements CustomPayload {
+
+    public static final Id<ImagesBatchPayload> ID = new Id<>(Identifier.of(JourneyMapShare.MOD_ID, "images_batch"));
+
+    public static final PacketCodec<RegistryByteBuf, ImagesBatchPayload> CODEC = PacketCodec.of(ImagesBatchPayload::write, ImagesBatchPayload::new);
+
+    private final List<ImagePayload> images;
+
+    /**
+     * @param images images of the same world and type
+     */
+    public ImagesBatchPayload(List<ImagePayload> images) {
+        this.images = images;
+    }
+
+    private ImagesBatchPayload(RegistryByteBuf buf) {
+        String world = buf.readString();
+        String type = buf.readString();
+
+        //x, y, length of the image, timestamp and hash
+        int size = PayloadCompression.readCount(buf, 4 + 4 + 1 + 8 + 8);
+        this.images = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            this.images.add(new ImagePayload(world, type, buf.readInt(), buf.readInt(), buf.readByteArray(), buf.readLong(), buf.readLong()));
+        }
+    }
+
+    private void write(RegistryByteBuf buf) {
+        buf.writeString(this.images.getFirst().getWorld());
+        buf.writeString(this.images.getFirst().getType());
+        buf.writeVarInt(this.images.size());
+
+        for (ImagePayload image : this.images) {
+            buf.writeInt(image.getX());
+            buf.writeInt(image.getY());
+            buf.writeByteArray(image.getImage());
+            buf.writeLong(image.getTimestamp());
+            buf.writeLong(image.getHash());
+        }
+    }
+
+    public List<ImagePayload> getImages() {
+        return images;
+    }
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+
+    @Override
+    public String toString() {
+        return "world='" + images.getFirst().getWorld() + '\'' + ", type='" + images.getFirst().getType() + '\'' + ", images=" + images.size();
+    }
+}
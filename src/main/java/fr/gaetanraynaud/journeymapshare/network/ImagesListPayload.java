@@ -1,42 +1,81 @@
 package fr.gaetanraynaud.journeymapshare.network;
 
 import fr.gaetanraynaud.journeymapshare.JourneyMapShare;
+import net.minecraft.network.PacketByteBuf;
 import net.minecraft.network.RegistryByteBuf;
 import net.minecraft.network.codec.PacketCodec;
-import net.minecraft.network.codec.PacketCodecs;
 import net.minecraft.network.packet.CustomPayload;
 import net.minecraft.util.Identifier;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Packet with the list of images to ask, used for C2S.
+ * Packet with the list of images to ask, used for C2S. The body is compressed by {@link PayloadCompression} when enabled in the config of the client.
  */
 public final class ImagesListPayload implements CustomPayload {
 
     public static final Id<ImagesListPayload> ID = new Id<>(Identifier.of(JourneyMapShare.MOD_ID, "images_list"));
 
-    public static final PacketCodec<RegistryByteBuf, ImagesListPayload> CODEC = PacketCodec.tuple(PacketCodecs.STRING, ImagesListPayload::getWorld,
-                                                                                                  PacketCodecs.STRING, ImagesListPayload::getType,
-                                                                                                  PacketCodecs.map(HashMap::new, PacketCodecs.INTEGER,
-                                                                                                                   PacketCodecs.INTEGER.collect(
-                                                                                                                           PacketCodecs.toList())),
-                                                                                                  ImagesListPayload::getImages, ImagesListPayload::new);
+    public static final PacketCodec<RegistryByteBuf, ImagesListPayload> CODEC = PacketCodec.of(ImagesListPayload::write, buf -> new ImagesListPayload(
+            PayloadCompression.read(buf, PayloadCompression.MAX_C2S_SIZE)));
+
     private final String world;
 
     private final String type;
 
     private final Map<Integer, List<Integer>> images;
 
+    private int compressionLevel;
+
     public ImagesListPayload(String world, String type, Map<Integer, List<Integer>> images) {
         this.world = world;
         this.type = type;
         this.images = images;
     }
 
+    private ImagesListPayload(PacketByteBuf buf) {
+        this.world = buf.readString();
+        this.type = buf.readString();
+
+        //The counts come from the client, check them against the bytes of their elements before allocating
+        int nbColumns = PayloadCompression.readCount(buf, 5);
+        this.images = HashMap.newHashMap(nbColumns);
+        for (int i = 0; i < nbColumns; i++) {
+            int x = buf.readInt();
+            int nbImages = PayloadCompression.readCount(buf, 4);
+            List<Integer> column = new ArrayList<>(nbImages);
+
+            for (int j = 0; j < nbImages; j++) {
+                column.add(buf.readInt());
+            }
+
+            this.images.put(x, column);
+        }
+    }
+
+    private void write(RegistryByteBuf buf) {
+        PayloadCompression.write(buf, this.compressionLevel, this::writeBody);
+    }
+
+    private void writeBody(PacketByteBuf buf) {
+        buf.writeString(this.world);
+        buf.writeString(this.type);
+        buf.writeVarInt(this.images.size());
+
+        for (Map.Entry<Integer, List<Integer>> entry : this.images.entrySet()) {
+            buf.writeInt(entry.getKey());
+            buf.writeVarInt(entry.getValue().size());
+
+            for (Integer y : entry.getValue()) {
+                buf.writeInt(y);
+            }
+        }
+    }
+
     public Path getPath(Path rootPath) {
         return rootPath.resolve(this.world).resolve(this.type).normalize().toAbsolutePath();
     }
@@ -53,6 +92,13 @@ public final class ImagesListPayload implements CustomPayload {
         return images;
     }
 
+    /**
+     * @param compressionLevel deflate level of the body, 0 to send it raw
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
+    }
+
     @Override
     public Id<? extends CustomPayload> getId() {
         return ID;
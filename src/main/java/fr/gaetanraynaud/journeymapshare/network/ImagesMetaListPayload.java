@@ -1,43 +1,165 @@
 package fr.gaetanraynaud.journeymapshare.network;
 
 import fr.gaetanraynaud.journeymapshare.JourneyMapShare;
+import fr.gaetanraynaud.journeymapshare.JourneyMapShareUtils;
+import fr.gaetanraynaud.journeymapshare.TileIndex;
+import net.minecraft.network.PacketByteBuf;
 import net.minecraft.network.RegistryByteBuf;
 import net.minecraft.network.codec.PacketCodec;
-import net.minecraft.network.codec.PacketCodecs;
 import net.minecraft.network.packet.CustomPayload;
 import net.minecraft.util.Identifier;
 
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.Set;
 
 /**
- * Packet with the list of images on disk for a type and world, used for C2S and S2C.
+ * Packet with the list of images on disk for a type and world, used for S2C.
+ * <p>
+ * Either the full list or only the images updated since the version the client already has. The images are sorted by coordinates and encoded
+ * as variable length deltas from the previous one, timestamps relative to the oldest one, followed by the hash of the pixels.
+ * <p>
+ * When answering a {@link RegionsRequestPayload}, it is the full list of the requested regions only.
+ * <p>
+ * The body is compressed by {@link PayloadCompression} when the player asked for it at subscription.
  */
 public final class ImagesMetaListPayload implements CustomPayload {
 
     public static final Id<ImagesMetaListPayload> ID = new Id<>(Identifier.of(JourneyMapShare.MOD_ID, "images_meta_list"));
 
-    public static final PacketCodec<RegistryByteBuf, ImagesMetaListPayload> CODEC = PacketCodec.tuple(PacketCodecs.STRING, ImagesMetaListPayload::getWorld,
-                                                                                                      PacketCodecs.STRING, ImagesMetaListPayload::getType,
-                                                                                                      ImageTimestamp.CODEC.collect(PacketCodecs.toList()),
-                                                                                                      ImagesMetaListPayload::getImages,
-                                                                                                      ImagesMetaListPayload::new);
+    public static final PacketCodec<RegistryByteBuf, ImagesMetaListPayload> CODEC = PacketCodec.of(ImagesMetaListPayload::write,
+                                                                                                   buf -> new ImagesMetaListPayload(
+                                                                                                           PayloadCompression.read(buf, PayloadCompression.MAX_S2C_SIZE)));
+
     private final String world;
 
     private final String type;
 
-    private final List<ImageTimestamp> images;
+    private final long epoch;
+
+    private final long version;
+
+    private final boolean full;
+
+    private final int size;
+
+    private final long[] positions;
+
+    private final long[] timestamps;
 
-    public ImagesMetaListPayload(String world, String type, List<ImageTimestamp> images) {
+    private final long[] hashes;
+
+    private final List<Long> regions;
+
+    private int compressionLevel;
+
+    public ImagesMetaListPayload(String world, String type, long epoch, long version, boolean full, TileIndex.Images images) {
+        this(world, type, epoch, version, full, images, List.of());
+    }
+
+    public ImagesMetaListPayload(String world, String type, long epoch, long version, boolean full, TileIndex.Images images, List<Long> regions) {
         this.world = world;
         this.type = type;
-        this.images = images;
+        this.epoch = epoch;
+        this.version = version;
+        this.full = full;
+        this.size = images.size();
+        this.positions = images.positions();
+        this.timestamps = images.timestamps();
+        this.hashes = images.hashes();
+        this.regions = regions;
+    }
+
+    private ImagesMetaListPayload(PacketByteBuf buf) {
+        this.world = buf.readString();
+        this.type = buf.readString();
+        this.epoch = buf.readLong();
+        this.version = buf.readVarLong();
+        this.full = buf.readBoolean();
+
+        int nbRegions = PayloadCompression.readCount(buf, 1);
+        this.regions = new ArrayList<>(nbRegions);
+        for (int i = 0; i < nbRegions; i++) {
+            this.regions.add(buf.readVarLong());
+        }
+
+        //Deltas of the position, timestamp and hash
+        this.size = PayloadCompression.readCount(buf, 11);
+        this.positions = new long[this.size];
+        this.timestamps = new long[this.size];
+        this.hashes = new long[this.size];
+
+        if (this.size > 0) {
+            long minTimestamp = buf.readVarLong();
+            int x = 0;
+            int y = 0;
+
+            for (int i = 0; i < this.size; i++) {
+                int dx = readZigZag(buf);
+                x += dx;
+                y = dx == 0 ? y + buf.readVarInt() : readZigZag(buf);
+                this.positions[i] = JourneyMapShareUtils.toKey(x, y);
+                this.timestamps[i] = minTimestamp + buf.readVarLong();
+                this.hashes[i] = buf.readLong();
+            }
+        }
     }
 
-    public ImagesMetaListPayload(String world, String type, Set<ImageTimestamp> images) {
-        this(world, type, images == null ? List.of() : new ArrayList<>(images));
+    private void write(RegistryByteBuf buf) {
+        PayloadCompression.write(buf, this.compressionLevel, this::writeBody);
+    }
+
+    private void writeBody(PacketByteBuf buf) {
+        buf.writeString(this.world);
+        buf.writeString(this.type);
+        buf.writeLong(this.epoch);
+        buf.writeVarLong(this.version);
+        buf.writeBoolean(this.full);
+        buf.writeVarInt(this.regions.size());
+        for (Long region : this.regions) {
+            buf.writeVarLong(region);
+        }
+
+        buf.writeVarInt(this.size);
+
+        if (this.size > 0) {
+            long minTimestamp = Long.MAX_VALUE;
+            for (int i = 0; i < this.size; i++) {
+                minTimestamp = Math.min(minTimestamp, this.timestamps[i]);
+            }
+
+            buf.writeVarLong(minTimestamp);
+            int x = 0;
+            int y = 0;
+
+            //Sorted by x then y: on a same column y only grows
+            for (int i = 0; i < this.size; i++) {
+                int imageX = JourneyMapShareUtils.keyToX(this.positions[i]);
+                int imageY = JourneyMapShareUtils.keyToY(this.positions[i]);
+                int dx = imageX - x;
+                writeZigZag(buf, dx);
+
+                if (dx == 0) {
+                    buf.writeVarInt(imageY - y);
+                } else {
+                    writeZigZag(buf, imageY);
+                }
+
+                buf.writeVarLong(this.timestamps[i] - minTimestamp);
+                buf.writeLong(this.hashes[i]);
+                x = imageX;
+                y = imageY;
+            }
+        }
+    }
+
+    private static void writeZigZag(PacketByteBuf buf, int value) {
+        buf.writeVarInt(value << 1 ^ value >> 31);
+    }
+
+    private static int readZigZag(PacketByteBuf buf) {
+        int value = buf.readVarInt();
+        return value >>> 1 ^ -(value & 1);
     }
 
     public Path getPath(Path rootPath) {
@@ -52,8 +174,62 @@ public final class ImagesMetaListPayload implements CustomPayload {
         return type;
     }
 
-    public List<ImageTimestamp> getImages() {
-        return images;
+    /**
+     * @return the identifier of the index on the server, the versions are only valid for an epoch.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    /**
+     * @return the version of the index when the list was made, to ask for the images updated since at next sync.
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * @return true if this is the full list of images, false if it only has the images updated since the last sync.
+     */
+    public boolean isFull() {
+        return full;
+    }
+
+    /**
+     * @return the number of images in the list.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getX(int index) {
+        return JourneyMapShareUtils.keyToX(this.positions[index]);
+    }
+
+    public int getY(int index) {
+        return JourneyMapShareUtils.keyToY(this.positions[index]);
+    }
+
+    public long getTimestamp(int index) {
+        return this.timestamps[index];
+    }
+
+    public long getHash(int index) {
+        return this.hashes[index];
+    }
+
+    /**
+     * @return the regions of the {@link fr.gaetanraynaud.journeymapshare.TileHashTree} the list is limited to, empty if it is not limited.
+     */
+    public List<Long> getRegions() {
+        return regions;
+    }
+
+    /**
+     * @param compressionLevel deflate level of the body, 0 to send it raw
+     */
+    public void setCompressionLevel(int compressionLevel) {
+        this.compressionLevel = compressionLevel;
     }
 
     @Override
@@ -63,6 +239,6 @@ public final class ImagesMetaListPayload implements CustomPayload {
 
     @Override
     public String toString() {
-        return "world=" + world + ", type='" + type + ", images=" + images.size();
+        return "world=" + world + ", type='" + type + ", full=" + full + ", images=" + size;
     }
 }
@@ -0,0 +1,176 @@
+package fr.gaetanraynaud.journeymapshare.network;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderException;
+import net.minecraft.network.PacketByteBuf;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Optional deflate compression of the body of the lists payloads. The body is preceded by a flag, so a receiver always reads both forms and only
+ * the sender decides to compress, a compressed body bigger than the raw one is sent raw.
+ * <p>
+ * Both sides use a preset dictionary with the names of the worlds and types, which are in every list and too short to be compressed alone.
+ */
+public final class PayloadCompression {
+
+    /**
+     * Most frequent strings last, they are the closest to the data.
+     */
+    private static final byte[] DICTIONARY = "-4-3-2-1012345678910111213141516biometoponightdaythe_endthe_netheroverworld".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Maximum size of an uncompressed body sent by a client, so a malformed payload can't make the server allocate without limit. The payloads of
+     * the clients are at most 32 KB compressed.
+     */
+    public static final int MAX_C2S_SIZE = 1024 * 1024;
+
+    /**
+     * Maximum size of an uncompressed body sent by the server.
+     */
+    public static final int MAX_S2C_SIZE = 64 * 1024 * 1024;
+
+    private static final LongAdder RAW_BYTES = new LongAdder();
+
+    private static final LongAdder COMPRESSED_BYTES = new LongAdder();
+
+    private static final LongAdder NANOS = new LongAdder();
+
+    private static long statsStart = System.nanoTime();
+
+    private PayloadCompression() {}
+
+    /**
+     * Write the body, compressed with this level if it is not 0.
+     */
+    public static void write(PacketByteBuf buf, int level, Consumer<PacketByteBuf> body) {
+        if (level <= 0) {
+            buf.writeBoolean(false);
+            body.accept(buf);
+            return;
+        }
+
+        PacketByteBuf raw = new PacketByteBuf(Unpooled.buffer());
+        try {
+            body.accept(raw);
+            int length = raw.readableBytes();
+            long start = System.nanoTime();
+            byte[] compressed = deflate(raw, length, level);
+            NANOS.add(System.nanoTime() - start);
+            RAW_BYTES.add(length);
+
+            if (compressed == null) {
+                COMPRESSED_BYTES.add(length);
+                buf.writeBoolean(false);
+                buf.writeBytes(raw);
+            } else {
+                COMPRESSED_BYTES.add(compressed.length);
+                buf.writeBoolean(true);
+                buf.writeVarInt(length);
+                buf.writeByteArray(compressed);
+            }
+        } finally {
+            raw.release();
+        }
+    }
+
+    /**
+     * @param maxSize maximum size of the uncompressed body
+     * @return the buffer to read the body from, the given one if it was not compressed.
+     */
+    public static PacketByteBuf read(PacketByteBuf buf, int maxSize) {
+        if (!buf.readBoolean()) {
+            return buf;
+        }
+
+        int length = buf.readVarInt();
+        if (length < 0 || length > maxSize) {
+            throw new DecoderException("Invalid compressed payload size " + length);
+        }
+
+        byte[] compressed = buf.readByteArray();
+        long start = System.nanoTime();
+        byte[] raw = new byte[length];
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(compressed);
+            int read = inflater.inflate(raw);
+
+            if (read == 0 && inflater.needsDictionary()) {
+                inflater.setDictionary(DICTIONARY);
+                read = inflater.inflate(raw);
+            }
+
+            if (read != length || !inflater.finished()) {
+                throw new DecoderException("Compressed payload of " + read + " bytes, expected " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new DecoderException("Invalid compressed payload", e);
+        } finally {
+            inflater.end();
+        }
+
+        NANOS.add(System.nanoTime() - start);
+        return new PacketByteBuf(Unpooled.wrappedBuffer(raw));
+    }
+
+    /**
+     * Read the number of elements of a list, checked against the readable bytes so a malformed payload can't make the receiver allocate without
+     * limit.
+     *
+     * @param elementSize minimum size in bytes of an element
+     * @return a number of elements which fit in the readable bytes.
+     */
+    public static int readCount(PacketByteBuf buf, int elementSize) {
+        int count = buf.readVarInt();
+
+        if (count < 0 || count > buf.readableBytes() / elementSize) {
+            throw new DecoderException("Invalid count " + count + " for " + buf.readableBytes() + " bytes");
+        }
+
+        return count;
+    }
+
+    /**
+     * Describe the compression done since the last call.
+     */
+    public static synchronized String pollStats() {
+        long now = System.nanoTime();
+        double seconds = Math.max(1, now - statsStart) / 1_000_000_000D;
+        long raw = RAW_BYTES.sumThenReset();
+        long compressed = COMPRESSED_BYTES.sumThenReset();
+        long nanos = NANOS.sumThenReset();
+        statsStart = now;
+
+        return String.format("%.1f KB compressed to %.1f KB (%.0f%%), %.1f ms of CPU in %.0f s", raw / 1024D, compressed / 1024D,
+                             raw == 0 ? 100 : compressed * 100D / raw, nanos / 1_000_000D, seconds);
+    }
+
+    /**
+     * @return the compressed bytes, null if they are not smaller than the raw ones.
+     */
+    private static byte[] deflate(PacketByteBuf raw, int length, int level) {
+        byte[] input = new byte[length];
+        raw.getBytes(raw.readerIndex(), input);
+        byte[] output = new byte[length];
+        Deflater deflater = new Deflater(Math.min(level, Deflater.BEST_COMPRESSION));
+
+        try {
+            deflater.setDictionary(DICTIONARY);
+            deflater.setInput(input);
+            deflater.finish();
+            int size = deflater.deflate(output);
+
+            return deflater.finished() && size < length ? Arrays.copyOf(output, size) : null;
+        } finally {
+            deflater.end();
+        }
+    }
+}
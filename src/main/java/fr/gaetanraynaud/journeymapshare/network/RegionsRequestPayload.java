@@ -0,0 +1,28 @@
+package fr.gaetanraynaud.journeymapshare.network;
+
+import fr.gaetanraynaud.journeymapshare.JourneyMapShare;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.codec.PacketCodecs;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+import java.util.List;
+
+/**
+ * Packet with the regions of a type and world whose hashes differ from the {@link TileTreePayload}, used for C2S. The server answers with the
+ * images list of these regions.
+ */
+public record RegionsRequestPayload(String world, String type, List<Long> regions) implements CustomPayload {
+
+    public static final Id<RegionsRequestPayload> ID = new Id<>(Identifier.of(JourneyMapShare.MOD_ID, "regions_request"));
+
+    public static final PacketCodec<RegistryByteBuf, RegionsRequestPayload> CODEC = PacketCodec.tuple(
+            PacketCodecs.STRING, RegionsRequestPayload::world, PacketCodecs.STRING, RegionsRequestPayload::type,
+            PacketCodecs.VAR_LONG.collect(PacketCodecs.toList()), RegionsRequestPayload::regions, RegionsRequestPayload::new);
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+}
@@ -8,17 +8,23 @@ import net.minecraft.network.packet.CustomPayload;
 import net.minecraft.util.Identifier;
 
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * Packet sent by the client to subscribe to images' updates from other players.
+ * With the versions of the images lists, by world and type, received during the previous syncs with the server epoch, and whether the client wants
+ * the images lists compressed. The client only gets the images of the given types, or of all types if there is none.
  */
-public record SubscribePayload(Map<String, String> config) implements CustomPayload {
+public record SubscribePayload(Map<String, String> config, long epoch, Map<String, Long> versions, boolean compression, List<String> types)
+        implements CustomPayload {
 
     public static final Id<SubscribePayload> ID = new Id<>(Identifier.of(JourneyMapShare.MOD_ID, "subscribe"));
 
     public static final PacketCodec<RegistryByteBuf, SubscribePayload> CODEC = PacketCodec.tuple(
-            PacketCodecs.map(HashMap::new, PacketCodecs.STRING, PacketCodecs.STRING), SubscribePayload::config, SubscribePayload::new);
+            PacketCodecs.map(HashMap::new, PacketCodecs.STRING, PacketCodecs.STRING), SubscribePayload::config, PacketCodecs.LONG, SubscribePayload::epoch,
+            PacketCodecs.map(HashMap::new, PacketCodecs.STRING, PacketCodecs.VAR_LONG), SubscribePayload::versions, PacketCodecs.BOOLEAN,
+            SubscribePayload::compression, PacketCodecs.STRING.collect(PacketCodecs.toList()), SubscribePayload::types, SubscribePayload::new);
 
     @Override
     public Id<? extends CustomPayload> getId() {
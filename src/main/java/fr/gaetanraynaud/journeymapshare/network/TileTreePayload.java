@@ -0,0 +1,109 @@
+package fr.gaetanraynaud.journeymapshare.network;
+
+import fr.gaetanraynaud.journeymapshare.JourneyMapShare;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Packet with the root and regions hashes of the images of a type and world, used for S2C instead of the full images list when the client
+ * already has images. The client asks the list of the regions which differ with a {@link RegionsRequestPayload}.
+ */
+public final class TileTreePayload implements CustomPayload {
+
+    public static final Id<TileTreePayload> ID = new Id<>(Identifier.of(JourneyMapShare.MOD_ID, "tile_tree"));
+
+    public static final PacketCodec<RegistryByteBuf, TileTreePayload> CODEC = PacketCodec.of(TileTreePayload::write, TileTreePayload::new);
+
+    private final String world;
+
+    private final String type;
+
+    private final long epoch;
+
+    private final long version;
+
+    private final long root;
+
+    private final Map<Long, Long> regions;
+
+    public TileTreePayload(String world, String type, long epoch, long version, long root, Map<Long, Long> regions) {
+        this.world = world;
+        this.type = type;
+        this.epoch = epoch;
+        this.version = version;
+        this.root = root;
+        this.regions = regions;
+    }
+
+    private TileTreePayload(RegistryByteBuf buf) {
+        this.world = buf.readString();
+        this.type = buf.readString();
+        this.epoch = buf.readLong();
+        this.version = buf.readVarLong();
+        this.root = buf.readLong();
+
+        int size = buf.readVarInt();
+        this.regions = new HashMap<>(size * 2);
+        for (int i = 0; i < size; i++) {
+            this.regions.put(buf.readVarLong(), buf.readLong());
+        }
+    }
+
+    private void write(RegistryByteBuf buf) {
+        buf.writeString(this.world);
+        buf.writeString(this.type);
+        buf.writeLong(this.epoch);
+        buf.writeVarLong(this.version);
+        buf.writeLong(this.root);
+        buf.writeVarInt(this.regions.size());
+
+        for (Map.Entry<Long, Long> entry : this.regions.entrySet()) {
+            buf.writeVarLong(entry.getKey());
+            buf.writeLong(entry.getValue());
+        }
+    }
+
+    public Path getPath(Path rootPath) {
+        return rootPath.resolve(this.world).resolve(this.type).normalize().toAbsolutePath();
+    }
+
+    public String getWorld() {
+        return world;
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getRoot() {
+        return root;
+    }
+
+    public Map<Long, Long> getRegions() {
+        return regions;
+    }
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+
+    @Override
+    public String toString() {
+        return "world=" + world + ", type='" + type + ", regions=" + regions.size();
+    }
+}
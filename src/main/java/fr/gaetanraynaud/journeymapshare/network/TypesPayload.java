@@ -0,0 +1,26 @@
+package fr.gaetanraynaud.journeymapshare.network;
+
+import fr.gaetanraynaud.journeymapshare.JourneyMapShare;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.network.codec.PacketCodec;
+import net.minecraft.network.codec.PacketCodecs;
+import net.minecraft.network.packet.CustomPayload;
+import net.minecraft.util.Identifier;
+
+import java.util.List;
+
+/**
+ * Packet sent by the client to change the types of images it gets, all types if there is none, used for C2S.
+ */
+public record TypesPayload(List<String> types) implements CustomPayload {
+
+    public static final Id<TypesPayload> ID = new Id<>(Identifier.of(JourneyMapShare.MOD_ID, "types"));
+
+    public static final PacketCodec<RegistryByteBuf, TypesPayload> CODEC = PacketCodec.tuple(PacketCodecs.STRING.collect(PacketCodecs.toList()),
+                                                                                             TypesPayload::types, TypesPayload::new);
+
+    @Override
+    public Id<? extends CustomPayload> getId() {
+        return ID;
+    }
+}
@@ -0,0 +1,136 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import fr.gaetanraynaud.journeymapshare.network.ImageChunkPayload;
+import fr.gaetanraynaud.journeymapshare.network.ImagePayload;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static fr.gaetanraynaud.journeymapshare.network.ImageChunkPayload.CHUNK_SIZE;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ChunkAssemblerTest {
+
+    @Test
+    void rebuildsTheImage() {
+        ChunkAssembler assembler = new ChunkAssembler();
+        ImagePayload image = image(0, 3 * CHUNK_SIZE + 100);
+
+        assertEquals(new ChunkAssembler.Result(CHUNK_SIZE, false, null), assembler.accept(new ImageChunkPayload(1, image, 0)));
+        assertEquals(new ChunkAssembler.Result(2 * CHUNK_SIZE, false, null), assembler.accept(new ImageChunkPayload(1, image, CHUNK_SIZE)));
+        assertEquals(new ChunkAssembler.Result(3 * CHUNK_SIZE, false, null), assembler.accept(new ImageChunkPayload(1, image, 2 * CHUNK_SIZE)));
+
+        ChunkAssembler.Result result = assembler.accept(new ImageChunkPayload(1, image, 3 * CHUNK_SIZE));
+        assertComplete(image, result);
+    }
+
+    @Test
+    void resumesFromTheReceivedBytes() {
+        ChunkAssembler assembler = new ChunkAssembler();
+        ImagePayload image = image(1, 4 * CHUNK_SIZE);
+        assembler.accept(new ImageChunkPayload(1, image, 0));
+        assembler.accept(new ImageChunkPayload(1, image, CHUNK_SIZE));
+
+        //Chunks lost during a reconnection, the sender is asked to continue after the received ones
+        assertEquals(new ChunkAssembler.Result(2 * CHUNK_SIZE, true, null), assembler.accept(new ImageChunkPayload(1, image, 3 * CHUNK_SIZE)));
+
+        //The sender restarted from the beginning
+        assertEquals(new ChunkAssembler.Result(2 * CHUNK_SIZE, true, null), assembler.accept(new ImageChunkPayload(1, image, 0)));
+
+        assembler.accept(new ImageChunkPayload(1, image, 2 * CHUNK_SIZE));
+        assertComplete(image, assembler.accept(new ImageChunkPayload(1, image, 3 * CHUNK_SIZE)));
+    }
+
+    @Test
+    void asksTheBeginningOfUnknownTransfers() {
+        ChunkAssembler assembler = new ChunkAssembler();
+        ImagePayload image = image(2, 2 * CHUNK_SIZE);
+
+        assertEquals(new ChunkAssembler.Result(0, true, null), assembler.accept(new ImageChunkPayload(1, image, CHUNK_SIZE)));
+    }
+
+    @Test
+    void restartsWhenTheIdentifierIsReusedForAnotherImage() {
+        ChunkAssembler assembler = new ChunkAssembler();
+        ImagePayload first = image(3, 2 * CHUNK_SIZE);
+        ImagePayload second = image(4, 2 * CHUNK_SIZE);
+        assembler.accept(new ImageChunkPayload(1, first, 0));
+
+        assertEquals(new ChunkAssembler.Result(0, true, null), assembler.accept(new ImageChunkPayload(1, second, CHUNK_SIZE)));
+
+        assembler.accept(new ImageChunkPayload(1, second, 0));
+        assertComplete(second, assembler.accept(new ImageChunkPayload(1, second, CHUNK_SIZE)));
+    }
+
+    @Test
+    void rejectsImagesBiggerThanTheMaximum() {
+        ChunkAssembler assembler = new ChunkAssembler();
+        ImagePayload image = image(5, ImageChunkPayload.MAX_IMAGE_SIZE + 1);
+
+        assertEquals(new ChunkAssembler.Result(0, true, null), assembler.accept(new ImageChunkPayload(1, image, 0)));
+        assertFalse(assembler.abort(1));
+    }
+
+    @Test
+    void dropsTheLeastRecentlyUpdatedTransfer() throws InterruptedException {
+        ChunkAssembler assembler = new ChunkAssembler();
+        ImagePayload[] images = new ImagePayload[5];
+
+        for (int i = 0; i < images.length; i++) {
+            images[i] = image(10 + i, 2 * CHUNK_SIZE);
+            assembler.accept(new ImageChunkPayload(i, images[i], 0));
+            //Distinct update times
+            Thread.sleep(2);
+        }
+
+        //The first transfer was dropped for the last one, the others continue
+        assertEquals(new ChunkAssembler.Result(0, true, null), assembler.accept(new ImageChunkPayload(0, images[0], CHUNK_SIZE)));
+        for (int i = 1; i < images.length; i++) {
+            assertComplete(images[i], assembler.accept(new ImageChunkPayload(i, images[i], CHUNK_SIZE)));
+        }
+    }
+
+    @Test
+    void ignoresTheChunksOfAbortedTransfers() {
+        ChunkAssembler assembler = new ChunkAssembler();
+        ImagePayload image = image(6, 2 * CHUNK_SIZE);
+        assembler.accept(new ImageChunkPayload(1, image, 0));
+
+        assertTrue(assembler.abort(1));
+        assertFalse(assembler.abort(1));
+        assertEquals(new ChunkAssembler.Result(0, true, null), assembler.accept(new ImageChunkPayload(1, image, CHUNK_SIZE)));
+    }
+
+    @Test
+    void reusesThePooledBuffers() {
+        //A pooled buffer keeps the bytes of the previous image
+        ChunkAssembler assembler = new ChunkAssembler();
+
+        for (int i = 0; i < 3; i++) {
+            ImagePayload image = image(20 + i, CHUNK_SIZE + 10 * (3 - i));
+            assembler.accept(new ImageChunkPayload(1, image, 0));
+            assertComplete(image, assembler.accept(new ImageChunkPayload(1, image, CHUNK_SIZE)));
+        }
+    }
+
+    private static void assertComplete(ImagePayload expected, ChunkAssembler.Result result) {
+        assertEquals(expected.getImage().length, result.received());
+        assertFalse(result.resend());
+        assertNotNull(result.image());
+        assertEquals(expected.getMapId(), result.image().getMapId());
+        assertEquals(expected.getTimestamp(), result.image().getTimestamp());
+        assertEquals(expected.getHash(), result.image().getHash());
+        assertArrayEquals(expected.getImage(), result.image().getImage());
+    }
+
+    private static ImagePayload image(int seed, int size) {
+        Random random = new Random(seed);
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return new ImagePayload("world", "day", seed, -seed, data, random.nextLong(), random.nextLong());
+    }
+}
@@ -0,0 +1,75 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LongLongHashMapTest {
+
+    @Test
+    void putGetAndRemove() {
+        LongLongHashMap map = new LongLongHashMap();
+
+        assertEquals(0, map.put(1, 10));
+        assertEquals(10, map.put(1, 11));
+        assertEquals(0, map.put(-1, 20));
+        assertEquals(11, map.get(1));
+        assertEquals(20, map.get(-1));
+        assertEquals(0, map.get(2));
+        assertEquals(2, map.size());
+
+        assertEquals(11, map.remove(1));
+        assertEquals(0, map.remove(1));
+        assertEquals(0, map.get(1));
+        assertEquals(1, map.size());
+
+        //A value of 0 removes the key
+        assertEquals(20, map.put(-1, 0));
+        assertEquals(0, map.size());
+    }
+
+    @Test
+    void behavesLikeAHashMap() {
+        //Few distinct keys so removals shift back long probe sequences, and enough to resize several times
+        LongLongHashMap map = new LongLongHashMap(4);
+        Map<Long, Long> expected = new HashMap<>();
+        Random random = new Random(1);
+
+        for (int i = 0; i < 200_000; i++) {
+            long key = JourneyMapShareUtils.toKey(random.nextInt(64) - 32, random.nextInt(64) - 32);
+            long value = random.nextInt(4) == 0 ? 0 : random.nextLong();
+
+            Long previous = value == 0 ? expected.remove(key) : expected.put(key, value);
+            assertEquals(previous == null ? 0 : previous, map.put(key, value));
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+
+        Map<Long, Long> visited = new HashMap<>();
+        map.forEach(visited::put);
+        assertEquals(expected, visited);
+    }
+
+    @Test
+    void clearRemovesEverything() {
+        LongLongHashMap map = new LongLongHashMap();
+        for (int i = 1; i <= 100; i++) {
+            map.put(i, i);
+        }
+
+        map.clear();
+
+        assertEquals(0, map.size());
+        assertEquals(0, map.get(50));
+        map.forEach((key, value) -> {
+            throw new AssertionError("Key " + key + " kept");
+        });
+    }
+}
@@ -0,0 +1,261 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RegionTileStorageTest {
+
+    @TempDir
+    Path location;
+
+    private final List<RegionTileStorage> opened = new ArrayList<>();
+
+    @BeforeAll
+    static void bootstrap() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    @AfterEach
+    void close() {
+        this.opened.forEach(RegionTileStorage::close);
+    }
+
+    @Test
+    void readsTheWrittenImagesAfterReopening() throws IOException {
+        Map<MapId, TileStorage.Tile> expected = new HashMap<>();
+        Random random = new Random(1);
+
+        RegionTileStorage storage = open();
+
+        //Negative coordinates and several regions
+        for (int i = 0; i < 500; i++) {
+            MapId mapId = new MapId("overworld", "day", random.nextInt(100) - 50, random.nextInt(100) - 50);
+            TileStorage.Tile tile = new TileStorage.Tile(bytes(random, 1 + random.nextInt(5000)), 1 + i);
+            storage.write(mapId, tile.image(), tile.timestamp());
+            expected.put(mapId, tile);
+        }
+
+        assertTiles(storage, expected);
+        assertNull(storage.read(new MapId("overworld", "day", 1000, 1000)));
+        assertEquals(0, storage.getTimestamp(new MapId("overworld", "night", 0, 0)));
+        storage.close();
+
+        storage = open();
+        assertTiles(storage, expected);
+    }
+
+    @Test
+    void compactsTheRewrittenImages() throws IOException {
+        //A few tiles written again and again leave more free bytes than used ones
+        Map<MapId, TileStorage.Tile> expected = new HashMap<>();
+        Random random = new Random(2);
+        long written = 0;
+
+        RegionTileStorage storage = open();
+        for (int i = 0; i < 5000; i++) {
+            MapId mapId = new MapId("overworld", "day", random.nextInt(4), random.nextInt(4));
+            TileStorage.Tile tile = new TileStorage.Tile(bytes(random, 1 + random.nextInt(3000)), 1 + i);
+            storage.write(mapId, tile.image(), tile.timestamp());
+            expected.put(mapId, tile);
+            written += tile.image().length;
+        }
+
+        assertTiles(storage, expected);
+        storage.close();
+
+        Path region = this.location.resolve("overworld").resolve("day").resolve("r.0.0.jms");
+        assertTrue(Files.size(region) < written / 2, Files.size(region) + " bytes for " + written + " written");
+        assertFalse(Files.exists(region.resolveSibling("r.0.0.jms.tmp")));
+
+        storage = open();
+        assertTiles(storage, expected);
+    }
+
+    @Test
+    void finishesAnInterruptedCompaction() throws IOException {
+        Map<MapId, TileStorage.Tile> expected = writeRandom(3, 50);
+        Path region = this.location.resolve("overworld").resolve("day").resolve("r.0.0.jms");
+        Path tmp = region.resolveSibling("r.0.0.jms.tmp");
+
+        //A complete compacted region which could not replace the region, then a copy interrupted after overwriting the region
+        Files.copy(region, tmp);
+        byte[] overwritten = Files.readAllBytes(region);
+        new Random(4).nextBytes(overwritten);
+        Files.write(region, overwritten);
+
+        RegionTileStorage storage = open();
+        assertTiles(storage, expected);
+        assertFalse(Files.exists(tmp));
+    }
+
+    @Test
+    void ignoresAnIncompleteCompaction() throws IOException {
+        Map<MapId, TileStorage.Tile> expected = writeRandom(5, 50);
+        Path tmp = this.location.resolve("overworld").resolve("day").resolve("r.0.0.jms.tmp");
+
+        //The header is written last
+        Files.write(tmp, new byte[64 * 1024]);
+
+        RegionTileStorage storage = open();
+        assertTiles(storage, expected);
+        assertFalse(Files.exists(tmp));
+    }
+
+    @Test
+    void reopensTheClosedRegions() throws IOException {
+        //More regions than kept open
+        Map<MapId, TileStorage.Tile> expected = new HashMap<>();
+        Random random = new Random(6);
+
+        RegionTileStorage storage = open();
+        for (int i = 0; i < 300; i++) {
+            MapId mapId = new MapId("overworld", "day", i * RegionTileStorage.REGION_SIZE, 0);
+            TileStorage.Tile tile = new TileStorage.Tile(bytes(random, 100), 1 + i);
+            storage.write(mapId, tile.image(), tile.timestamp());
+            expected.put(mapId, tile);
+        }
+
+        assertTiles(storage, expected);
+    }
+
+    @Test
+    void reopensARegionWhichFailedToOpen() throws IOException {
+        RegionTileStorage storage = open();
+        MapId mapId = new MapId("overworld", "day", 0, 0);
+        storage.write(mapId, new byte[]{1, 2, 3}, 1);
+
+        //Closed to open others, then damaged before it is opened again
+        for (int i = 1; i <= 300; i++) {
+            storage.write(new MapId("overworld", "day", i * RegionTileStorage.REGION_SIZE, 0), new byte[1], 1);
+        }
+
+        Path region = this.location.resolve("overworld").resolve("day").resolve("r.0.0.jms");
+        byte[] content = Files.readAllBytes(region);
+        Files.write(region, new byte[16]);
+
+        //Each access fails the same way until the region is repaired
+        assertThrows(IOException.class, () -> storage.read(mapId));
+        assertThrows(IOException.class, () -> storage.write(mapId, new byte[]{4}, 2));
+
+        Files.write(region, content);
+        assertArrayEquals(new byte[]{1, 2, 3}, storage.read(mapId).image());
+        storage.write(mapId, new byte[]{4}, 2);
+        storage.close();
+
+        assertArrayEquals(new byte[]{4}, open().read(mapId).image());
+    }
+
+    @Test
+    void visitsTheTilesOfAType() throws IOException {
+        Map<MapId, TileStorage.Tile> expected = new HashMap<>();
+        Random random = new Random(7);
+
+        RegionTileStorage storage = open();
+        for (int i = 0; i < 200; i++) {
+            MapId mapId = new MapId("overworld", "day", random.nextInt(200) - 100, random.nextInt(200) - 100);
+            TileStorage.Tile tile = new TileStorage.Tile(bytes(random, 10), 1 + i);
+            storage.write(mapId, tile.image(), tile.timestamp());
+            expected.put(mapId, tile);
+        }
+
+        //Another type in the same world
+        storage.write(new MapId("overworld", "night", 0, 0), new byte[1], 1);
+
+        Map<MapId, Long> visited = new HashMap<>();
+        storage.forEach("overworld", "day", (x, y, timestamp) -> visited.put(new MapId("overworld", "day", x, y), timestamp));
+
+        assertEquals(expected.size(), visited.size());
+        for (Map.Entry<MapId, TileStorage.Tile> entry : expected.entrySet()) {
+            assertEquals(entry.getValue().timestamp(), visited.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    void importsThePngFiles() throws IOException {
+        Path folder = Files.createDirectories(this.location.resolve("overworld").resolve("day"));
+        Files.write(folder.resolve("-1,2.png"), new byte[]{1, 2, 3});
+        Files.setLastModifiedTime(folder.resolve("-1,2.png"), FileTime.fromMillis(1000));
+        Files.write(folder.resolve("3,4.png"), new byte[]{4, 5});
+        Files.setLastModifiedTime(folder.resolve("3,4.png"), FileTime.fromMillis(1000));
+
+        RegionTileStorage storage = open();
+
+        //Read from the files until imported, a tile written since the file keeps its image
+        MapId imported = new MapId("overworld", "day", -1, 2);
+        MapId written = new MapId("overworld", "day", 3, 4);
+        assertArrayEquals(new byte[]{1, 2, 3}, storage.read(imported).image());
+        assertEquals(1000, storage.getTimestamp(imported));
+        storage.write(written, new byte[]{6}, 2000);
+
+        assertEquals(1, storage.importFiles("overworld", "day"));
+
+        assertFalse(Files.exists(folder.resolve("-1,2.png")));
+        assertFalse(Files.exists(folder.resolve("3,4.png")));
+        assertArrayEquals(new byte[]{1, 2, 3}, storage.read(imported).image());
+        assertEquals(1000, storage.getTimestamp(imported));
+        assertArrayEquals(new byte[]{6}, storage.read(written).image());
+        assertEquals(2000, storage.getTimestamp(written));
+    }
+
+    private RegionTileStorage open() {
+        RegionTileStorage storage = new RegionTileStorage(this.location);
+        this.opened.add(storage);
+        return storage;
+    }
+
+    private Map<MapId, TileStorage.Tile> writeRandom(int seed, int count) throws IOException {
+        Map<MapId, TileStorage.Tile> expected = new HashMap<>();
+        Random random = new Random(seed);
+
+        RegionTileStorage storage = open();
+        for (int i = 0; i < count; i++) {
+            MapId mapId = new MapId("overworld", "day", random.nextInt(RegionTileStorage.REGION_SIZE), random.nextInt(RegionTileStorage.REGION_SIZE));
+            TileStorage.Tile tile = new TileStorage.Tile(bytes(random, 1 + random.nextInt(5000)), 1 + i);
+            storage.write(mapId, tile.image(), tile.timestamp());
+            expected.put(mapId, tile);
+        }
+
+        storage.close();
+        return expected;
+    }
+
+    private static void assertTiles(RegionTileStorage storage, Map<MapId, TileStorage.Tile> expected) throws IOException {
+        for (Map.Entry<MapId, TileStorage.Tile> entry : expected.entrySet()) {
+            TileStorage.Tile tile = storage.read(entry.getKey());
+
+            assertNotNull(tile, entry.getKey().toString());
+            assertArrayEquals(entry.getValue().image(), tile.image(), entry.getKey().toString());
+            assertEquals(entry.getValue().timestamp(), tile.timestamp(), entry.getKey().toString());
+            assertEquals(entry.getValue().timestamp(), storage.getTimestamp(entry.getKey()));
+        }
+    }
+
+    private static byte[] bytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
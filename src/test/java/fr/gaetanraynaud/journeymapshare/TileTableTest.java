@@ -0,0 +1,116 @@
+package fr.gaetanraynaud.journeymapshare;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class TileTableTest {
+
+    @Test
+    void putGetAndRemove() {
+        TileTable table = new TileTable();
+        long key = JourneyMapShareUtils.toKey(-3, 7);
+
+        assertEquals(0, table.put(key, 100, 1, 1));
+        assertEquals(100, table.put(key, 200, 2, 2));
+        assertEquals(200, table.getTimestamp(key));
+        assertEquals(2, table.getHash(key));
+        assertEquals(1, table.size());
+
+        //A timestamp of 0 removes the tile, its slot is reused when it comes back
+        assertEquals(200, table.put(key, 0, 3, 3));
+        assertEquals(0, table.getTimestamp(key));
+        assertEquals(0, table.getHash(key));
+        assertEquals(0, table.size());
+        assertEquals(0, table.put(key, 300, 4, 4));
+        assertEquals(1, table.size());
+
+        //Removing a missing tile does nothing
+        assertEquals(0, table.put(JourneyMapShareUtils.toKey(0, 0), 0, 0, 5));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    void behavesLikeAHashMap() {
+        TileTable table = new TileTable();
+        Map<Long, long[]> expected = new HashMap<>();
+        Random random = new Random(1);
+
+        for (int version = 1; version <= 100_000; version++) {
+            long key = JourneyMapShareUtils.toKey(random.nextInt(200) - 100, random.nextInt(200) - 100);
+            long timestamp = random.nextInt(5) == 0 ? 0 : random.nextLong(1, Long.MAX_VALUE);
+            long hash = random.nextLong();
+
+            long[] previous = timestamp == 0 ? expected.remove(key) : expected.put(key, new long[]{timestamp, hash, version});
+            assertEquals(previous == null ? 0 : previous[0], table.put(key, timestamp, hash, version));
+            assertEquals(expected.size(), table.size());
+        }
+
+        for (Map.Entry<Long, long[]> entry : expected.entrySet()) {
+            assertEquals(entry.getValue()[0], table.getTimestamp(entry.getKey()));
+            assertEquals(entry.getValue()[1], table.getHash(entry.getKey()));
+        }
+
+        Map<Long, long[]> visited = new HashMap<>();
+        table.forEach((key, timestamp, hash, version) -> visited.put(key, new long[]{timestamp, hash, version}));
+        assertEquals(expected.size(), visited.size());
+        for (Map.Entry<Long, long[]> entry : expected.entrySet()) {
+            assertEquals(entry.getValue()[0], visited.get(entry.getKey())[0]);
+            assertEquals(entry.getValue()[1], visited.get(entry.getKey())[1]);
+            assertEquals(entry.getValue()[2], visited.get(entry.getKey())[2]);
+        }
+    }
+
+    @Test
+    void readersSeeTheTilesDuringResizes() throws InterruptedException {
+        //The tiles of the first half are never changed, a reader must always find them while the second half grows the table
+        TileTable table = new TileTable();
+        for (int i = 0; i < 1000; i++) {
+            table.put(JourneyMapShareUtils.toKey(i, 0), i + 1, i, 1);
+        }
+
+        AtomicReference<String> error = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            while (!Thread.currentThread().isInterrupted()) {
+                for (int i = 0; i < 1000; i++) {
+                    long timestamp = table.getTimestamp(JourneyMapShareUtils.toKey(i, 0));
+                    if (timestamp != i + 1) {
+                        error.compareAndSet(null, "Tile " + i + " read with timestamp " + timestamp);
+                    }
+                }
+            }
+        });
+        reader.start();
+
+        for (int i = 0; i < 200_000; i++) {
+            table.put(JourneyMapShareUtils.toKey(i, 1), i + 1, i, 1);
+        }
+
+        reader.interrupt();
+        reader.join();
+        assertNull(error.get());
+        assertEquals(201_000, table.size());
+    }
+
+    @Test
+    void clearRemovesEverything() {
+        TileTable table = new TileTable();
+        for (int i = 0; i < 100; i++) {
+            table.put(JourneyMapShareUtils.toKey(i, i), i + 1, i, 1);
+        }
+
+        table.clear();
+
+        assertEquals(0, table.size());
+        assertEquals(0, table.getTimestamp(JourneyMapShareUtils.toKey(50, 50)));
+        table.forEach((key, timestamp, hash, version) -> {
+            throw new AssertionError("Tile " + key + " kept");
+        });
+    }
+}
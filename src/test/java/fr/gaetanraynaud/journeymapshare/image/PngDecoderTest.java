@@ -0,0 +1,104 @@
+package fr.gaetanraynaud.journeymapshare.image;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class PngDecoderTest {
+
+    @Test
+    void decodesArgbImages() throws IOException {
+        BufferedImage image = new BufferedImage(512, 512, BufferedImage.TYPE_INT_ARGB);
+        image.setRGB(0, 0, 512, 512, PngEncoderTest.tile(new Random(1), 512, 512), 0, 512);
+
+        assertDecodedLikeImageIO(image);
+    }
+
+    @Test
+    void decodesRgbImages() throws IOException {
+        BufferedImage image = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+        image.setRGB(0, 0, 300, 200, PngEncoderTest.tile(new Random(2), 300, 200), 0, 300);
+
+        assertDecodedLikeImageIO(image);
+    }
+
+    @Test
+    void decodesIndexedImages() throws IOException {
+        //Palette with transparent and translucent colors, written with a tRNS chunk
+        Random random = new Random(3);
+        byte[] reds = new byte[16];
+        byte[] greens = new byte[16];
+        byte[] blues = new byte[16];
+        byte[] alphas = new byte[16];
+        random.nextBytes(reds);
+        random.nextBytes(greens);
+        random.nextBytes(blues);
+        Arrays.fill(alphas, (byte) 0xFF);
+        alphas[0] = 0;
+        alphas[1] = (byte) 0x80;
+
+        BufferedImage image = new BufferedImage(64, 64, BufferedImage.TYPE_BYTE_INDEXED, new IndexColorModel(8, 16, reds, greens, blues, alphas));
+        for (int y = 0; y < 64; y++) {
+            for (int x = 0; x < 64; x++) {
+                image.getRaster().setSample(x, y, 0, random.nextInt(16));
+            }
+        }
+
+        assertDecodedLikeImageIO(image);
+    }
+
+    @Test
+    void rejectsImagesBiggerThanTiles() throws IOException {
+        byte[] png = write(new BufferedImage(PngDecoder.MAX_SIZE + 1, 1, BufferedImage.TYPE_INT_ARGB));
+
+        assertThrows(IOException.class, () -> new PngDecoder().decode(png, new PixelBuffer()));
+    }
+
+    @Test
+    void rejectsInvalidHeaders() throws IOException {
+        byte[] png = write(new BufferedImage(16, 16, BufferedImage.TYPE_INT_ARGB));
+
+        //Length of the IHDR chunk
+        byte[] badLength = png.clone();
+        badLength[11] = 12;
+        assertThrows(IOException.class, () -> new PngDecoder().decode(badLength, new PixelBuffer()));
+
+        //Cut in the middle of a chunk
+        byte[] truncated = Arrays.copyOf(png, png.length - 20);
+        assertThrows(IOException.class, () -> new PngDecoder().decode(truncated, new PixelBuffer()));
+
+        //Width of 0
+        byte[] empty = png.clone();
+        Arrays.fill(empty, 16, 20, (byte) 0);
+        assertThrows(IOException.class, () -> new PngDecoder().decode(empty, new PixelBuffer()));
+    }
+
+    private static void assertDecodedLikeImageIO(BufferedImage image) throws IOException {
+        byte[] png = write(image);
+        int width = image.getWidth();
+        int height = image.getHeight();
+        PixelBuffer buffer = new PixelBuffer();
+
+        new PngDecoder().decode(png, buffer);
+
+        assertEquals(width, buffer.getWidth());
+        assertEquals(height, buffer.getHeight());
+        assertArrayEquals(PngEncoderTest.readWithImageIO(png), Arrays.copyOf(buffer.getPixels(), width * height));
+    }
+
+    private static byte[] write(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,125 @@
+package fr.gaetanraynaud.journeymapshare.image;
+
+import org.junit.jupiter.api.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PngEncoderTest {
+
+    @Test
+    void imageIOReadsTheEncodedPixels() throws IOException {
+        PngEncoder encoder = new PngEncoder();
+        int[] pixels = tile(new Random(1), 512, 512);
+
+        for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+            for (int level = 1; level <= 9; level++) {
+                byte[] png = encoder.encode(pixels, 512, 512, level, filter);
+                assertArrayEquals(pixels, readWithImageIO(png), filter + " at level " + level);
+            }
+        }
+    }
+
+    @Test
+    void encodesSmallImages() throws IOException {
+        //Rows shorter than the 4 bytes of the left pixel
+        PngEncoder encoder = new PngEncoder();
+        Random random = new Random(2);
+
+        for (int width = 1; width <= 5; width++) {
+            for (int height = 1; height <= 3; height++) {
+                int[] pixels = tile(random, width, height);
+
+                for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+                    assertArrayEquals(pixels, readWithImageIO(encoder.encode(pixels, width, height, 6, filter)), width + "x" + height + " " + filter);
+                }
+            }
+        }
+    }
+
+    @Test
+    void reusesItsBuffers() throws IOException {
+        //A big image then a small one, the buffers keep their bigger size
+        PngEncoder encoder = new PngEncoder();
+        Random random = new Random(3);
+        int[] big = tile(random, 512, 512);
+        int[] small = tile(random, 16, 8);
+
+        byte[] first = encoder.encode(small, 16, 8);
+        encoder.encode(big, 512, 512);
+        byte[] second = encoder.encode(small, 16, 8);
+
+        assertArrayEquals(first, second);
+        assertArrayEquals(small, readWithImageIO(second));
+    }
+
+    @Test
+    void decoderReadsTheEncodedPixels() throws IOException {
+        PngEncoder encoder = new PngEncoder();
+        PngDecoder decoder = new PngDecoder();
+        PixelBuffer buffer = new PixelBuffer();
+        int[] pixels = tile(new Random(4), 512, 512);
+
+        for (PngEncoder.Filter filter : PngEncoder.Filter.values()) {
+            decoder.decode(encoder.encode(pixels, 512, 512, PngEncoder.DEFAULT_LEVEL, filter), buffer);
+
+            assertEquals(512, buffer.getWidth());
+            assertEquals(512, buffer.getHeight());
+            assertArrayEquals(pixels, buffer.getPixels(), filter.toString());
+        }
+    }
+
+    @Test
+    void adaptiveFilterIsNotBiggerThanNone() {
+        PngEncoder encoder = new PngEncoder();
+        int[] pixels = tile(new Random(5), 512, 512);
+
+        int none = encoder.encode(pixels, 512, 512, 6, PngEncoder.Filter.NONE).length;
+        int adaptive = encoder.encode(pixels, 512, 512, 6, PngEncoder.Filter.ADAPTIVE).length;
+
+        assertTrue(adaptive <= none, "adaptive " + adaptive + " bytes, none " + none + " bytes");
+    }
+
+    /**
+     * Pixels looking like a map tile: blocks of a few colors with slight variations, gradients and transparent holes.
+     */
+    static int[] tile(Random random, int width, int height) {
+        int[] colors = new int[12];
+        for (int i = 0; i < colors.length; i++) {
+            colors[i] = 0xFF000000 | random.nextInt(0x1000000);
+        }
+
+        int[] pixels = new int[width * height];
+        for (int blockY = 0; blockY < height; blockY += 16) {
+            for (int blockX = 0; blockX < width; blockX += 16) {
+                int kind = random.nextInt(10);
+                int color = colors[random.nextInt(colors.length)];
+
+                for (int y = blockY; y < Math.min(height, blockY + 16); y++) {
+                    for (int x = blockX; x < Math.min(width, blockX + 16); x++) {
+                        pixels[y * width + x] = switch (kind) {
+                            case 0 -> 0;
+                            case 1 -> random.nextInt(0x100) << 24 | color & 0xFFFFFF;
+                            case 2 -> color + (x + y) * 0x010101 & 0xFFFFFF | 0xFF000000;
+                            default -> random.nextInt(8) == 0 ? color ^ 0x080808 : color;
+                        };
+                    }
+                }
+            }
+        }
+
+        return pixels;
+    }
+
+    static int[] readWithImageIO(byte[] png) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(png));
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}
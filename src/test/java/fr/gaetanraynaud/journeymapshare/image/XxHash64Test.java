@@ -0,0 +1,69 @@
+package fr.gaetanraynaud.journeymapshare.image;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class XxHash64Test {
+
+    private static final String TEXT = "The quick brown fox jumps over the lazy dog, 0123456789abcdefghijklmnopqrstuvwxyz";
+
+    @Test
+    void matchesTheReferenceImplementation() {
+        //xxHash64 with a seed of 0 of the first 4 * length bytes of the text, covering the stripes, 8 and 4 bytes tails
+        assertEquals(0xEF46DB3751D8E999L, XxHash64.hash(pixels(0), 0));
+        assertEquals(0xCDF13A49D263200FL, XxHash64.hash(pixels(1), 1));
+        assertEquals(0xD07B38A78A153B0BL, XxHash64.hash(pixels(2), 2));
+        assertEquals(0xB2ED38017844F789L, XxHash64.hash(pixels(3), 3));
+        assertEquals(0x1DCD16DD15317465L, XxHash64.hash(pixels(7), 7));
+        assertEquals(0xE2BBC9136629A4EEL, XxHash64.hash(pixels(8), 8));
+        assertEquals(0x9457EE2B0CACE793L, XxHash64.hash(pixels(9), 9));
+        assertEquals(0x00DFCD6CD9F50246L, XxHash64.hash(pixels(16), 16));
+        assertEquals(0xD0809D112C23C904L, XxHash64.hash(pixels(17), 17));
+    }
+
+    @Test
+    void hashesOnlyTheLength() {
+        int[] pixels = pixels(17);
+
+        assertEquals(XxHash64.hash(pixels(9), 9), XxHash64.hash(pixels, 9));
+    }
+
+    @Test
+    void ignoresTheColorOfTransparentPixels() {
+        int[] black = new int[64];
+        int[] colored = new int[64];
+        colored[10] = 0x00FF8040;
+
+        assertEquals(XxHash64.hash(black, 64), XxHash64.hash(colored, 64));
+
+        colored[10] = 0x01FF8040;
+        assertNotEquals(XxHash64.hash(black, 64), XxHash64.hash(colored, 64));
+    }
+
+    @Test
+    void hashesOnlyTheImageOfABuffer() {
+        //The array kept from a bigger image has pixels after the image
+        PixelBuffer buffer = new PixelBuffer();
+        buffer.resize(5, 4);
+        System.arraycopy(pixels(20), 0, buffer.getPixels(), 0, 20);
+        buffer.resize(4, 4);
+
+        assertEquals(0x00DFCD6CD9F50246L, XxHash64.hash(buffer));
+    }
+
+    /**
+     * Pixels made of the bytes of the text, read as little endian.
+     */
+    private static int[] pixels(int length) {
+        ByteBuffer bytes = ByteBuffer.wrap(TEXT.getBytes(StandardCharsets.US_ASCII)).order(ByteOrder.LITTLE_ENDIAN);
+        int[] pixels = new int[length];
+        bytes.asIntBuffer().get(pixels);
+        return pixels;
+    }
+}
@@ -0,0 +1,52 @@
+package fr.gaetanraynaud.journeymapshare.network;
+
+import io.netty.handler.codec.DecoderException;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.network.RegistryByteBuf;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ImagesBatchPayloadTest {
+
+    @BeforeAll
+    static void bootstrap() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    @Test
+    void readsTheWrittenImages() {
+        List<ImagePayload> images = List.of(new ImagePayload("world", "day", -1, 2, new byte[]{1, 2, 3}, 100, 7),
+                                            new ImagePayload("world", "day", 3, -4, new byte[0], 200, -8));
+        RegistryByteBuf buf = ImagesListPayloadTest.newBuf();
+
+        ImagesBatchPayload.CODEC.encode(buf, new ImagesBatchPayload(images));
+        List<ImagePayload> read = ImagesBatchPayload.CODEC.decode(buf).getImages();
+
+        assertEquals(0, buf.readableBytes());
+        assertEquals(images.size(), read.size());
+        for (int i = 0; i < images.size(); i++) {
+            assertEquals(images.get(i).getMapId(), read.get(i).getMapId());
+            assertArrayEquals(images.get(i).getImage(), read.get(i).getImage());
+            assertEquals(images.get(i).getTimestamp(), read.get(i).getTimestamp());
+            assertEquals(images.get(i).getHash(), read.get(i).getHash());
+        }
+    }
+
+    @Test
+    void rejectsCountsBiggerThanThePayload() {
+        RegistryByteBuf buf = ImagesListPayloadTest.newBuf();
+        buf.writeString("world");
+        buf.writeString("day");
+        buf.writeVarInt(Integer.MAX_VALUE);
+
+        assertThrows(DecoderException.class, () -> ImagesBatchPayload.CODEC.decode(buf));
+    }
+}
@@ -0,0 +1,89 @@
+package fr.gaetanraynaud.journeymapshare.network;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.DecoderException;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.network.RegistryByteBuf;
+import net.minecraft.registry.DynamicRegistryManager;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ImagesListPayloadTest {
+
+    @BeforeAll
+    static void bootstrap() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    @Test
+    void readsTheWrittenImages() {
+        Map<Integer, List<Integer>> images = Map.of(-3, List.of(1, 2, -5), 7, List.of(), 100_000, List.of(0, Integer.MIN_VALUE, Integer.MAX_VALUE), 1,
+                                                    IntStream.range(-100, 100).boxed().toList());
+
+        //Raw, then compressed with the dictionary
+        for (int level : new int[]{0, 6}) {
+            ImagesListPayload payload = new ImagesListPayload("world", "day", images);
+            payload.setCompressionLevel(level);
+            RegistryByteBuf buf = newBuf();
+
+            ImagesListPayload.CODEC.encode(buf, payload);
+            ImagesListPayload read = ImagesListPayload.CODEC.decode(buf);
+
+            assertEquals(0, buf.readableBytes(), "level " + level);
+            assertEquals("world", read.getWorld());
+            assertEquals("day", read.getType());
+            assertEquals(images, read.getImages());
+        }
+    }
+
+    @Test
+    void rejectsCountsBiggerThanThePayload() {
+        RegistryByteBuf columns = newBuf();
+        PayloadCompression.write(columns, 0, body -> {
+            body.writeString("world");
+            body.writeString("day");
+            body.writeVarInt(1_000_000_000);
+        });
+
+        assertThrows(DecoderException.class, () -> ImagesListPayload.CODEC.decode(columns));
+
+        RegistryByteBuf images = newBuf();
+        PayloadCompression.write(images, 0, body -> {
+            body.writeString("world");
+            body.writeString("day");
+            body.writeVarInt(1);
+            body.writeInt(0);
+            body.writeVarInt(-1);
+        });
+
+        assertThrows(DecoderException.class, () -> ImagesListPayload.CODEC.decode(images));
+    }
+
+    @Test
+    void rejectsBodiesInflatedBeyondTheClientLimit() {
+        //Zeros compress well, the body is small on the wire but bigger than a client may send once inflated
+        List<Integer> column = new ArrayList<>(Collections.nCopies(PayloadCompression.MAX_C2S_SIZE / 4, 0));
+        ImagesListPayload payload = new ImagesListPayload("world", "day", Map.of(0, column));
+        payload.setCompressionLevel(9);
+        RegistryByteBuf buf = newBuf();
+
+        ImagesListPayload.CODEC.encode(buf, payload);
+
+        assertThrows(DecoderException.class, () -> ImagesListPayload.CODEC.decode(buf));
+    }
+
+    static RegistryByteBuf newBuf() {
+        return new RegistryByteBuf(Unpooled.buffer(), DynamicRegistryManager.EMPTY);
+    }
+}
@@ -0,0 +1,98 @@
+package fr.gaetanraynaud.journeymapshare.network;
+
+import fr.gaetanraynaud.journeymapshare.JourneyMapShareUtils;
+import fr.gaetanraynaud.journeymapshare.TileIndex;
+import io.netty.handler.codec.DecoderException;
+import net.minecraft.Bootstrap;
+import net.minecraft.SharedConstants;
+import net.minecraft.network.RegistryByteBuf;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ImagesMetaListPayloadTest {
+
+    @BeforeAll
+    static void bootstrap() {
+        SharedConstants.createGameVersion();
+        Bootstrap.initialize();
+    }
+
+    @Test
+    void readsTheWrittenImages() {
+        //Sorted by x then y like the index, with negative coordinates and several images per column
+        Random random = new Random(1);
+        int size = 500;
+        long[] positions = new long[size];
+        long[] timestamps = new long[size];
+        long[] hashes = new long[size];
+
+        for (int i = 0; i < size; i++) {
+            positions[i] = JourneyMapShareUtils.toKey(i / 5 - 50, i % 5 * 3 - 7);
+            timestamps[i] = 1_700_000_000_000L + random.nextInt(1_000_000);
+            hashes[i] = random.nextLong();
+        }
+
+        for (int level : new int[]{0, 6}) {
+            ImagesMetaListPayload payload = new ImagesMetaListPayload("world", "night", 42, 1234, true,
+                                                                      new TileIndex.Images(size, positions, timestamps, hashes), List.of(-1L, 0L, 7L));
+            payload.setCompressionLevel(level);
+            RegistryByteBuf buf = ImagesListPayloadTest.newBuf();
+
+            ImagesMetaListPayload.CODEC.encode(buf, payload);
+            ImagesMetaListPayload read = ImagesMetaListPayload.CODEC.decode(buf);
+
+            assertEquals(0, buf.readableBytes(), "level " + level);
+            assertEquals("world", read.getWorld());
+            assertEquals("night", read.getType());
+            assertEquals(42, read.getEpoch());
+            assertEquals(1234, read.getVersion());
+            assertTrue(read.isFull());
+            assertEquals(List.of(-1L, 0L, 7L), read.getRegions());
+            assertEquals(size, read.size());
+
+            for (int i = 0; i < size; i++) {
+                assertEquals(JourneyMapShareUtils.keyToX(positions[i]), read.getX(i));
+                assertEquals(JourneyMapShareUtils.keyToY(positions[i]), read.getY(i));
+                assertEquals(timestamps[i], read.getTimestamp(i));
+                assertEquals(hashes[i], read.getHash(i));
+            }
+        }
+    }
+
+    @Test
+    void readsAnEmptyList() {
+        ImagesMetaListPayload payload = new ImagesMetaListPayload("world", "day", 1, 2, false, new TileIndex.Images(0, new long[0], new long[0], new long[0]));
+        RegistryByteBuf buf = ImagesListPayloadTest.newBuf();
+
+        ImagesMetaListPayload.CODEC.encode(buf, payload);
+        ImagesMetaListPayload read = ImagesMetaListPayload.CODEC.decode(buf);
+
+        assertEquals(0, read.size());
+        assertEquals(List.of(), read.getRegions());
+    }
+
+    @Test
+    void rejectsCountsBiggerThanThePayload() {
+        RegistryByteBuf buf = ImagesListPayloadTest.newBuf();
+        PayloadCompression.write(buf, 0, body -> {
+            body.writeString("world");
+            body.writeString("day");
+            body.writeLong(1);
+            body.writeVarLong(2);
+            body.writeBoolean(true);
+            body.writeVarInt(0);
+            //10 images announced, room for 1
+            body.writeVarInt(10);
+            body.writeBytes(new byte[11]);
+        });
+
+        assertThrows(DecoderException.class, () -> ImagesMetaListPayload.CODEC.decode(buf));
+    }
+}